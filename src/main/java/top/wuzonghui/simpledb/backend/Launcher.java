@@ -57,11 +57,26 @@ public class Launcher {
         dm.close();
     }
 
+    /**
+     * 打开数据库并启动服务器，启动过程中各阶段的耗时会打印出来。
+     * DM阶段包括崩溃恢复和PageIndex的重建，TBM阶段包括加载所有表和字段(索引的B+树在第一次使用时加载)。
+     */
     private static void openDB(String path, long mem) {
+        long start = System.currentTimeMillis();
         TransactionManager tm = TransactionManager.open(path);
+        long tmDone = System.currentTimeMillis();
+        System.out.println("Open TM: " + (tmDone - start) + "ms");
+
         DataManager dm = DataManager.open(path, mem, tm);
+        long dmDone = System.currentTimeMillis();
+        System.out.println("Open DM: " + (dmDone - tmDone) + "ms");
+
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        long tbmDone = System.currentTimeMillis();
+        System.out.println("Open TBM: " + (tbmDone - dmDone) + "ms");
+        System.out.println("Startup finished in " + (tbmDone - start) + "ms");
+
         Server server = new Server(port, tbm);
         server.start();
     }
@@ -3,7 +3,8 @@ package top.wuzonghui.simpledb.backend.common;
 import top.wuzonghui.simpledb.common.Error;
 
 import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -140,13 +141,13 @@ public abstract class AbstractCache<T> {
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            //遍历缓存中所有的key，对于每个key
-            for (Long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            //遍历缓存中所有的key，对于每个key，通过迭代器删除，避免边遍历边修改cache
+            Iterator<Map.Entry<Long, T>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, T> entry = it.next();
+                releaseForCache(entry.getValue());
+                references.remove(entry.getKey());
+                it.remove();
             }
         } finally {
             count = 0;
@@ -4,19 +4,22 @@ import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 import top.wuzonghui.simpledb.backend.dm.logger.Logger;
 import top.wuzonghui.simpledb.backend.dm.page.PageOne;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
+import top.wuzonghui.simpledb.backend.dm.pageindex.FreeSpaceMap;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * @author Starry
  * @create 2022-12-28-5:26 PM
  * @Describe 1.DataManager是DM层对外提供方法的类。同时也实现对DataItem对象的引用计数缓存。
- * 2.DataItem存储的key，是由页号和页内偏移组成的8字节无符号整数，页号和偏移各占4个字节。
+ * 2.DataItem存储的key，是由页号和槽号组成的8字节无符号整数，页号和槽号各占4个字节(旧格式的页中是页内偏移)。
  * 3.DM层对外提供了三个功能，分别是读、插入和修改，修改是通过读出DataItem然后修改实现的。
  */
 public interface DataManager {
     /**
      * 根据uid，读取对应的DataItem对象。
-     * @param uid DataItem的uid，uid由2个部分组成：DataItem对象实际存储的Page的pageNumber和在page中的offset。
+     * @param uid DataItem的uid，uid由2个部分组成：DataItem对象实际存储的Page的pageNumber和在page中的槽号。
      * @return 读取到的DataItem对象。如果DataItem已经被设为逻辑删除，则返回null。
      * @throws Exception
      */
@@ -33,6 +36,44 @@ public interface DataManager {
      */
     long insert(long xid, byte[] data) throws Exception;
 
+    /**
+     * 插入数据，优先插入到nearUid所在的页，该页放不下时和insert(xid, data)相同。
+     * 用于记录的新版本，和旧版本在同一页时沿着版本链读取不需要再访问别的页。
+     * @param xid 执行插入操作的事务的xid。
+     * @param data 要插入到数据库中的数据。
+     * @param nearUid 希望靠近的DataItem的uid。
+     * @return 实际插入到Page中的DataItem的uid。
+     * @throws Exception
+     */
+    long insert(long xid, byte[] data, long nearUid) throws Exception;
+
+    /**
+     * 批量插入数据，结果和依次调用insert相同，但是每一页只加一次页锁、只记录一条insertLog，
+     * 同一页中能放下的数据会被连续地写入。
+     * @param xid 执行插入操作的事务的xid。
+     * @param datas 要插入到数据库中的数据。
+     * @return 和datas一一对应的uid。
+     * @throws Exception
+     */
+    List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception;
+
+    /**
+     * 将uid对应的DataItem标记为逻辑删除，之后read该uid将返回null。
+     * 该修改和普通修改一样会记录updateLog，因此可以被恢复。
+     * @param xid 执行该操作的事务的xid，回收死版本时使用超级事务。
+     * @param uid 要删除的DataItem的uid。
+     * @throws Exception
+     */
+    void free(long xid, long uid) throws Exception;
+
+    /**
+     * 对free过DataItem的页做页内整理，回收被逻辑删除的DataItem占用的空间，并重新登记到PageIndex。
+     * 仍有DataItem对象被引用的页本次跳过，留到下次整理。
+     * @return 回收的字节数。
+     * @throws Exception
+     */
+    int compact() throws Exception;
+
     /**
      * 释放当前DataManager。
      * 1.会释放所有缓存的DataItem对象。
@@ -55,8 +96,10 @@ public interface DataManager {
         PageCache pageCache = PageCache.create(path, memory);
         //快速创建Logger对象。
         Logger logger = Logger.create(path);
+        //创建空闲空间表。
+        FreeSpaceMap freeSpaceMap = FreeSpaceMap.create(path);
         //创建DataManagerImpl对象。
-        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, tm);
+        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, tm, freeSpaceMap);
 
         dataManager.initPageOne();
         return dataManager;
@@ -76,13 +119,22 @@ public interface DataManager {
         PageCache pageCache = PageCache.open(path, memory);
         //快速创建Logger对象。
         Logger logger = Logger.open(path);
+        //打开空闲空间表，旧版本的数据库没有.fsm文件时得到一个空表。
+        FreeSpaceMap freeSpaceMap = FreeSpaceMap.open(path);
 
-        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, tm);
+        DataManagerImpl dataManager = new DataManagerImpl(pageCache, logger, tm, freeSpaceMap);
         //如果第一页的校验和不满足,则证明需要调用恢复例程
         if (!dataManager.loadCheckPageOne()) {
+            //上次没有正常关闭，.fsm文件不可信，丢弃后由fillPageIndex扫描所有页重建
+            freeSpaceMap.clear();
             Recover.recover(tm, logger, pageCache);
         }
-        //初始化pageIndex
+        //旧版本的数据库：数据页是只有FSO的旧格式，不再向其中插入数据，.fsm中记录的空闲空间作废，由fillPageIndex重新扫描
+        if (!PageOne.checkVersion(dataManager.pageOne)) {
+            freeSpaceMap.clear();
+            PageOne.setVersion(dataManager.pageOne);
+        }
+        //初始化pageIndex，只有空闲空间表中没有记录的页才需要读取
         dataManager.fillPageIndex();
         //重新设置第一页的随机字节序列
         PageOne.setVcOpen(dataManager.pageOne);
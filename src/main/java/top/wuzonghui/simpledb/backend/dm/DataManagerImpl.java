@@ -1,5 +1,6 @@
 package top.wuzonghui.simpledb.backend.dm;
 
+import com.google.common.primitives.Bytes;
 import top.wuzonghui.simpledb.backend.common.AbstractCache;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItemImpl;
@@ -8,12 +9,22 @@ import top.wuzonghui.simpledb.backend.dm.page.Page;
 import top.wuzonghui.simpledb.backend.dm.page.PageOne;
 import top.wuzonghui.simpledb.backend.dm.page.PageX;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
+import top.wuzonghui.simpledb.backend.dm.pageindex.FreeSpaceMap;
 import top.wuzonghui.simpledb.backend.dm.pageindex.PageIndex;
 import top.wuzonghui.simpledb.backend.dm.pageindex.PageInfo;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.common.Error;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 
 /**
  * @author Starry
@@ -41,20 +52,47 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 当前数据库的pageIndex对象，对应一个.db文件
      */
     PageIndex pageIndex;
+
+    /**
+     * 持久化的空闲空间表，对应一个.fsm文件，和pageIndex同步更新。
+     */
+    FreeSpaceMap freeSpaceMap;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pageCache, Logger logger, TransactionManager transactionManager) {
+    /**
+     * 每一页被缓存的DataItem对象的数量。DataItem直接引用页内的数据，数量不为0的页不能做页内整理。
+     */
+    private final Map<Integer, Integer> pinnedItems;
+
+    /**
+     * free过DataItem，等待页内整理的页号。
+     */
+    private final Set<Integer> compactCandidates;
+
+    public DataManagerImpl(PageCache pageCache, Logger logger, TransactionManager transactionManager, FreeSpaceMap freeSpaceMap) {
         super(0);
         this.pageCache = pageCache;
         this.logger = logger;
         this.transactionManager = transactionManager;
+        this.freeSpaceMap = freeSpaceMap;
         pageIndex = new PageIndex();
+        pinnedItems = new ConcurrentHashMap<>();
+        compactCandidates = ConcurrentHashMap.newKeySet();
     }
 
     @Override
     public DataItem read(long uid) throws Exception {
         //调用get方法，通过缓存读。
-        DataItemImpl dataItem = (DataItemImpl) super.get(uid);
+        DataItemImpl dataItem;
+        try {
+            dataItem = (DataItemImpl) super.get(uid);
+        } catch (Exception e) {
+            //槽已经被页内整理回收
+            if (e == Error.NullDataItemException) {
+                return null;
+            }
+            throw e;
+        }
         if (!dataItem.isValid()) {
             dataItem.release();
             return null;
@@ -67,52 +105,184 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         //根据要插入到数据库中的数据，封装出实际要插入的byte数组，即在数据前加入三个字节，第一个字节是Valid，第二个和第三个字节标识数据长度。
         //[ValidFlag,1byte],[DataSize,2byte],[Data]
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        //如果要插入的长度甚至大于了一个Page的最大长度(即8K - 2)，报错
+        //如果要插入的长度甚至大于了一个空页能容纳的最大长度(即8K - 页头 - 一个槽)，报错
         if(raw.length > PageX.MAX_FREE_SPACE) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        //循环5次去获取pi,如果获取到就立刻退出循环，如果不存在能提供合适空间的page，那么就新增一个page。
+        //循环5次去获取pi,如果不存在能提供合适空间的page，那么就新增一个page。
         for(int i = 0; i < 5; i ++) {
-            pi = pageIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
+            PageInfo pi = pageIndex.select(raw.length);
+            if (pi == null) {
                 int newPgno = pageCache.newPage(PageX.initRaw());
-                pageIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                addFreeSpace(newPgno, PageX.MAX_FREE_SPACE);
+                continue;
             }
-        }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
-        }
 
+            Page pg = null;
+            int freeSpace = 0;
+            try {
+                //根据pageinfo，获取page
+                pg = pageCache.getPage(pi.pgno);
+                pg.lock();
+                try {
+                    //pageIndex中登记的空闲空间可能已经过时(页被整理过，或者是不再插入数据的旧格式页)，以页中实际的为准
+                    if (PageX.getFreeSpace(pg) >= raw.length) {
+                        //生成insertLog，并追加到.log文件中
+                        byte[] log = Recover.insertLog(xid, pg, raw);
+                        logger.log(log);
+
+                        //在日志落盘后再将数据追加到page中
+                        short slot = PageX.insert(pg, raw);
+                        return DataItem.addressToUid(pi.pgno, slot);
+                    }
+                } finally {
+                    freeSpace = PageX.getFreeSpace(pg);
+                    pg.unlock();
+                }
+            } finally {
+                // 将取出的pg重新插入pIndex
+                addFreeSpace(pi.pgno, freeSpace);
+                if (pg != null) {
+                    pg.release();
+                }
+            }
+        }
+        throw Error.DatabaseBusyException;
+    }
 
+    @Override
+    public long insert(long xid, byte[] data, long nearUid) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        int pgno = (int) (nearUid >>> 32);
         Page pg = null;
-        int freeSpace = 0;
         try {
-            //根据pageinfo，获取page
-            pg = pageCache.getPage(pi.pgno);
-            //生成insertLog，并追加到.log文件中
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            pg = pageCache.getPage(pgno);
+            pg.lock();
+            try {
+                if (PageX.getFreeSpace(pg) >= raw.length) {
+                    byte[] log = Recover.insertLog(xid, pg, raw);
+                    logger.log(log);
+                    short slot = PageX.insert(pg, raw);
+                    //该页之前登记的空闲空间已经偏大，重新登记
+                    int freeSpace = PageX.getFreeSpace(pg);
+                    freeSpaceMap.set(pgno, freeSpace);
+                    pageIndex.update(pgno, freeSpace);
+                    return DataItem.addressToUid(pgno, slot);
+                }
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            if (pg != null) {
+                pg.release();
+            }
+        }
+        return insert(xid, data);
+    }
 
-            //在日志落盘后再将数据追加到page中
-            short offset = PageX.insert(pg, raw);
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for (byte[] data : datas) {
+            byte[] raw = DataItem.wrapDataItemRaw(data);
+            if (raw.length > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
+            raws.add(raw);
+        }
 
-            //释放page
-            pg.release();
+        List<Long> uids = new ArrayList<>(raws.size());
+        int next = 0;
+        while (next < raws.size()) {
+            PageInfo pi = pageIndex.select(raws.get(next).length);
+            if (pi == null) {
+                int newPgno = pageCache.newPage(PageX.initRaw());
+                addFreeSpace(newPgno, PageX.MAX_FREE_SPACE);
+                continue;
+            }
 
-            return DataItem.addressToUid(pi.pgno, offset);
+            Page pg = null;
+            int freeSpace = 0;
+            try {
+                pg = pageCache.getPage(pi.pgno);
+                pg.lock();
+                try {
+                    //一页只加一次锁、只记一条日志，尽可能多地装入后续的数据
+                    int count = PageX.getFitCount(pg, raws, next);
+                    if (count > 0) {
+                        byte[] packed = Bytes.concat(raws.subList(next, next + count).toArray(new byte[count][]));
+                        logger.log(Recover.insertLog(xid, pg, packed));
+                        short slot = PageX.insertBatch(pg, packed);
+                        for (int i = 0; i < count; i++) {
+                            uids.add(DataItem.addressToUid(pi.pgno, (short) (slot + i)));
+                        }
+                        next += count;
+                    }
+                } finally {
+                    freeSpace = PageX.getFreeSpace(pg);
+                    pg.unlock();
+                }
+            } finally {
+                addFreeSpace(pi.pgno, freeSpace);
+                if (pg != null) {
+                    pg.release();
+                }
+            }
+        }
+        return uids;
+    }
 
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        DataItem dataItem = read(uid);
+        if (dataItem == null) {
+            return;
+        }
+        try {
+            dataItem.before();
+            DataItem.setDataItemRawInvalid(dataItem.getRaw());
+            dataItem.after(xid);
         } finally {
-            // 将取出的pg重新插入pIndex
-            if(pg != null) {
-                pageIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pageIndex.add(pi.pgno, freeSpace);
+            dataItem.release();
+        }
+        compactCandidates.add((int) (uid >>> 32));
+    }
+
+    @Override
+    public int compact() throws Exception {
+        int reclaimed = 0;
+        Iterator<Integer> it = compactCandidates.iterator();
+        while (it.hasNext()) {
+            int pgno = it.next();
+            Page pg = pageCache.getPage(pgno);
+            pg.lock();
+            try {
+                //还有DataItem对象引用该页时不能移动数据，留到下次整理
+                if (pinnedItems.containsKey(pgno)) {
+                    continue;
+                }
+                it.remove();
+                if (!PageX.isSlotted(pg)) {
+                    continue;
+                }
+                byte[] image = PageX.compact(pg);
+                if (image == null) {
+                    continue;
+                }
+                int before = PageX.getFreeSpace(pg);
+                logger.log(Recover.pageImageLog(pgno, image));
+                PageX.recoverImage(pg, image);
+                int freeSpace = PageX.getFreeSpace(pg);
+                reclaimed += freeSpace - before;
+                freeSpaceMap.set(pgno, freeSpace);
+                pageIndex.update(pgno, freeSpace);
+            } finally {
+                pg.unlock();
+                pg.release();
             }
         }
+        return reclaimed;
     }
 
     @Override
@@ -120,24 +290,38 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         super.close();
         logger.close();
 
+        //空闲空间表要先于第一页的校验字节落盘，这样只要校验通过，.fsm文件就一定是完整的
+        freeSpaceMap.flush();
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pageCache.close();
     }
 
-    //key指明了封装DataItem的全部信息，即pageno和offset
+    //key指明了封装DataItem的全部信息，即pageno和槽号
     @Override
     protected DataItem getForCache(long key) throws Exception {
-        //key 前四位是pgno，后四位是offset
-        short offset = (short) (key & ((1L << 16) - 1));
-        key >>>= 32;
-        int pgno = (int) (key & ((1L << 32) - 1));
+        //key 前四位是pgno，后四位是槽号
+        short slot = (short) (key & ((1L << 16) - 1));
+        int pgno = (int) (key >>> 32);
         Page page = pageCache.getPage(pgno);
-        return DataItem.parseDataItem(page, offset, this);
+        //在页锁内解析offset并登记引用，保证不会和页内整理交错
+        page.lock();
+        try {
+            short offset = PageX.getItemOffset(page, slot);
+            if (offset == 0) {
+                page.release();
+                throw Error.NullDataItemException;
+            }
+            pinnedItems.merge(pgno, 1, Integer::sum);
+            return DataItem.parseDataItem(page, offset, key, this);
+        } finally {
+            page.unlock();
+        }
     }
 
     @Override
     protected void releaseForCache(DataItem dataItem) {
+        pinnedItems.computeIfPresent(dataItem.page().getPageNumber(), (pgno, count) -> count == 1 ? null : count - 1);
         //释放dataItem所在页即可
         dataItem.page().release();
     }
@@ -197,21 +381,68 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
+    /**
+     * 将第pgno页的空闲空间大小登记到pageIndex，同时更新空闲空间表。
+     * @param pgno
+     * @param freeSpace
+     */
+    private void addFreeSpace(int pgno, int freeSpace) {
+        freeSpaceMap.set(pgno, freeSpace);
+        pageIndex.add(pgno, freeSpace);
+    }
+
     /**
      * 初始化pageIndex，只有打开的方式创建DataManager对象的时候调用，因为如果是创建的方式，不存在已有Page。
+     * @Detail
+     * 1.空闲空间表已经记录的页，直接使用表中的值，不需要读取页。
+     * 2.表中没有记录的页(旧版本的数据库，或者崩溃后表被丢弃)，需要读取页并计算空闲空间，同时补进表中。
+     * 这部分按页号区间拆分成FillPageIndexTask，交给ForkJoinPool并行扫描。
      */
     void fillPageIndex() {
         int numberOfPage = pageCache.getPageNumber();
-        for (int i = 2; i < numberOfPage; i++) {
-            Page page = null;
-            try {
-                page = pageCache.getPage(i);
-                int freeSpace = PageX.getFreeSpace(page);
-                pageIndex.add(page.getPageNumber(), freeSpace);
-            } catch (Exception e) {
-                Panic.panic(e);
-            } finally {
-                page.release();
+        int mapped = Math.min(freeSpaceMap.size(), numberOfPage + 1);
+        for (int i = 2; i < mapped; i++) {
+            pageIndex.add(i, freeSpaceMap.get(i));
+        }
+        int from = Math.max(2, mapped);
+        if (from <= numberOfPage) {
+            ForkJoinPool.commonPool().invoke(new FillPageIndexTask(from, numberOfPage + 1));
+        }
+    }
+
+    /**
+     * 扫描[from, to)区间内的页，登记每一页的空闲空间。区间超过SCAN_BATCH页时对半拆分。
+     */
+    private class FillPageIndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private static final int SCAN_BATCH = 256;
+
+        private final int from;
+        private final int to;
+
+        FillPageIndexTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SCAN_BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FillPageIndexTask(from, mid), new FillPageIndexTask(mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Page page = null;
+                try {
+                    page = pageCache.getPage(i);
+                    addFreeSpace(page.getPageNumber(), PageX.getFreeSpace(page));
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    page.release();
+                }
             }
         }
     }
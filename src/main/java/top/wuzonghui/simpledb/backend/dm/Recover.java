@@ -1,6 +1,5 @@
 package top.wuzonghui.simpledb.backend.dm;
 
-import com.google.common.primitives.Bytes;
 import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 import top.wuzonghui.simpledb.backend.dm.logger.Logger;
@@ -8,8 +7,9 @@ import top.wuzonghui.simpledb.backend.dm.page.Page;
 import top.wuzonghui.simpledb.backend.dm.page.PageX;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
+import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.Panic;
-import top.wuzonghui.simpledb.backend.utils.Parser;
 
 import java.util.*;
 
@@ -21,6 +21,8 @@ import java.util.*;
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_SLOTTED_INSERT = 2;
+    private static final byte LOG_TYPE_PAGE_IMAGE = 3;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -32,12 +34,23 @@ public class Recover {
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_SLOTTED_INSERT_SLOT = OF_INSERT_PGNO + 4;
+    private static final int OF_SLOTTED_INSERT_OFFSET = OF_SLOTTED_INSERT_SLOT + 2;
+    private static final int OF_SLOTTED_INSERT_RAW = OF_SLOTTED_INSERT_OFFSET + 2;
+    private static final int OF_IMAGE_PGNO = OF_XID + 8;
+    private static final int OF_IMAGE_RAW = OF_IMAGE_PGNO + 4;
 
 
-    //insertLog格式 [LogType,1byte] [XID,8byte] [Pgno,4byte] [Offset,2byte] [Raw]
+    //旧格式页的insertLog格式 [LogType,1byte] [XID,8byte] [Pgno,4byte] [Offset,2byte] [Raw]
+    //槽页的insertLog格式 [LogType,1byte] [XID,8byte] [Pgno,4byte] [Slot,2byte] [Offset,2byte] [Raw]
+    //Raw可以是首尾相接的多个DataItem(批量插入)，它们的槽号从Slot开始依次加1
     static class InsertLogInfo {
         long xid;
         int pgno;
+        /**
+         * 槽号，旧格式页的insertLog为-1
+         */
+        short slot;
         short offset;
         byte[] raw;
     }
@@ -46,7 +59,10 @@ public class Recover {
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        /**
+         * uid的低16位，槽页中是槽号，旧格式页中是offset，需要通过PageX.getItemOffset解析
+         */
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
@@ -59,29 +75,50 @@ public class Recover {
      * @return
      */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length + raw.end - raw.start];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Codec.putLong(log, OF_XID, xid);
+        Codec.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW + oldRaw.length, raw.end - raw.start);
+        return log;
     }
 
     /**
-     * 生成一个insertLog。格式：[LogType,1byte] [XID,8byte] [Pgno,4byte] [Offset,2byte] [Raw]
+     * 生成一个槽页的insertLog。格式：[LogType,1byte] [XID,8byte] [Pgno,4byte] [Slot,2byte] [Offset,2byte] [Raw]
+     * 需要在PageX.insert/insertBatch之前调用，记录的是即将分配的第一个槽号和offset。
      * @param xid 执行insert操作的事务的xid
      * @param pg 要插入到的page
-     * @param raw 要插入的具体数据
+     * @param raw 要插入的具体数据，批量插入时是首尾相接的多个DataItem，一页只需要一条日志
      * @return
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logType = new byte[1];
-        logType[0] = LOG_TYPE_INSERT;
-        byte[] xidBytes = Parser.long2Byte(xid);
-        byte[] pageNoBytes = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetBytes = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logType, xidBytes, pageNoBytes, offsetBytes, raw);
+        byte[] log = new byte[OF_SLOTTED_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_SLOTTED_INSERT;
+        Codec.putLong(log, OF_XID, xid);
+        Codec.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        Codec.putShort(log, OF_SLOTTED_INSERT_SLOT, PageX.getNextSlot(pg));
+        Codec.putShort(log, OF_SLOTTED_INSERT_OFFSET, PageX.getFSO(pg));
+        System.arraycopy(raw, 0, log, OF_SLOTTED_INSERT_RAW, raw.length);
+        return log;
+    }
+
+    /**
+     * 生成一个页面镜像日志，用于页内整理。格式：[LogType,1byte] [XID,8byte] [Pgno,4byte] [Image,8K]
+     * 整理不属于任何事务，XID固定为超级事务，恢复时总是redo。
+     * @param pgno 被整理的页
+     * @param image 整理后的页面数据
+     * @return
+     */
+    public static byte[] pageImageLog(int pgno, byte[] image) {
+        byte[] log = new byte[OF_IMAGE_RAW + image.length];
+        log[OF_TYPE] = LOG_TYPE_PAGE_IMAGE;
+        Codec.putLong(log, OF_XID, TransactionManagerImpl.SUPER_XID);
+        Codec.putInt(log, OF_IMAGE_PGNO, pgno);
+        System.arraycopy(image, 0, log, OF_IMAGE_RAW, image.length);
+        return log;
     }
 
     /**
@@ -107,6 +144,8 @@ public class Recover {
             //如果是一条insertLog
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
+            } else if (isPageImageLog(log)) {
+                pgno = Codec.getInt(log, OF_IMAGE_PGNO);
             } else {
                 //如果是一条updateLog
                 UpdateLogInfo li = parseUpdateLog(log);
@@ -162,6 +201,9 @@ public class Recover {
                         map.put(xid, list);
                     }
                 }
+            } else if (isPageImageLog(log)) {
+                //页内整理不属于任何事务，不需要undo
+                continue;
             } else {
                 //如果是update log
                 UpdateLogInfo updateLogInfo = parseUpdateLog(log);
@@ -225,6 +267,9 @@ public class Recover {
                 if (!tm.isActive(xid)) {
                     doInsertLog(pc, log, REDO);
                 }
+            } else if (isPageImageLog(log)) {
+                //页内整理的结果总是redo
+                doPageImageLog(pc, log);
             } else {
                 //如果这是一条update的log(通过logtype判断)
                 UpdateLogInfo xi = parseUpdateLog(log);
@@ -246,11 +291,10 @@ public class Recover {
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         //UpdateLog格式 [LogType,1byte] [XID,8byte] [UID,8byte] [OldRaw] [NewRaw]
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        //uid占位8字节，其中48-64字节是offset，0-32字节是pgno。
-        short offset = (short) (uid & ((1L << 16) - 1));
-        li.offset = offset;
+        li.xid = Codec.getLong(log, OF_XID);
+        long uid = Codec.getLong(log, OF_UPDATE_UID);
+        //uid占位8字节，其中48-64字节是槽号(旧格式页中是offset)，0-32字节是pgno。
+        li.slot = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         int pgno = (int) (uid & ((1L << 32) - 1));
         li.pgno = pgno;
@@ -291,7 +335,11 @@ public class Recover {
             raw = updateLogInfo.oldRaw;
         }
         try {
-            PageX.recoverUpdate(page, raw, updateLogInfo.offset);
+            //槽页中数据可能被页内整理移动过，按槽号找到当前的offset
+            short offset = PageX.getItemOffset(page, updateLogInfo.slot);
+            if (offset != 0) {
+                PageX.recoverUpdate(page, raw, offset);
+            }
         } finally {
             //释放page
             page.release();
@@ -321,10 +369,20 @@ public class Recover {
         }
         byte[] raw = insertLogInfo.raw;
         try {
-            if (flag == UNDO) {
-                DataItem.setDataItemRawInvalid(raw);
+            if (insertLogInfo.slot < 0) {
+                if (flag == UNDO) {
+                    DataItem.setDataItemRawInvalid(raw);
+                }
+                PageX.recoverInsert(page, raw, insertLogInfo.offset);
+                return;
+            }
+            //槽页的insertLog可能包含多个DataItem，逐个恢复
+            short slot = insertLogInfo.slot;
+            for (int pos = 0; pos < raw.length; slot++) {
+                byte[] item = Arrays.copyOfRange(raw, pos, pos + DataItem.getRawLength(raw, pos));
+                recoverSlottedInsert(page, item, slot, (short) (insertLogInfo.offset + pos), flag);
+                pos += item.length;
             }
-            PageX.recoverInsert(page, raw, insertLogInfo.offset);
         } finally {
             page.release();
         }
@@ -332,6 +390,41 @@ public class Recover {
 
     }
 
+    private static void recoverSlottedInsert(Page page, byte[] raw, short slot, short offset, int flag) {
+        if (flag == UNDO) {
+            DataItem.setDataItemRawInvalid(raw);
+            //如果槽已经存在(插入之后页被整理过)，数据可能已经被移动，直接在当前位置标记为逻辑删除
+            if (PageX.isSlotted(page) && slot < PageX.getNextSlot(page)) {
+                short current = PageX.getItemOffset(page, slot);
+                if (current != 0) {
+                    PageX.recoverUpdate(page, new byte[]{raw[0]}, current);
+                }
+                return;
+            }
+        }
+        PageX.recoverInsert(page, raw, slot, offset);
+    }
+
+    /**
+     * 重放页内整理日志，用日志中的镜像覆盖整页。
+     * @param pc
+     * @param log
+     */
+    private static void doPageImageLog(PageCache pc, byte[] log) {
+        int pgno = Codec.getInt(log, OF_IMAGE_PGNO);
+        Page page = null;
+        try {
+            page = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.recoverImage(page, Arrays.copyOfRange(log, OF_IMAGE_RAW, log.length));
+        } finally {
+            page.release();
+        }
+    }
+
 
     /**
      * 根据byte数组的第一位，判断当前byte数组代表insert log还是update log
@@ -339,7 +432,16 @@ public class Recover {
      * @return
      */
     private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+        return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_SLOTTED_INSERT;
+    }
+
+    /**
+     * 判断当前byte数组是否是页内整理产生的页面镜像日志
+     * @param log
+     * @return
+     */
+    private static boolean isPageImageLog(byte[] log) {
+        return log[0] == LOG_TYPE_PAGE_IMAGE;
     }
 
     /**
@@ -349,11 +451,19 @@ public class Recover {
      * @return
      */
     private static InsertLogInfo parseInsertLog(byte[] log) {
-        ////insertLog格式 [LogType,1byte] [XID,8byte] [Pgno,4byte] [Offset,2byte] [Raw]
         InsertLogInfo insertLogInfo = new InsertLogInfo();
-        insertLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        insertLogInfo.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        insertLogInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        insertLogInfo.xid = Codec.getLong(log, OF_XID);
+        insertLogInfo.pgno = Codec.getInt(log, OF_INSERT_PGNO);
+        if (log[OF_TYPE] == LOG_TYPE_SLOTTED_INSERT) {
+            //[LogType,1byte] [XID,8byte] [Pgno,4byte] [Slot,2byte] [Offset,2byte] [Raw]
+            insertLogInfo.slot = Codec.getShort(log, OF_SLOTTED_INSERT_SLOT);
+            insertLogInfo.offset = Codec.getShort(log, OF_SLOTTED_INSERT_OFFSET);
+            insertLogInfo.raw = Arrays.copyOfRange(log, OF_SLOTTED_INSERT_RAW, log.length);
+            return insertLogInfo;
+        }
+        //[LogType,1byte] [XID,8byte] [Pgno,4byte] [Offset,2byte] [Raw]
+        insertLogInfo.slot = -1;
+        insertLogInfo.offset = Codec.getShort(log, OF_INSERT_OFFSET);
         insertLogInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return insertLogInfo;
     }
@@ -1,12 +1,9 @@
 package top.wuzonghui.simpledb.backend.dm.dataitem;
 
-import com.google.common.primitives.Bytes;
 import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.DataManagerImpl;
 import top.wuzonghui.simpledb.backend.dm.page.Page;
-import top.wuzonghui.simpledb.backend.utils.Parser;
-
-import java.util.Arrays;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 
 /**
  * @author Starry
@@ -76,6 +73,20 @@ public interface DataItem {
      */
     void rUnLock();
 
+    /**
+     * @Describe 开始一次乐观读：不加锁，只获取一个版本戳。读取完成后需要通过validate检查期间是否有写操作，
+     * 检查失败时读到的数据可能不完整，需要加读锁重新读取。
+     * @return 版本戳，当前写锁被持有时返回0。
+     */
+    long tryOptimisticRead();
+
+    /**
+     * @Describe 检查从tryOptimisticRead获取stamp之后是否有写操作。
+     * @param stamp tryOptimisticRead返回的版本戳。
+     * @return true：期间没有写操作，乐观读到的数据有效。false：需要加读锁重新读取。
+     */
+    boolean validate(long stamp);
+
     /**
      * @Describe 获取该DataItem所在的Page对象。
      */
@@ -101,6 +112,11 @@ public interface DataItem {
      */
     SubArray getRaw();
 
+    /**
+     * @Describe DataItem头部[ValidFlag,1byte],[DataSize,2byte]的长度，一个DataItem占用的空间是数据长度加上该值。
+     */
+    int HEADER_SIZE = DataItemImpl.OF_DATA;
+
     /**
      * @Describe 将byte[] raw的index为0的位设置为1，说明该DataItem数据已经被逻辑删除。
      *
@@ -111,40 +127,71 @@ public interface DataItem {
     }
 
     /**
-     * @Describe 根据int值pgno和short值offset，拼接成8字节的uid，其中前4个字节是pgno，后4个字节是offset
+     * @Describe 将raw所指的DataItem的ValidFlag设置为1，说明该DataItem数据已经被逻辑删除。
+     *
+     * @param raw DataItem的Raw部分，即[ValidFlag,1byte],[DataSize,2byte],[Data]。
+     */
+    static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte) 1;
+    }
+
+    /**
+     * @Describe 判断page数据中offset处的DataItem是否有效(没有被逻辑删除)。
+     *
+     * @param raw 整页的数据
+     * @param offset DataItem在页内的offset
+     * @return
+     */
+    static boolean isRawValid(byte[] raw, int offset) {
+        return raw[offset + DataItemImpl.OF_VALID] == (byte) 0;
+    }
+
+    /**
+     * @Describe 获取page数据中offset处的DataItem的总长度，即DataSize + 3。
+     *
+     * @param raw 整页的数据
+     * @param offset DataItem在页内的offset
+     * @return
+     */
+    static int getRawLength(byte[] raw, int offset) {
+        short size = Codec.getShort(raw, offset + DataItemImpl.OF_SIZE);
+        return size + DataItemImpl.OF_DATA;
+    }
+
+    /**
+     * @Describe 根据int值pgno和short值slot，拼接成8字节的uid，其中前4个字节是pgno，后4个字节是槽号。
+     * 旧格式的页没有槽目录，后4个字节是DataItem在页内的offset。
      *
      * @param pgno
-     * @param offset
+     * @param slot
      * @return
      */
-    static long addressToUid(int pgno, short offset) {
+    static long addressToUid(int pgno, short slot) {
         long u0 = (long) pgno;
-        long u1 = (long) offset;
+        long u1 = (long) slot;
         return u0 << 32 | u1;
     }
 
 
 
     /**
-     * @Describe 工具方法，根据page，offset，dataManager，封装DataItem对象。
+     * @Describe 工具方法，根据page，offset，uid，dataManager，封装DataItem对象。
      *
      * @param page
-     * @param offset
+     * @param offset DataItem在页内的offset，由uid中的槽号查槽目录得到
+     * @param uid
      * @param dataManager
      * @return
      */
-    static DataItem parseDataItem(Page page, short offset, DataManagerImpl dataManager) {
+    static DataItem parseDataItem(Page page, short offset, long uid, DataManagerImpl dataManager) {
         //raw是page的data部分
         byte[] raw = page.getData();
-        //从raw的指定offset处解析出DataItem的Datasize
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        //那么整个Datasize的长度就是Datasize + 3
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        //根据page的pageno和传入的offset拼接出uid
-        long uid = addressToUid(page.getPageNumber(), offset);
+        //整个DataItem的长度就是Datasize + 3
+        short length = (short) getRawLength(raw, offset);
+        //oldRaw在第一次before时才分配，只读的DataItem(比如B+树的节点)不需要
         return new DataItemImpl(
                 new SubArray(raw, offset, offset + length),
-                new byte[length],
+                null,
                 page,
                 uid,
                 dataManager);
@@ -159,8 +206,9 @@ public interface DataItem {
      * @return
      */
     static byte[] wrapDataItemRaw(byte[] data) {
-        byte[] valid = new byte[1];
-        byte[] dataSize = Parser.short2Byte((short) data.length);
-        return Bytes.concat(valid, dataSize, data);
+        byte[] raw = new byte[DataItemImpl.OF_DATA + data.length];
+        Codec.putShort(raw, DataItemImpl.OF_SIZE, (short) data.length);
+        System.arraycopy(data, 0, raw, DataItemImpl.OF_DATA, data.length);
+        return raw;
     }
 }
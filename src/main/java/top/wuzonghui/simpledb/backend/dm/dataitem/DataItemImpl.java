@@ -5,13 +5,15 @@ import top.wuzonghui.simpledb.backend.dm.DataManagerImpl;
 import top.wuzonghui.simpledb.backend.dm.page.Page;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * @author Starry
  * @create 2022-12-28-5:23 PM
  * @Describe
+ * @Detail 读写锁使用StampedLock。读取XMIN、XMAX这类定长的头部字段时可以先乐观读，不修改任何共享状态，
+ * 热点记录被多个核同时读取时不会因为读锁计数的CAS互相争抢缓存行；乐观读期间发生了写操作时再退化为读锁。
+ * StampedLock不可重入，持有读锁或写锁时不能再次对同一个DataItem加锁。
  */
 public class DataItemImpl implements DataItem{
 
@@ -22,7 +24,7 @@ public class DataItemImpl implements DataItem{
     private SubArray raw;
 
     /**
-     * 一个临时数组，在修改数据的时候，将旧数据存储到临时数组里，以便撤销
+     * 一个临时数组，在修改数据的时候，将旧数据存储到临时数组里，以便撤销。第一次修改时才分配。
      */
     private byte[] oldRaw;
 
@@ -42,6 +44,8 @@ public class DataItemImpl implements DataItem{
      */
     private Page pg;
 
+    private StampedLock lock;
+
     /**
      * readLock
      */
@@ -70,9 +74,9 @@ public class DataItemImpl implements DataItem{
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        lock = new StampedLock();
+        rLock = lock.asReadLock();
+        wLock = lock.asWriteLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -87,6 +91,9 @@ public class DataItemImpl implements DataItem{
     public void before() {
         wLock.lock();
         pg.setDirty(true);
+        if (oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -129,6 +136,16 @@ public class DataItemImpl implements DataItem{
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return pg;
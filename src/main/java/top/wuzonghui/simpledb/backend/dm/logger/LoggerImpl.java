@@ -1,6 +1,6 @@
 package top.wuzonghui.simpledb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.backend.utils.Parser;
 import top.wuzonghui.simpledb.common.Error;
@@ -180,7 +180,7 @@ public class LoggerImpl implements Logger{
         }
 
         //3.检验校验和是否一致
-        int check1 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int check1 = Codec.getInt(log, OF_CHECKSUM);
         int check2 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, OF_DATA + size));
         if (check1 != check2) {
             return null;
@@ -219,10 +219,12 @@ public class LoggerImpl implements Logger{
      * @return 一条log的完整数据
      */
     private byte[] wrapLog(byte[] data) {
-        byte[] size = Parser.int2Byte(data.length);
-        byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
-        //利用com.google.common.primitives.Bytes工具类，将3个byte数组合成。
-        return Bytes.concat(size, checkSum, data);
+        //一次性分配整条log，直接在对应位置写入size和checksum
+        byte[] log = new byte[OF_DATA + data.length];
+        Codec.putInt(log, OF_SIZE, data.length);
+        Codec.putInt(log, OF_CHECKSUM, calCheckSum(0, data));
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        return log;
     }
 
     /**
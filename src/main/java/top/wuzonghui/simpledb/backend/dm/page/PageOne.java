@@ -1,6 +1,7 @@
 package top.wuzonghui.simpledb.backend.dm.page;
 
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -11,10 +12,17 @@ import java.util.Arrays;
  * @Describe 该类是用来特殊管理第一页的工具类。第一页用来Valid Check。
  * db启动的时候在100-107字节处填入一个随机字节，db关闭的时候将这个随机字节拷贝到108-115字节处。
  * 每次db启动需要通过Valid Check判断上一次是否是合法关闭，如果不是合法关闭就走数据恢复流程。
+ * 第一页的0-1字节记录数据页的格式版本，旧版本的数据库这两个字节为0，打开时需要迁移后再写入当前版本。
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_VERSION = 0;
+
+    /**
+     * 数据页的格式版本。0：只有FSO的旧格式；1：槽页格式，见PageX。
+     */
+    public static final short PAGE_FORMAT_VERSION = 1;
 
     /**
      * 初始化一个长度为8K的数组，并将该数组的100-107位设为随机。
@@ -23,6 +31,7 @@ public class PageOne {
     public static byte[] InitRaw() {
         byte[] result = new byte[PageCache.PAGE_SIZE];
         setVcOpen(result);
+        setVersion(result);
         return result;
     }
 
@@ -83,6 +92,26 @@ public class PageOne {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
 
+    /**
+     * 判断数据库的格式版本是否为当前版本。
+     * @param pg
+     * @return true:当前版本。false:旧版本，需要迁移。
+     */
+    public static boolean checkVersion(Page pg) {
+        byte[] raw = pg.getData();
+        return Codec.getShort(raw, OF_VERSION) == PAGE_FORMAT_VERSION;
+    }
 
+    /**
+     * 将第一页的格式版本设置为当前版本。
+     * @param pg
+     */
+    public static void setVersion(Page pg) {
+        pg.setDirty(true);
+        setVersion(pg.getData());
+    }
 
+    private static void setVersion(byte[] raw) {
+        Codec.putShort(raw, OF_VERSION, PAGE_FORMAT_VERSION);
+    }
 }
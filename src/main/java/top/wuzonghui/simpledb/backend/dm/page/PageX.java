@@ -1,38 +1,69 @@
 package top.wuzonghui.simpledb.backend.dm.page;
 
+import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
-import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Starry
  * @create 2022-12-24-8:14 PM
- * @Describe 操作普通数据页的工具类，SDB的普通数据页的前2个字节，用来存储FreeSpaceOffset(FSO)。
- * 这2个字节的FSO代表该数据页空闲位置的offset。
+ * @Describe 操作普通数据页的工具类。普通数据页采用槽页(slotted page)格式：
+ * [Format,2byte][FSO,2byte][SlotCount,2byte][Data...] ... [Slot n-1]...[Slot 1][Slot 0]
+ * @Detail
+ * 1.Format的最高位为1，低15位是格式版本号。FSO代表数据区空闲位置的offset，数据从第6个字节开始向后追加。
+ * 2.槽目录从页尾开始向前增长，第k个槽位于PAGE_SIZE - 2 * (k + 1)，存储第k个DataItem在页内的offset，0代表该槽已经被回收。
+ * 3.DataItem的uid记录的是槽号而不是offset，因此页内整理(compact)可以移动数据，只需要同时修改槽中的offset，uid保持不变。
+ * 槽号一经分配就不再复用，避免索引中残留的旧uid指向别的数据。
+ * 4.旧版本的数据页只有前2个字节的FSO，uid中记录的是offset。FSO不超过PAGE_SIZE，最高位一定是0，以此区分两种格式。
+ * 旧格式的页依然可以读取和修改，但不再向其中插入新数据(空闲空间视为0)，新数据都写入槽页。
  */
 public class PageX {
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short FORMAT_SLOTTED = (short) 0x8001;
+
+    private static final short OF_FORMAT = 0;
+    private static final short OF_FREE = 2;
+    private static final short OF_SLOT_COUNT = 4;
+    private static final short OF_DATA = 6;
+    private static final int SLOT_SIZE = 2;
+
+    private static final short LEGACY_OF_FREE = 0;
+
+    /**
+     * 一个空页能插入的最大DataItem长度，需要为新数据预留一个槽。
+     */
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA - SLOT_SIZE;
 
     /**
-     * 创建一个长度为8K的byte数组，并且将其前两个字节设置为2。
+     * 创建一个长度为8K的空槽页。
      * @return 创建的byte数组
      */
     public static byte[] initRaw() {
         byte[] result = new byte[PageCache.PAGE_SIZE];
-        setFSO(result, OF_DATA);
+        initSlotted(result);
         return result;
     }
 
+    private static void initSlotted(byte[] raw) {
+        writeShort(raw, OF_FORMAT, FORMAT_SLOTTED);
+        writeShort(raw, OF_FREE, OF_DATA);
+        writeShort(raw, OF_SLOT_COUNT, (short) 0);
+    }
+
     /**
-     * 将指定的偏移量ofData设置到raw数组的前2个字节中。
-     * @param raw
-     * @param ofData 偏移量
+     * 判断pg是否是槽页格式。
+     * @param pg
+     * @return true:槽页。false:旧格式的页。
      */
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    public static boolean isSlotted(Page pg) {
+        return isSlotted(pg.getData());
+    }
+
+    private static boolean isSlotted(byte[] raw) {
+        return (raw[OF_FORMAT] & 0x80) != 0;
     }
 
     /**
@@ -44,46 +75,182 @@ public class PageX {
         return getFSO(pg.getData());
     }
 
+    private static short getFSO(byte[] raw) {
+        return readShort(raw, isSlotted(raw) ? OF_FREE : LEGACY_OF_FREE);
+    }
 
+    private static short getSlotCount(byte[] raw) {
+        return readShort(raw, OF_SLOT_COUNT);
+    }
 
-    //解析raw数组的前2个字节，并得出偏移量
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int slotPosition(int slot) {
+        return PageCache.PAGE_SIZE - SLOT_SIZE * (slot + 1);
     }
 
     /**
-     * 将byte数组raw中的数据，插入pg中，返回数据插入的位置。
-     * 比如原本该page的offset为1026，传入一个长度为20的raw数组，
-     * 则将raw数组的数据追加到page的[1026,1045]中，并且返回1026。
+     * 获取下一次insert将要分配的槽号，用于在插入前生成insertLog。
+     * @param pg
+     * @return
+     */
+    public static short getNextSlot(Page pg) {
+        return getSlotCount(pg.getData());
+    }
+
+    /**
+     * 将uid的低16位解析成DataItem在页内的offset。
+     * 槽页中低16位是槽号，需要查槽目录；旧格式的页中低16位就是offset。
+     * @param pg
+     * @param slot uid的低16位
+     * @return DataItem的offset，槽不存在或者已经被回收时返回0。
+     */
+    public static short getItemOffset(Page pg, short slot) {
+        byte[] raw = pg.getData();
+        if (!isSlotted(raw)) {
+            return slot;
+        }
+        if (slot < 0 || slot >= getSlotCount(raw)) {
+            return 0;
+        }
+        return readShort(raw, slotPosition(slot));
+    }
+
+    /**
+     * 将byte数组raw中的数据追加到pg的数据区，并为其分配一个新的槽，返回槽号。
      * 具体步骤：
      * 1.将该页设置为脏页
-     * 2.获取该页现在的offset
-     * 3.调用System.arraycopy()方法，将raw数组的数据追加到页的数据区
-     * 4.修改页的FSO
+     * 2.将raw追加到FSO处，并修改FSO
+     * 3.在槽目录末尾追加一个槽，记录raw的offset
+     * 调用方需要保证getFreeSpace(pg) >= raw.length。
      * @param pg
      * @param raw
-     * @return
+     * @return 分配的槽号
      */
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short) (offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        short offset = getFSO(data);
+        short slot = getSlotCount(data);
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        writeShort(data, OF_FREE, (short) (offset + raw.length));
+        writeShort(data, slotPosition(slot), offset);
+        writeShort(data, OF_SLOT_COUNT, (short) (slot + 1));
+        return slot;
+    }
+
+    /**
+     * 计算从raws的第from个开始，最多有多少个连续的DataItem能一起插入pg，每个DataItem都需要额外占用一个槽。
+     * @param pg
+     * @param raws
+     * @param from
+     * @return 能插入的个数，旧格式的页返回0。
+     */
+    public static int getFitCount(Page pg, List<byte[]> raws, int from) {
+        byte[] data = pg.getData();
+        if (!isSlotted(data)) {
+            return 0;
+        }
+        int free = PageCache.PAGE_SIZE - getFSO(data) - SLOT_SIZE * getSlotCount(data);
+        int count = 0;
+        for (int i = from; i < raws.size(); i++) {
+            free -= raws.get(i).length + SLOT_SIZE;
+            if (free < 0) {
+                break;
+            }
+            count++;
+        }
+        return count;
     }
 
     /**
-     * 获取数据页空闲空间的大小。
-     * 数据页空闲空间的大小 = 页的总大小 - FSO
+     * 将多个首尾相接的DataItem一次性追加到pg的数据区，并为每个DataItem分配一个连续的槽。
+     * 调用方需要先通过getFitCount保证空间足够。
+     * @param pg
+     * @param packed 首尾相接的DataItem，每个DataItem的长度可以从它自己的DataSize解析出来
+     * @return 第一个DataItem的槽号，之后的DataItem槽号依次加1
+     */
+    public static short insertBatch(Page pg, byte[] packed) {
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        short offset = getFSO(data);
+        short firstSlot = getSlotCount(data);
+        System.arraycopy(packed, 0, data, offset, packed.length);
+        short slot = firstSlot;
+        for (int pos = 0; pos < packed.length; pos += DataItem.getRawLength(packed, pos)) {
+            writeShort(data, slotPosition(slot), (short) (offset + pos));
+            slot++;
+        }
+        writeShort(data, OF_FREE, (short) (offset + packed.length));
+        writeShort(data, OF_SLOT_COUNT, slot);
+        return firstSlot;
+    }
+
+    /**
+     * 获取数据页还能插入的最大DataItem长度。
+     * 槽页：PAGE_SIZE - FSO - 已有槽目录 - 新数据的槽。旧格式的页不再插入数据，返回0。
      * @param pg
      * @return
      */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg);
+        byte[] raw = pg.getData();
+        if (!isSlotted(raw)) {
+            return 0;
+        }
+        int free = PageCache.PAGE_SIZE - getFSO(raw) - SLOT_SIZE * (getSlotCount(raw) + 1);
+        return Math.max(free, 0);
     }
 
     /**
-     * 该方法在数据库崩溃后重新打开时，恢复例程直接插入数据到页。
+     * 页内整理：回收所有被逻辑删除的DataItem，并把剩余的DataItem紧凑地移动到数据区开头。
+     * 被回收的DataItem对应的槽置为0，其他槽改为新的offset，槽号不变。
+     * 该方法不修改pg，只返回整理后的页面镜像，调用方记录日志后再通过recoverImage写回。
+     * @param pg 槽页，调用方需要持有页锁，并保证没有DataItem对象引用该页。
+     * @return 整理后的页面镜像，如果没有可以回收的空间则返回null。
+     */
+    public static byte[] compact(Page pg) {
+        byte[] raw = pg.getData();
+        short slotCount = getSlotCount(raw);
+        List<int[]> live = new ArrayList<>();
+        byte[] image = Arrays.copyOf(raw, raw.length);
+        for (int slot = 0; slot < slotCount; slot++) {
+            short offset = readShort(raw, slotPosition(slot));
+            if (offset == 0) {
+                continue;
+            }
+            if (DataItem.isRawValid(raw, offset)) {
+                live.add(new int[]{offset, slot});
+            } else {
+                writeShort(image, slotPosition(slot), (short) 0);
+            }
+        }
+        live.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        int fso = OF_DATA;
+        for (int[] item : live) {
+            int length = DataItem.getRawLength(raw, item[0]);
+            System.arraycopy(raw, item[0], image, fso, length);
+            writeShort(image, slotPosition(item[1]), (short) fso);
+            fso += length;
+        }
+        if (fso == getFSO(raw)) {
+            return null;
+        }
+        Arrays.fill(image, fso, getFSO(raw), (byte) 0);
+        writeShort(image, OF_FREE, (short) fso);
+        return image;
+    }
+
+    /**
+     * 用image整体覆盖pg的数据，用于页内整理以及恢复例程重放整理日志。
+     * @param pg
+     * @param image
+     */
+    public static void recoverImage(Page pg, byte[] image) {
+        pg.setDirty(true);
+        System.arraycopy(image, 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+    }
+
+    /**
+     * 该方法在数据库崩溃后重新打开时，恢复例程直接插入数据到旧格式的页。
      * 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset。
      * @param pg
      * @param raw
@@ -93,9 +260,34 @@ public class PageX {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
 
-        short rawFSO = getFSO(pg.getData());
+        short rawFSO = readShort(pg.getData(), LEGACY_OF_FREE);
         if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset + raw.length));
+            writeShort(pg.getData(), LEGACY_OF_FREE, (short)(offset + raw.length));
+        }
+    }
+
+    /**
+     * 该方法在数据库崩溃后重新打开时，恢复例程直接插入数据到槽页。
+     * 将raw写入offset位置并让第slot个槽指向它，同时把FSO和槽数量设置为较大的值。
+     * 截断后重新生成的页全部为0，此时先初始化成空槽页。
+     * @param pg
+     * @param raw
+     * @param slot
+     * @param offset
+     */
+    public static void recoverInsert(Page pg, byte[] raw, short slot, short offset) {
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        if (!isSlotted(data)) {
+            initSlotted(data);
+        }
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        writeShort(data, slotPosition(slot), offset);
+        if (getSlotCount(data) <= slot) {
+            writeShort(data, OF_SLOT_COUNT, (short) (slot + 1));
+        }
+        if (getFSO(data) < offset + raw.length) {
+            writeShort(data, OF_FREE, (short) (offset + raw.length));
         }
     }
 
@@ -110,4 +302,12 @@ public class PageX {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    private static short readShort(byte[] raw, int offset) {
+        return Codec.getShort(raw, offset);
+    }
+
+    private static void writeShort(byte[] raw, int offset, short value) {
+        Codec.putShort(raw, offset, value);
+    }
 }
@@ -0,0 +1,180 @@
+package top.wuzonghui.simpledb.backend.dm.pageindex;
+
+import top.wuzonghui.simpledb.backend.utils.Panic;
+import top.wuzonghui.simpledb.common.Error;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Starry
+ * @create 2023-02-02-3:10 PM
+ * @Describe 空闲空间表(Free Space Map)，对应一个.fsm文件，为每一个数据页记录1个字节的空闲空间等级。
+ * 启动的时候只需要读取这个文件就可以重建PageIndex，而不需要把.db文件中的每一页都读一遍。
+ * @Detail
+ * 1.第pgno个字节记录第pgno页的空闲空间等级，等级 = freeSpace / PageIndex.THRESHOLD，取值范围为[0,40]。
+ * 由于是向下取整，从等级还原出的空闲空间一定不大于实际的空闲空间，因此按照该值分配空间不会越界。
+ * 2.运行期间只修改内存中的副本，在DataManager正常关闭时整体写回文件(先写.fsm_tmp再move，保证原子性)。
+ * 3.文件不受日志保护：如果上次没有正常关闭(第一页校验失败)，则该文件作废，由DataManager扫描所有页重建。
+ * 4.如果文件覆盖的页数少于.db文件的页数(比如旧版本创建的数据库没有.fsm文件)，缺少的部分同样通过扫描页补齐。
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+
+    private String path;
+
+    private Lock lock;
+
+    /**
+     * levels[pgno]为第pgno页的空闲空间等级，size为已经记录的页数(包含第0页和第一页这两个占位)。
+     */
+    private byte[] levels;
+    private int size;
+
+    private FreeSpaceMap(String path, byte[] levels) {
+        this.path = path;
+        this.lock = new ReentrantLock();
+        this.levels = levels.length == 0 ? new byte[16] : levels;
+        this.size = levels.length;
+    }
+
+    /**
+     * 创建新的.fsm文件，文件已存在则panic。
+     * @param path
+     * @return
+     */
+    public static FreeSpaceMap create(String path) {
+        removeBadTmp(path);
+        File file = new File(path + FSM_SUFFIX);
+        try {
+            if (!file.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (!file.canWrite() || !file.canRead()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return new FreeSpaceMap(path, new byte[0]);
+    }
+
+    /**
+     * 打开已有的.fsm文件并读入内存。文件不存在时(旧版本的数据库)返回一个空表，由调用方扫描页补齐。
+     * @param path
+     * @return
+     */
+    public static FreeSpaceMap open(String path) {
+        removeBadTmp(path);
+        File file = new File(path + FSM_SUFFIX);
+        if (!file.exists()) {
+            return new FreeSpaceMap(path, new byte[0]);
+        }
+        if (!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        byte[] levels = null;
+        try {
+            levels = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(path, levels);
+    }
+
+    private static void removeBadTmp(String path) {
+        new File(path + FSM_TMP_SUFFIX).delete();
+    }
+
+    /**
+     * 记录第pgno页当前的空闲空间大小。
+     * @param pgno
+     * @param freeSpace
+     */
+    public void set(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            if (pgno >= levels.length) {
+                levels = Arrays.copyOf(levels, Math.max(levels.length << 1, pgno + 1));
+            }
+            levels[pgno] = (byte) (freeSpace / PageIndex.THRESHOLD);
+            if (pgno >= size) {
+                size = pgno + 1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取第pgno页空闲空间的下界。
+     * @param pgno
+     * @return
+     */
+    public int get(int pgno) {
+        lock.lock();
+        try {
+            return levels[pgno] * PageIndex.THRESHOLD;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 表中记录的页数，页号小于该值的页都有记录。
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃所有记录，用于崩溃恢复后重建。
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            Arrays.fill(levels, (byte) 0);
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 将内存中的表写回.fsm文件，和Booter一样先写临时文件再move，保证不会留下写了一半的文件。
+     */
+    public void flush() {
+        byte[] data;
+        lock.lock();
+        try {
+            data = Arrays.copyOf(levels, size);
+        } finally {
+            lock.unlock();
+        }
+        File tmp = new File(path + FSM_TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
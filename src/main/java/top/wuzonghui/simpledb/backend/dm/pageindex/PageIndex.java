@@ -3,7 +3,9 @@ package top.wuzonghui.simpledb.backend.dm.pageindex;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -27,13 +29,24 @@ public class PageIndex {
     /**
      * 每个区间的大小
      */
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+
+    /**
+     * select一定能找到合适页面的最大空间。更大的请求落在最后一个区间中，该区间中的页不一定放得下，多次select失败后插入会报DatabaseBusy。
+     */
+    public static final int MAX_SELECT_SIZE = INTERVALS_NO * THRESHOLD - 1;
 
     private Lock lock;
     private List<PageInfo>[] lists;
 
+    /**
+     * 通过update重新登记过的页的版本号，该页版本号更小的PageInfo在select时直接丢弃。
+     */
+    private Map<Integer, Integer> generations;
+
     public PageIndex() {
         lock = new ReentrantLock();
+        generations = new HashMap<>();
         lists = new List[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i++) {
             lists[i] = new ArrayList<>();
@@ -58,8 +71,10 @@ public class PageIndex {
                 if (list.size() == 0) {
                     index++;
                 } else {
-                    PageInfo pageInfo = list.get(0);
-                    list.remove(0);
+                    PageInfo pageInfo = list.remove(0);
+                    if (pageInfo.generation < generations.getOrDefault(pageInfo.pgno, 0)) {
+                        continue;
+                    }
                     return pageInfo;
                 }
             }
@@ -82,7 +97,25 @@ public class PageIndex {
         try {
             //index代表这些剩余的freeSpace，能凑出多少个区间。
             int index = freeSpace / THRESHOLD;
-            lists[index].add(new PageInfo(pgno, freeSpace));
+            PageInfo pageInfo = new PageInfo(pgno, freeSpace);
+            pageInfo.generation = generations.getOrDefault(pgno, 0);
+            lists[index].add(pageInfo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 页内整理后重新登记第pgno页的空闲空间。
+     * 和add不同，该页之前登记的PageInfo都会作废，避免同一页在lists中残留多条过时的记录。
+     * @param pgno 页号
+     * @param freeSpace 该页整理后的空闲空间大小
+     */
+    public void update(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            generations.merge(pgno, 1, Integer::sum);
+            add(pgno, freeSpace);
         } finally {
             lock.unlock();
         }
@@ -15,6 +15,11 @@ public class PageInfo {
      */
     public int freespace;
 
+    /**
+     * 登记时该页在PageIndex中的版本，小于当前版本说明登记的空闲空间已经过时。
+     */
+    int generation;
+
     public PageInfo(int pgno, int freespace) {
         this.pgno = pgno;
         this.freespace = freespace;
@@ -4,7 +4,8 @@ import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
-import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.backend.utils.Codec;
+import top.wuzonghui.simpledb.common.Error;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,6 +17,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author Starry
  * @create 2023-01-04-1:45 PM
  * @Describe B+树。
+ * @Detail key是任意长度的字节串，按无符号字节的字典序比较，long类型的key通过Codec.sortableLong编码。
+ * bootDataItem的格式为[RootUid,8byte][Balance,2byte]，Balance决定了节点的大小(见Node)，在创建时确定之后不再改变。
+ * 旧版本的bootDataItem只有RootUid，加载时按Node.LEGACY_BALANCE_NUMBER处理。
+ * 节点可能因为删除而被合并回收(见Node.mergeChild)，查找、插入和删除遇到被合并的节点时从根重新开始。根节点不会被合并，树的高度不会降低。
  */
 public class BPlusTree {
     /**
@@ -41,23 +46,71 @@ public class BPlusTree {
     Lock bootLock;
 
     /**
-     * 创建一颗B+树。
+     * 根节点的uid，和bootDataItem中记录的一致。查找和插入不加锁直接读取，只有换根时在bootLock下修改。
+     */
+    volatile long root;
+
+    /**
+     * 该B+树节点的balance，节点的key达到2 * balance个时分裂。
+     */
+    int balance;
+
+    private static final int BOOT_OF_ROOT = 0;
+    private static final int BOOT_OF_BALANCE = BOOT_OF_ROOT + 8;
+    private static final int BOOT_SIZE = BOOT_OF_BALANCE + 2;
+
+    /**
+     * 最小的key，空字节串小于任何其他key。
+     */
+    private static final byte[] MIN_KEY = new byte[0];
+
+    /**
+     * 创建一颗B+树，节点大小为一页。
      * @param dm DataManager对象。
      * @return 返回该B+树的bootDataItem的uid。
      * @throws Exception
      */
     public static long create(DataManager dm) throws Exception {
+        return create(dm, Node.MAX_BALANCE_NUMBER);
+    }
+
+    /**
+     * 以指定的balance创建一颗B+树。
+     * @param dm DataManager对象。
+     * @param balance 节点的balance，取值范围是[2, Node.MAX_BALANCE_NUMBER]。
+     * @return 返回该B+树的bootDataItem的uid。
+     * @throws Exception balance超出范围时抛出InvalidFanoutException。
+     */
+    public static long create(DataManager dm, int balance) throws Exception {
+        if (balance < 2 || balance > Node.MAX_BALANCE_NUMBER) {
+            throw Error.InvalidFanoutException;
+        }
         //新建一个node的byte数组。[LeafFlag,1byte][KeyNumber,2byte][SiblingUid,8byte]
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(balance);
         //以超级事务,将rawRoot插入到数据库中，即B+树的RootNode，得到RootNode所在DataItem的uid。
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        //将RootNode所在DataItem的uid插入到数据库中，即B+树的bootDataItem，返回该dataItem的uid。
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return createBoot(dm, rootUid, balance);
+    }
+
+    /**
+     * 为已经建好的根节点创建bootDataItem。
+     * @param dm DataManager对象。
+     * @param rootUid 根节点的uid。
+     * @param balance 节点的balance。
+     * @return 返回该B+树的bootDataItem的uid。
+     * @throws Exception
+     */
+    static long createBoot(DataManager dm, long rootUid, int balance) throws Exception {
+        //将RootNode所在DataItem的uid和balance插入到数据库中，即B+树的bootDataItem，返回该dataItem的uid。
+        byte[] boot = new byte[BOOT_SIZE];
+        Codec.putLong(boot, BOOT_OF_ROOT, rootUid);
+        Codec.putShort(boot, BOOT_OF_BALANCE, (short) balance);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
     }
 
 
     /**
-     * 通过bootDataItem的uid和DataManager对象，加载一颗B+树。
+     * 通过bootDataItem的uid和DataManager对象，加载一颗B+树。旧格式(8字节long作为key)的B+树会被重建为当前格式。
      * @param bootUid bootDataItem的uid
      * @param dm DataManager对象
      * @return 加载出的B+树对象。
@@ -71,27 +124,88 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.balance = sa.end - sa.start >= BOOT_SIZE
+                ? Codec.getShort(sa.raw, sa.start + BOOT_OF_BALANCE) : Node.LEGACY_BALANCE_NUMBER;
+        t.root = Codec.getLong(sa.raw, sa.start + BOOT_OF_ROOT);
+        Node root = Node.loadNode(t, t.root);
+        boolean legacy;
+        try {
+            legacy = !Node.getRawIsVarKey(root.raw);
+        } finally {
+            root.release();
+        }
+        if (legacy) {
+            t.upgrade();
+        }
         return t;
     }
 
     /**
-     * 获取rootNode的uid。
-     * @return uid of rootNode。
+     * 旧格式节点的son-key对：[Son,8byte][Key,8byte]，紧跟在11字节的节点头之后。
      */
-    private long rootUid() {
-        /*
-            提示：从bootDataItem里解析即可，读bootDataItem也需要上锁。
-         */
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
-        } finally {
-            bootLock.unlock();
+    private static final int LEGACY_HEADER_SIZE = 11;
+    private static final int LEGACY_ENTRY_SIZE = 16;
+
+    /**
+     * @Describe 把旧格式的B+树重建为当前格式。
+     * @Detail 沿着最左侧的节点下降到叶子节点，顺着SiblingUid读出所有的(key, uid)，key编码为Codec.sortableLong，
+     * 用BulkLoader建出新的节点后把bootDataItem中的RootUid改为新的根节点，最后回收所有旧的节点。
+     * 旧格式下balance可能超过当前格式一页能放下的最大值，此时改为Node.MAX_BALANCE_NUMBER。
+     * 只在加载时执行，此时没有其他线程访问这颗树。
+     */
+    private void upgrade() throws Exception {
+        BulkLoader loader = BulkLoader.newBulkLoader();
+        List<Long> oldNodes = new ArrayList<>();
+        long first = root;
+        boolean leafLevel = false;
+        while (!leafLevel) {
+            long next = 0;
+            long cur = first;
+            while (cur != 0) {
+                Node node = Node.loadNode(this, cur);
+                if (node == null) {
+                    break;
+                }
+                long sibling;
+                try {
+                    SubArray raw = node.raw;
+                    int noKeys = Node.getRawNoKeys(raw);
+                    leafLevel = node.isLeaf();
+                    for (int i = 0; i < noKeys; i++) {
+                        int offset = raw.start + LEGACY_HEADER_SIZE + i * LEGACY_ENTRY_SIZE;
+                        long son = Codec.getLong(raw.raw, offset);
+                        if (leafLevel) {
+                            loader.add(Codec.getLong(raw.raw, offset + 8), son);
+                        } else if (i == 0) {
+                            next = son;
+                        }
+                    }
+                    sibling = Node.getRawSibling(raw);
+                } finally {
+                    node.release();
+                }
+                oldNodes.add(cur);
+                cur = sibling;
+            }
+            first = next;
+        }
+        boolean withBalance = bootDataItem.data().end - bootDataItem.data().start >= BOOT_SIZE;
+        balance = Math.min(balance, Node.MAX_BALANCE_NUMBER);
+        long newRoot = loader.buildRoot(dm, balance, BulkLoader.DEFAULT_FILL_FACTOR);
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        Codec.putLong(diRaw.raw, diRaw.start + BOOT_OF_ROOT, newRoot);
+        if (withBalance) {
+            Codec.putShort(diRaw.raw, diRaw.start + BOOT_OF_BALANCE, (short) balance);
+        }
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        root = newRoot;
+        for (long uid : oldNodes) {
+            dm.free(TransactionManagerImpl.SUPER_XID, uid);
         }
     }
 
-
     /**
      * 根据指定key，搜索数据。
      * @param key 指定的key。
@@ -110,38 +224,194 @@ public class BPlusTree {
      * @throws Exception
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        //获取rootNode的uid。
-        long rootUid = rootUid();
-        //找到leftKey所在的叶子节点的uid。
-        long leafUid = searchLeaf(rootUid, leftKey);
+        if (leftKey > rightKey) {
+            return new ArrayList<>();
+        }
+        return searchRange(Codec.sortableLong(leftKey),
+                rightKey == Long.MAX_VALUE ? null : Codec.sortableLong(rightKey + 1), null);
+    }
+
+    /**
+     * 搜索和key完全相同的数据。
+     * @param key 字节串形式的key。
+     * @return List<Long> uids，存储uid。
+     * @throws Exception
+     */
+    public List<Long> search(byte[] key) throws Exception {
+        //比key大的最小的字节串是key后面接一个0x00
+        return searchRange(key, Arrays.copyOf(key, key.length + 1), null);
+    }
+
+    /**
+     * @Describe 范围搜索，范围为key属于[leftKey, rightKey)，key按无符号字节的字典序比较。
+     * @param leftKey 左范围(包含)，为null时没有左边界。
+     * @param rightKey 右范围(不包含)，为null时没有右边界。
+     * @param keysOut 不为null时，按顺序放入和返回的uid一一对应的key。
+     * @return List<Long> uids，存储了所有在范围里的数据的uid。
+     * @throws Exception
+     */
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey, List<byte[]> keysOut) throws Exception {
         List<Long> uids = new ArrayList<>();
-        while (true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
+        try (RangeCursor cursor = cursor(leftKey, rightKey, keysOut != null)) {
+            while (cursor.next()) {
+                uids.add(cursor.uid());
+                if (keysOut != null) {
+                    keysOut.add(cursor.key());
+                }
             }
         }
         return uids;
     }
 
+    /**
+     * @Describe 创建一个范围为[leftKey, rightKey)的游标，逐个叶子节点读取结果，见RangeCursor。
+     * @param leftKey 左范围(包含)，为null时没有左边界。
+     * @param rightKey 右范围(不包含)，为null时没有右边界。
+     * @param withKeys 是否需要读取每个uid对应的key。
+     * @return 游标，用完后close。
+     */
+    public RangeCursor cursor(byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        return new RangeCursor(this, leftKey == null ? MIN_KEY : leftKey, rightKey, withKeys);
+    }
+
+    public void insert(long key, long uid) throws Exception {
+        insert(Codec.sortableLong(key), uid);
+    }
+
     /**
      * @Describe 向该B+树中插入son,key组合。
      * @param key 待插入的key。
      * @param uid 待插入的son。(uid)
+     * @throws Exception key的长度超过节点能放下的上限时抛出KeyTooLongException。
+     * @Detail
+     * 1.从根节点下降到叶子节点，记录每一层经过的节点。下降过程中不加锁，只在读节点时乐观读。
+     * 2.在叶子节点插入，如果叶子节点分裂，就把新节点插入到上一层记录的节点，直到某一层不再分裂。
+     * 插入时节点可能已经被其他线程分裂，insertAndSplit会沿着SiblingUid向右找到正确的节点，因此记录的节点只是起点。
+     * 3.最上层的节点分裂时需要换根。如果分裂的节点已经不是根，说明其他线程已经换过根(或者正在换根)，
+     * 重新从根下降，把新节点插入到分裂节点的上一层。
+     */
+    public void insert(byte[] key, long uid) throws Exception {
+        if (key.length > maxKeySize()) {
+            throw Error.KeyTooLongException;
+        }
+        List<Long> path = descend(key);
+        long son = uid;
+        byte[] sepKey = key;
+        //插入上一层时，son是splitNode分裂出的新节点
+        long splitNode = 0;
+        //level是(son, sepKey)要插入的层，叶子节点为第0层
+        int level = 0;
+        while (true) {
+            int i = path.size() - 1 - level;
+            if (i >= 0) {
+                InsertRes res = insertAndSplit(path.get(i), son, sepKey, splitNode);
+                if (res == null) {
+                    //节点被合并了，重新下降，之后在同一层的节点中继续插入
+                    path = descend(key);
+                    continue;
+                }
+                if (res.newNode == 0) {
+                    return;
+                }
+                son = res.newNode;
+                sepKey = res.newKey;
+                splitNode = res.splitNode;
+                level++;
+                if (i == 0 && updateRootUid(res.splitNode, son, sepKey)) {
+                    return;
+                }
+                continue;
+            }
+            //分裂的节点不是根，重新下降直到树长高，上一层出现在路径中
+            List<Long> newPath = descend(key);
+            if (newPath.size() <= path.size()) {
+                Thread.yield();
+            }
+            path = newPath;
+        }
+    }
+
+    /**
+     * 该B+树能存放的key的最大长度。
+     */
+    public int maxKeySize() {
+        return Node.maxKeySize(Node.nodeSize(balance));
+    }
+
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(Codec.sortableLong(key), uid);
+    }
+
+    /**
+     * @Describe 从该B+树中删除son,key组合。
+     * @param key 待删除的key。
+     * @param uid 待删除的son。(uid)
+     * @return 是否找到并删除了该组合。
      * @throws Exception
+     * @Detail
+     * 1.从根节点下降到可能包含key的最左侧的叶子节点，重复的key可能跨越多个叶子节点，没找到时沿着SiblingUid向右查找。
+     * 2.删除后叶子节点的key过少(见Node.needMerge)时，尝试和同一个父节点下相邻的节点合并，被合并掉的节点随后回收。
+     * 合并后父节点的key也过少时，继续在上一层合并。
+     * 父节点取自下降时记录的路径，如果节点已经不在该父节点下(分裂或者向右移动过)，就放弃这次合并，之后的删除还会再尝试。
      */
-    public void insert(long key, long uid) throws Exception {
-        //获取rootNode的uid。
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if (res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+    public boolean delete(byte[] key, long uid) throws Exception {
+        retry:
+        while (true) {
+            List<Long> path = descend(key);
+            long leafUid = path.get(path.size() - 1);
+            while (true) {
+                Node leaf = Node.loadNode(this, leafUid);
+                if (leaf == null) {
+                    continue retry;
+                }
+                Node.DeleteRes res;
+                try {
+                    res = leaf.delete(uid, key);
+                } finally {
+                    leaf.release();
+                }
+                if (res.dead) {
+                    continue retry;
+                }
+                if (res.found) {
+                    if (res.underflow) {
+                        path.set(path.size() - 1, leafUid);
+                        merge(path);
+                    }
+                    return true;
+                }
+                if (res.siblingUid == 0) {
+                    return false;
+                }
+                leafUid = res.siblingUid;
+            }
+        }
+    }
+
+    /**
+     * 从路径的最后一个节点开始，尝试和同一个父节点下相邻的节点合并，并回收被合并掉的节点。父节点的key过少时继续向上合并。
+     * @param path 从根到需要合并的节点的路径。
+     */
+    private void merge(List<Long> path) throws Exception {
+        for (int i = path.size() - 1; i > 0; i--) {
+            Node parent = Node.loadNode(this, path.get(i - 1));
+            if (parent == null) {
+                return;
+            }
+            Node.MergeRes res;
+            try {
+                res = parent.mergeChild(path.get(i));
+            } finally {
+                parent.release();
+            }
+            if (res.freed == 0) {
+                return;
+            }
+            //此时已经没有任何节点指向它，之后读到它的线程都会从根重新开始
+            dm.free(TransactionManagerImpl.SUPER_XID, res.freed);
+            if (!res.underflow) {
+                return;
+            }
         }
     }
 
@@ -149,138 +419,185 @@ public class BPlusTree {
         bootDataItem.release();
     }
 
+    /**
+     * 回收整颗B+树：从根开始，沿着每一层最左边的节点向下，顺着sibling回收该层的所有节点，最后回收bootDataItem。
+     * 调用者保证此时已经没有其他线程使用这颗树。
+     */
+    public void drop() throws Exception {
+        long first = root;
+        while (first != 0) {
+            long next = 0;
+            long cur = first;
+            while (cur != 0) {
+                Node node = Node.loadNode(this, cur);
+                if (node == null) {
+                    break;
+                }
+                long sibling;
+                try {
+                    if (next == 0 && !node.isLeaf()) {
+                        next = Node.getRawKthSon(node.raw, 0);
+                    }
+                    sibling = Node.getRawSibling(node.raw);
+                } finally {
+                    node.release();
+                }
+                dm.free(TransactionManagerImpl.SUPER_XID, cur);
+                cur = sibling;
+            }
+            first = next;
+        }
+        bootDataItem.release();
+        dm.free(TransactionManagerImpl.SUPER_XID, bootUid);
+    }
+
 
     /**
-     * @Describe 更新bootDataItem中根节点的uid。因为更新RootNode，一定是RootNode分裂，所以一定是有两个子节点。
-     * @param left 根节点的左子节点。
-     * @param right 根节点的右子节点。
-     * @param rightKey
+     * @Describe 根节点分裂后换根。新的根节点有两个子节点：原来的根节点和分裂出的新节点。
+     * @param left 分裂的节点，只有它仍然是根节点时才换根。
+     * @param right 分裂出的新节点。
+     * @param rightKey right的第一个key。
+     * @return true：换根成功。false：left已经不是根节点。
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private boolean updateRootUid(long left, long right, byte[] rightKey) throws Exception {
         bootLock.lock();
         try {
+            if (root != left) {
+                return false;
+            }
             //生成新的根节点的数据的byte数组。
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
             //将byte数组插入到dataItem中。得到该dataItem的uid。
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             //将bootDataItem的data改为新的uid。
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            Codec.putLong(diRaw.raw, diRaw.start + BOOT_OF_ROOT, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            root = newRootUid;
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
     /**
-     * 从指定node出发，根据key找到叶子节点。
-     * @param nodeUid node的uid。
+     * 从根节点出发，根据key找到可能包含key的最左侧的叶子节点。
      * @param key 通过key定位路线。
      * @return 根据key找到的叶子节点的uid。
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        //加载出node。
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if (isLeaf) {
-            //如果该节点是叶子节点，那简单了,直接返回该节点的uid即可。
-            return nodeUid;
-        } else {
-            //如果该节点不是叶子节点，就要递归往下找直到找到叶子节点，往当前节点的哪个子节点找取决于key。
-            //next是下一个要找的节点。
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    long searchLeaf(byte[] key) throws Exception {
+        long nodeUid = root;
+        while (true) {
+            //每一层只加载一次节点，同时判断是否是叶子节点并找到下一步要搜寻的节点。
+            Node node = Node.loadNode(this, nodeUid);
+            if (node == null) {
+                //节点已经被合并回收，从根重新下降
+                nodeUid = root;
+                continue;
+            }
+            Node.SearchNextRes res;
+            try {
+                if (node.isLeaf()) {
+                    return nodeUid;
+                }
+                res = node.searchNext(key);
+            } finally {
+                node.release();
+            }
+            if (res.dead) {
+                nodeUid = root;
+                continue;
+            }
+            //res的uid为0说明要继续在兄弟节点中找。
+            nodeUid = res.uid != 0 ? res.uid : res.siblingUid;
         }
     }
 
     /**
-     * 从指定node出发，返回要搜索指定key，下一步需要搜寻的node的uid。
-     * @param nodeUid 从指定的node出发。
-     * @param key 搜索指定key
-     * @return 下一步要搜寻的node的uid。
+     * 从根节点出发，根据key下降到叶子节点，记录每一层最后经过的节点。
+     * @param key 通过key定位路线。
+     * @return 从根到叶子的节点uid，第0个是根节点，最后一个是叶子节点。
      * @throws Exception
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private List<Long> descend(byte[] key) throws Exception {
+        List<Long> path = new ArrayList<>();
+        long nodeUid = root;
+        path.add(nodeUid);
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.SearchNextRes res = node.searchNext(key);
-            node.release();
-            //如果res的uid不等于0，则说明找到了下一步搜索的node，返回。
-            if (res.uid != 0) return res.uid;
-            //如果uid=0，则说明下一步搜索的node是当前节点的兄弟节点。
-            nodeUid = res.siblingUid;
+            Node.SearchNextRes res = null;
+            if (node != null) {
+                try {
+                    if (node.isLeaf()) {
+                        return path;
+                    }
+                    res = node.searchNext(key);
+                } finally {
+                    node.release();
+                }
+            }
+            if (res == null || res.dead) {
+                //节点已经被合并回收，从根重新下降
+                path.clear();
+                nodeUid = root;
+                path.add(nodeUid);
+                continue;
+            }
+            if (res.uid != 0) {
+                //下降一层
+                nodeUid = res.uid;
+                path.add(nodeUid);
+            } else {
+                //同一层向右移动
+                nodeUid = res.siblingUid;
+                path.set(path.size() - 1, nodeUid);
+            }
         }
     }
 
     class InsertRes {
-        long newNode, newKey;
-    }
-
+        long newNode;
+        byte[] newKey;
 
-    /**
-     * 在指定Node的位置，插入son-key，如果指定节点不是叶子节点，就往下搜索直到搜索到叶子节点。
-     * @param nodeUid 当前所处节点的uid。
-     * @param uid 待插入的son(uid)。
-     * @param key 待插入的key。
-     * @return InsertRes对象。
-     * @throws Exception
-     */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        /*
-            coding：根据nodeUid获取节点。
-            如果是叶子节点，调用insertAndSplit。
-            否则根据key找到下层并递归调用，直到找到叶子节点为止。
+        /**
+         * 实际发生分裂的节点，可能是起点右侧的兄弟节点。
          */
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        InsertRes res = null;
-        if (isLeaf) {
-        //如果是叶子节点。
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            //如果不是叶子节点，找到下一层的node的uid，递归。
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if (ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
-            }
-        }
-        return res;
+        long splitNode;
     }
 
     /**
-     * 插入并分裂。
-     * @param nodeUid
+     * 插入并分裂。从nodeUid出发，如果key不属于该节点就沿着SiblingUid向右查找。
+     * @param nodeUid 起点
      * @param uid
      * @param key
-     * @return
+     * @param left 在内部节点中插入时，分裂出uid的节点，见Node.insertAndSplit。
+     * @return newNode不为0时说明节点发生了分裂，需要把(newNode, newKey)插入到上一层。节点已经被合并时返回null。
      * @throws Exception
      */
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, byte[] key, long left) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            if (node == null) {
+                return null;
+            }
+            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key, left);
             node.release();
 
+            if (iasr.dead) {
+                return null;
+            }
             if (iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.splitNode = nodeUid;
                 return res;
             }
         }
     }
-
-
 }
@@ -0,0 +1,507 @@
+package top.wuzonghui.simpledb.backend.im;
+
+import top.wuzonghui.simpledb.backend.common.SubArray;
+import top.wuzonghui.simpledb.backend.dm.DataManager;
+import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+import top.wuzonghui.simpledb.backend.utils.Codec;
+import top.wuzonghui.simpledb.common.Error;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * @author Starry
+ * @create 2023-02-20-4:05 PM
+ * @Describe 自底向上批量构建B+树。
+ * @Detail 逐条调用BPlusTree.insert建索引时，每一条都要从根下降到叶子，修改节点时整个节点的前后镜像写一条日志，还会不断分裂。
+ * BulkLoader先收集所有的(key, uid)，排序后直接按填充因子逐个生成叶子节点，再逐层生成内部节点，每个节点只通过dm.insert写入一次，
+ * 一个节点一条日志(默认的balance下一个节点就是一页)。
+ * 1.排序：内存中最多保存memoryPairs组(key, uid)，超过时排好序写入临时文件(一个有序段)，最后多路归并所有的有序段。
+ * 2.构建：节点的SiblingUid指向右侧的节点，因此按key从大到小、从右往左生成节点，写入每个节点时它右侧的节点已经有了uid。
+ * 3.每个节点的key的个数和按前缀压缩后占用的空间由填充因子决定，key长度相同时平均分配到各个节点中。
+ * 内部节点中每个子节点的key是能分开它和右侧相邻子节点的最短的key(见Node.separator)，每一层最右侧的子节点的key是正无穷，
+ * 和插入、分裂维护的结构一致，之后可以正常插入和删除。
+ * BulkLoader只能使用一次，构建过程中不能有其他线程访问这颗B+树。
+ */
+public class BulkLoader {
+    /**
+     * 默认的填充因子，留出一些空间给之后的插入，避免刚建好的索引一插入就分裂。
+     */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    /**
+     * 默认在内存中排序的(key, uid)组数，约16MB。
+     */
+    static final int DEFAULT_MEMORY_PAIRS = 1 << 20;
+
+    private final int memoryPairs;
+
+    private byte[][] keys;
+    private long[] uids;
+
+    /**
+     * 内存中的(key, uid)组数。
+     */
+    private int size;
+
+    /**
+     * 已经写入临时文件的有序段。
+     */
+    private final List<File> runs;
+
+    /**
+     * 一共收集了多少组(key, uid)。
+     */
+    private long count;
+
+    private BulkLoader(int memoryPairs) {
+        this.memoryPairs = memoryPairs;
+        this.keys = new byte[Math.min(memoryPairs, 1024)][];
+        this.uids = new long[keys.length];
+        this.runs = new ArrayList<>();
+    }
+
+    public static BulkLoader newBulkLoader() {
+        return new BulkLoader(DEFAULT_MEMORY_PAIRS);
+    }
+
+    /**
+     * @param memoryPairs 内存中最多保存的(key, uid)组数，超过时写入临时文件。
+     */
+    public static BulkLoader newBulkLoader(int memoryPairs) {
+        return new BulkLoader(Math.max(memoryPairs, 2));
+    }
+
+    public void add(long key, long uid) throws Exception {
+        add(Codec.sortableLong(key), uid);
+    }
+
+    /**
+     * 添加一组(key, uid)，不要求有序。
+     */
+    public void add(byte[] key, long uid) throws Exception {
+        if (size == keys.length) {
+            if (size == memoryPairs) {
+                spill();
+            } else {
+                int newLength = (int) Math.min((long) keys.length * 2, memoryPairs);
+                keys = Arrays.copyOf(keys, newLength);
+                uids = Arrays.copyOf(uids, newLength);
+            }
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size++;
+        count++;
+    }
+
+    /**
+     * 以默认的balance和填充因子构建B+树。
+     * @return 返回该B+树的bootDataItem的uid。
+     */
+    public long build(DataManager dm) throws Exception {
+        return build(dm, Node.MAX_BALANCE_NUMBER, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @Describe 用收集到的所有(key, uid)构建一颗B+树。
+     * @param dm DataManager对象。
+     * @param balance 节点的balance，取值范围是[2, Node.MAX_BALANCE_NUMBER]。
+     * @param fillFactor 填充因子，取值范围是(0, 1]，每个节点存放约fillFactor * 2 * balance个key，至多2 * balance - 1个，
+     * key占用的空间也不超过节点的fillFactor。
+     * @return 返回该B+树的bootDataItem的uid。
+     * @throws Exception balance超出范围时抛出InvalidFanoutException，填充因子超出范围时抛出InvalidFillFactorException，
+     * key过长时抛出KeyTooLongException。
+     */
+    public long build(DataManager dm, int balance, double fillFactor) throws Exception {
+        return BPlusTree.createBoot(dm, buildRoot(dm, balance, fillFactor), balance);
+    }
+
+    /**
+     * 构建所有节点，不创建bootDataItem。
+     * @return 根节点的uid。
+     */
+    long buildRoot(DataManager dm, int balance, double fillFactor) throws Exception {
+        if (balance < 2 || balance > Node.MAX_BALANCE_NUMBER) {
+            throw Error.InvalidFanoutException;
+        }
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw Error.InvalidFillFactorException;
+        }
+        Packer packer = new Packer(balance, fillFactor);
+        SortedPairs pairs = sortedPairs();
+        try {
+            if (count == 0) {
+                return dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw(balance));
+            }
+            Level level = buildLeaves(dm, packer, pairs);
+            while (level.size > 1) {
+                level = buildInternal(dm, packer, level);
+            }
+            return level.uids[0];
+        } finally {
+            pairs.close();
+        }
+    }
+
+    /**
+     * 一层节点的uid和每个节点子树中的第一个和最后一个key，从左到右排列。
+     */
+    private static class Level {
+        long[] uids = new long[16];
+        byte[][] firstKeys = new byte[16][];
+        byte[][] lastKeys = new byte[16][];
+        int size;
+
+        /**
+         * 从右往左生成节点，先得到的是右侧的节点，最后整体翻转。
+         */
+        void add(long uid, byte[] firstKey, byte[] lastKey) {
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, size * 2);
+                firstKeys = Arrays.copyOf(firstKeys, size * 2);
+                lastKeys = Arrays.copyOf(lastKeys, size * 2);
+            }
+            uids[size] = uid;
+            firstKeys[size] = firstKey;
+            lastKeys[size] = lastKey;
+            size++;
+        }
+
+        void reverse() {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                long u = uids[i];
+                uids[i] = uids[j];
+                uids[j] = u;
+                byte[] k = firstKeys[i];
+                firstKeys[i] = firstKeys[j];
+                firstKeys[j] = k;
+                k = lastKeys[i];
+                lastKeys[i] = lastKeys[j];
+                lastKeys[j] = k;
+            }
+        }
+
+        /**
+         * 第son个节点在上一层中的key：能分开它和右侧相邻节点的最短的key，最右侧的节点为正无穷。
+         */
+        byte[] separator(int son) {
+            return son + 1 < size ? Node.separator(lastKeys[son], firstKeys[son + 1]) : null;
+        }
+    }
+
+    /**
+     * @Describe 决定每个节点放多少组son-key。
+     * @Detail 还剩remaining组时，按个数上限需要nodes = remaining / perNode(向上取整)个节点，当前节点的目标是remaining / nodes(向上取整)组，
+     * key长度相同时各个节点的个数相差不超过1。key按前缀压缩后占用的空间达到节点的fillFactor时提前结束当前节点。
+     */
+    private static class Packer {
+        final int balance, perNode, maxKeySize;
+        final long byteBudget;
+
+        Packer(int balance, double fillFactor) {
+            this.balance = balance;
+            this.perNode = (int) Math.min(balance * 2 - 1, Math.max(2, (long) (balance * 2 * fillFactor)));
+            int capacity = Node.capacity(Node.nodeSize(balance));
+            this.byteBudget = Math.max((long) (capacity * fillFactor), 2L * (Node.SLOT_SIZE + Node.maxKeySize(Node.nodeSize(balance))));
+            this.maxKeySize = Node.maxKeySize(Node.nodeSize(balance));
+        }
+
+        int target(long remaining) {
+            long nodes = (remaining + perNode - 1) / perNode;
+            return (int) ((remaining + nodes - 1) / nodes);
+        }
+
+    }
+
+    /**
+     * 从右往左(key从大到小)放入一个节点的key时，节点按前缀压缩后占用的空间，和Node.encodedSize一致。
+     * key有序，公共前缀就是第一个放入的key和最后一个放入的key的公共前缀。
+     */
+    private static class NodeBytes {
+        private byte[] last;
+        private int count, prefix;
+        private long keyBytes, finiteKeys;
+
+        /**
+         * 再放入key后占用的空间，key为null时表示正无穷，只会是第一个放入的key。
+         */
+        long with(byte[] key) {
+            if (key == null) {
+                return size(count + 1, keyBytes, finiteKeys, prefix);
+            }
+            int p = last == null ? key.length : Math.min(prefix, Node.commonPrefix(last, key));
+            return size(count + 1, keyBytes + key.length, finiteKeys + 1, p);
+        }
+
+        void add(byte[] key) {
+            count++;
+            if (key != null) {
+                prefix = last == null ? key.length : Math.min(prefix, Node.commonPrefix(last, key));
+                last = key;
+                keyBytes += key.length;
+                finiteKeys++;
+            }
+        }
+
+        private static long size(int count, long keyBytes, long finiteKeys, int prefix) {
+            return (long) count * Node.SLOT_SIZE + keyBytes - finiteKeys * prefix + prefix;
+        }
+    }
+
+    /**
+     * 从右往左生成叶子节点，pairs按key从大到小给出。
+     */
+    private Level buildLeaves(DataManager dm, Packer packer, SortedPairs pairs) throws Exception {
+        Level level = new Level();
+        long[] sons = new long[packer.perNode];
+        byte[][] nodeKeys = new byte[packer.perNode][];
+        long remaining = count;
+        long sibling = 0;
+        //pending是已经读出、但还没有放进节点的一组
+        boolean pending = false;
+        while (remaining > 0) {
+            int target = packer.target(remaining);
+            //从数组末尾往前放，节点内的key升序
+            int k = sons.length;
+            NodeBytes bytes = new NodeBytes();
+            while (sons.length - k < target) {
+                if (!pending) {
+                    pairs.next();
+                    if (pairs.key.length > packer.maxKeySize) {
+                        throw Error.KeyTooLongException;
+                    }
+                    pending = true;
+                }
+                if (k < sons.length && bytes.with(pairs.key) > packer.byteBudget) {
+                    break;
+                }
+                k--;
+                sons[k] = pairs.uid;
+                nodeKeys[k] = pairs.key;
+                bytes.add(pairs.key);
+                pending = false;
+            }
+            SubArray raw = Node.newRaw(Node.nodeSize(packer.balance));
+            Node.writeRaw(raw, true, sibling, sons, nodeKeys, k, sons.length);
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            level.add(sibling, nodeKeys[k], nodeKeys[sons.length - 1]);
+            remaining -= sons.length - k;
+        }
+        level.reverse();
+        return level;
+    }
+
+    /**
+     * 从右往左生成上一层的内部节点。内部节点中每个子节点的key见Level.separator，最右侧的是正无穷。
+     * @param lower 下一层的节点。
+     */
+    private Level buildInternal(DataManager dm, Packer packer, Level lower) throws Exception {
+        Level level = new Level();
+        //end是当前节点之后第一个子节点的下标
+        int end = lower.size;
+        long sibling = 0;
+        while (end > 0) {
+            int target = packer.target(end);
+            int begin = end;
+            NodeBytes bytes = new NodeBytes();
+            List<byte[]> sepKeys = new ArrayList<>();
+            while (end - begin < target) {
+                byte[] key = lower.separator(begin - 1);
+                if (begin < end && bytes.with(key) > packer.byteBudget) {
+                    break;
+                }
+                bytes.add(key);
+                sepKeys.add(key);
+                begin--;
+            }
+            Collections.reverse(sepKeys);
+            SubArray raw = Node.newRaw(Node.nodeSize(packer.balance));
+            Node.writeRaw(raw, false, sibling, Arrays.copyOfRange(lower.uids, begin, end),
+                    sepKeys.toArray(new byte[0][]), 0, end - begin);
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            level.add(sibling, lower.firstKeys[begin], lower.lastKeys[end - 1]);
+            end = begin;
+        }
+        level.reverse();
+        return level;
+    }
+
+    /**
+     * 把内存中的(key, uid)排序后按从大到小的顺序写入一个临时文件。
+     */
+    private void spill() throws IOException {
+        sort(keys, uids, size);
+        File run = File.createTempFile("simpledb-bulk", ".run");
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (int i = size - 1; i >= 0; i--) {
+                out.writeShort(keys[i].length);
+                out.write(keys[i]);
+                out.writeLong(uids[i]);
+                keys[i] = null;
+            }
+        }
+        runs.add(run);
+        size = 0;
+    }
+
+    private static int compare(byte[] ka, long ua, byte[] kb, long ub) {
+        int c = Codec.compareKeys(ka, kb);
+        return c != 0 ? c : Long.compare(ua, ub);
+    }
+
+    /**
+     * 按(key, uid)升序排序前size组，归并排序。
+     */
+    static void sort(byte[][] keys, long[] uids, int size) {
+        byte[][] tmpKeys = new byte[size][];
+        long[] tmpUids = new long[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size - width; lo += width * 2) {
+                int mid = lo + width, hi = Math.min(lo + width * 2, size);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    if (compare(keys[j], uids[j], keys[i], uids[i]) < 0) {
+                        tmpKeys[k] = keys[j];
+                        tmpUids[k++] = uids[j++];
+                    } else {
+                        tmpKeys[k] = keys[i];
+                        tmpUids[k++] = uids[i++];
+                    }
+                }
+                while (i < mid) {
+                    tmpKeys[k] = keys[i];
+                    tmpUids[k++] = uids[i++];
+                }
+                while (j < hi) {
+                    tmpKeys[k] = keys[j];
+                    tmpUids[k++] = uids[j++];
+                }
+                System.arraycopy(tmpKeys, lo, keys, lo, hi - lo);
+                System.arraycopy(tmpUids, lo, uids, lo, hi - lo);
+            }
+        }
+    }
+
+    /**
+     * 按从大到小的顺序给出所有(key, uid)。没有写过临时文件时直接倒序遍历内存，否则把内存中剩余的部分也写入临时文件，再多路归并。
+     */
+    private SortedPairs sortedPairs() throws IOException {
+        if (runs.isEmpty()) {
+            sort(keys, uids, size);
+            return new MemoryPairs();
+        }
+        if (size > 0) {
+            spill();
+        }
+        keys = null;
+        uids = null;
+        return new MergedPairs();
+    }
+
+    private static abstract class SortedPairs {
+        byte[] key;
+        long uid;
+
+        /**
+         * 读取下一组(key, uid)到key和uid中。
+         */
+        abstract void next() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private class MemoryPairs extends SortedPairs {
+        private int pos = size;
+
+        @Override
+        void next() {
+            pos--;
+            key = keys[pos];
+            uid = uids[pos];
+        }
+    }
+
+    private class MergedPairs extends SortedPairs {
+        private final PriorityQueue<RunReader> heap;
+        private final List<RunReader> readers;
+
+        MergedPairs() throws IOException {
+            heap = new PriorityQueue<>((a, b) -> compare(b.key, b.uid, a.key, a.uid));
+            readers = new ArrayList<>();
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heap.add(reader);
+                }
+            }
+        }
+
+        @Override
+        void next() throws IOException {
+            RunReader reader = heap.poll();
+            key = reader.key;
+            uid = reader.uid;
+            if (reader.advance()) {
+                heap.add(reader);
+            }
+        }
+
+        @Override
+        void close() {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * 顺序读取一个有序段。
+     */
+    private static class RunReader {
+        private final File file;
+        private final DataInputStream in;
+        byte[] key;
+        long uid;
+
+        RunReader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                uid = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            file.delete();
+        }
+    }
+}
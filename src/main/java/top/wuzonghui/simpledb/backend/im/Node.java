@@ -2,32 +2,101 @@ package top.wuzonghui.simpledb.backend.im;
 
 import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
+import top.wuzonghui.simpledb.backend.dm.pageindex.PageIndex;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
-import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * @author Starry
  * @create 2023-01-04-1:49 PM
  * @Describe
  * @Detail Node结构如下：
- * [LeafFlag,1byte][KeyNumber,2byte][SiblingUid,8byte]
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
- * 1.LeafFlag标记了该节点是否是叶子节点。
+ * [Flag,1byte][KeyNumber,2byte][SiblingUid,8byte][HeapStart,2byte]
+ * [Son0][KeyOffset0][KeyLength0][Son1][KeyOffset1][KeyLength1]...[SonN][KeyOffsetN][KeyLengthN]
+ * ......空闲空间......
+ * [KeyN]...[Key1][Key0][Prefix][PrefixLength,2byte]
+ * 1.Flag标记了该节点是否是叶子节点、是否已经被合并(DEAD)，以及节点的格式。
  * 2.KeyNumber为该节点中key的个数。
  * 3.SiblingUid是其兄弟节点所在的DataItem的uid。
+ * 4.key是任意长度的字节串，按无符号字节的字典序比较。每组son-key占一个固定长度的槽，槽从前往后增长，保证可以二分查找；
+ * key的字节从节点末尾往前存放，HeapStart是最前面一个key的位置。删除和替换key留下的空洞在空间不够时整理节点回收。
+ * 内部节点中第i个key是第i个子节点中key的上界，每一层最右侧节点的最后一个key为正无穷，KeyLength记为INFINITE_KEY。
+ * 节点中所有key的公共前缀只在节点末尾存放一次(前缀压缩)，槽中的KeyOffset和KeyLength指向去掉前缀后的部分。
+ * 插入不以该前缀开头的key时整个节点按新的公共前缀重新生成，见insertAndSplit。
+ * 叶子节点分裂时，插入上一层的key是能分开左右两个节点的最短的key(后缀截断，见separator)，而不是右节点完整的第一个key。
+ * 5.节点的大小由所在B+树的balance决定，可以放下2 * balance + 2组8字节的key。key达到2 * balance个，或者空间放不下新的key时分裂。
+ * 新建的B+树默认使用MAX_BALANCE_NUMBER，一个节点正好占满一页；旧的B+树没有记录balance，使用LEGACY_BALANCE_NUMBER。
+ * 6.并发控制采用B-link树的方式：读者对节点乐观读，读完后校验版本，期间节点被修改才退化为读锁；
+ * 写者只对正在修改的节点加写锁，分裂时新节点先通过SiblingUid挂在原节点右侧，再由BPlusTree插入上一层，
+ * 在此之间到达原节点的读者和写者发现key大于节点中所有的key时，会沿着SiblingUid向右查找。
+ * 7.删除key后节点的key过少时，会和同一个父节点下相邻的节点合并(见mergeChild)，父节点因此减少一个key，过少时继续向上合并。
+ * 被合并掉的右节点在Flag中打上DEAD标记后回收，读者和写者遇到DEAD标记或者已经被回收的节点，说明它的内容已经移到了左侧，从根重新下降。
+ * 8.旧格式的节点没有VAR_KEY标记，key固定为8字节的long，加载B+树时整颗树会被重建为当前格式(见BPlusTree.load)。
+ * 没有PREFIX标记的节点没有末尾的[Prefix][PrefixLength]，公共前缀为空，重新生成时改为当前格式。
  */
 public class Node {
-    static final int IS_LEAF_OFFSET = 0;
-    static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1;
+    static final int FLAG_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = FLAG_OFFSET + 1;
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
+    static final int HEAP_START_OFFSET = SIBLING_OFFSET + 8;
+    static final int NODE_HEADER_SIZE = HEAP_START_OFFSET + 2;
 
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+    /**
+     * 一个槽：[Son,8byte][KeyOffset,2byte][KeyLength,2byte]，KeyOffset是key相对节点起始位置的偏移。
+     */
+    static final int SLOT_SIZE = 8 + 2 + 2;
+
+    /**
+     * 节点末尾PrefixLength的长度。
+     */
+    static final int PREFIX_LENGTH_SIZE = 2;
+
+    /**
+     * 正无穷key的KeyLength。
+     */
+    static final int INFINITE_KEY = 0xFFFF;
+
+    /**
+     * Flag中的标志位，LEAF表示叶子节点，DEAD表示该节点已经被合并到左侧节点，即将被回收，VAR_KEY表示当前格式的节点，
+     * PREFIX表示节点末尾存放了key的公共前缀。
+     */
+    static final byte LEAF_FLAG = 1;
+    static final byte DEAD_FLAG = 2;
+    static final byte VAR_KEY_FLAG = 4;
+    static final byte PREFIX_FLAG = 8;
+
+    /**
+     * 旧版本固定的balance。
+     */
+    static final int LEGACY_BALANCE_NUMBER = 32;
+
+    /**
+     * 一个节点基本占满一页时的最大balance，节点所在的DataItem不超过PageIndex一定能找到页面的大小。
+     */
+    static final int MAX_BALANCE_NUMBER = ((PageIndex.MAX_SELECT_SIZE - DataItem.HEADER_SIZE - NODE_HEADER_SIZE) / (SLOT_SIZE + 8) - 2) / 2;
+
+    /**
+     * balance对应的节点长度。
+     */
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (SLOT_SIZE + 8) * (balance * 2 + 2);
+    }
+
+    /**
+     * 长度为nodeSize的节点中key的最大长度，保证节点空间不够而分裂时，分裂出的两个节点都能放下新的key。
+     */
+    static int maxKeySize(int nodeSize) {
+        return capacity(nodeSize) / 4 - SLOT_SIZE;
+    }
+
+    /**
+     * 长度为nodeSize的节点中可以存放槽、key和公共前缀的空间。
+     */
+    static int capacity(int nodeSize) {
+        return nodeSize - NODE_HEADER_SIZE - PREFIX_LENGTH_SIZE;
+    }
 
     /**
      * 该节点所处的B+树对象。
@@ -49,30 +118,41 @@ public class Node {
      */
     long uid;
 
-    //根据isLeaf参数，设置raw的第一位是0还是1。
+    //根据isLeaf参数设置Flag，同时标记为当前格式。
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        if (isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 1;
-        } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 0;
-        }
+        raw.raw[raw.start + FLAG_OFFSET] = (byte) (VAR_KEY_FLAG | PREFIX_FLAG | (isLeaf ? LEAF_FLAG : 0));
     }
 
     /**
      * @Describe raw代表的node是否是叶子节点。
      * @param raw SubArray对象，必须对应一个node。
-     * 格式为[LeafFlag,1byte][KeyNumber,2byte][SiblingUid,8byte]
-     * [Son0][Key0][Son1][Key1]...[SonN][KeyN]。
      * @return true:该raw代表的node是叶子节点，该raw代表的node节点不是叶子节点。
-     * @Detail 通过解析raw的指定位置的数据，判断是否是叶子节点。
      */
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return (raw.raw[raw.start + FLAG_OFFSET] & LEAF_FLAG) != 0;
+    }
+
+    static void setRawDead(SubArray raw) {
+        raw.raw[raw.start + FLAG_OFFSET] |= DEAD_FLAG;
+    }
+
+    /**
+     * raw代表的node是否已经被合并到左侧节点。
+     */
+    static boolean getRawIsDead(SubArray raw) {
+        return (raw.raw[raw.start + FLAG_OFFSET] & DEAD_FLAG) != 0;
+    }
+
+    /**
+     * raw代表的node是否是当前格式(变长key)的节点。
+     */
+    static boolean getRawIsVarKey(SubArray raw) {
+        return (raw.raw[raw.start + FLAG_OFFSET] & VAR_KEY_FLAG) != 0;
     }
 
     //设置raw的KeyNumber位为noKeys
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        Codec.putShort(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     /**
@@ -81,12 +161,11 @@ public class Node {
      * @return 返回raw对应的node共含有多少Son。
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (int) Codec.getShort(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
-    //
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Codec.putLong(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     /**
@@ -95,92 +174,319 @@ public class Node {
      * @return raw的SiblingUid部分，该表raw对应的node的兄弟节点的uid。
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Codec.getLong(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
-    //设置raw的第kth个son的son为uid，从0开始。
+    static void setRawHeapStart(SubArray raw, int heapStart) {
+        Codec.putShort(raw.raw, raw.start + HEAP_START_OFFSET, (short) heapStart);
+    }
+
+    static int getRawHeapStart(SubArray raw) {
+        return Codec.getShort(raw.raw, raw.start + HEAP_START_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * 节点中key的公共前缀的长度，没有PREFIX标记时为0。乐观读时可能是写了一半的值，限制在节点以内。
+     */
+    static int getRawPrefixLength(SubArray raw) {
+        if ((raw.raw[raw.start + FLAG_OFFSET] & PREFIX_FLAG) == 0) {
+            return 0;
+        }
+        int length = Codec.getShort(raw.raw, raw.end - PREFIX_LENGTH_SIZE) & 0xFFFF;
+        return Math.min(length, capacity(raw.end - raw.start));
+    }
+
+    /**
+     * 公共前缀在raw.raw中的起始位置。
+     */
+    private static int prefixStart(SubArray raw, int prefixLength) {
+        return raw.end - PREFIX_LENGTH_SIZE - prefixLength;
+    }
+
+    /**
+     * 把公共前缀prefix[0, length)写到节点末尾，HeapStart设为前缀之前，节点中原来的key全部作废。
+     */
+    private static void setRawPrefix(SubArray raw, byte[] prefix, int length) {
+        int start = prefixStart(raw, length);
+        System.arraycopy(prefix, 0, raw.raw, start, length);
+        Codec.putShort(raw.raw, raw.end - PREFIX_LENGTH_SIZE, (short) length);
+        setRawHeapStart(raw, start - raw.start);
+    }
+
+    /**
+     * key是否以节点的公共前缀开头。
+     */
+    private static boolean hasRawPrefix(SubArray raw, byte[] key) {
+        int length = getRawPrefixLength(raw);
+        if (key.length < length) {
+            return false;
+        }
+        int start = prefixStart(raw, length);
+        return Arrays.equals(raw.raw, start, start + length, key, 0, length);
+    }
+
+    /**
+     * a和b的最长公共前缀的长度。
+     */
+    static int commonPrefix(byte[] a, byte[] b) {
+        int mismatch = Arrays.mismatch(a, b);
+        return mismatch < 0 ? a.length : mismatch;
+    }
+
+    /**
+     * @Describe 能分开left和right的最短的key s，满足left < s <= right，用于分裂时插入上一层的key(后缀截断)。
+     * @param left 左节点的最后一个key。
+     * @param right 右节点的第一个key，不小于left。
+     * @return right的最短前缀中大于left的一个，left和right相等时返回right。
+     * @Instance left = "apple"，right = "banana"，返回"b"。
+     */
+    static byte[] separator(byte[] left, byte[] right) {
+        int common = commonPrefix(left, right);
+        return common < right.length ? Arrays.copyOf(right, common + 1) : right;
+    }
+
+    /**
+     * keys的[from, to)按前缀压缩后占用的空间，包括槽和公共前缀。keys升序排列，只有最后一个可能是正无穷(null)。
+     */
+    static int encodedSize(byte[][] keys, int from, int to) {
+        int prefix = prefixLength(keys, from, to);
+        int size = (to - from) * SLOT_SIZE + prefix;
+        for (int i = from; i < to; i++) {
+            if (keys[i] != null) {
+                size += keys[i].length - prefix;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 有序的keys[from, to)的公共前缀的长度，即第一个和最后一个不为正无穷的key的公共前缀。
+     */
+    private static int prefixLength(byte[][] keys, int from, int to) {
+        int last = to - 1;
+        while (last >= from && keys[last] == null) {
+            last--;
+        }
+        return last < from ? 0 : commonPrefix(keys[from], keys[last]);
+    }
+
+    private static int slot(SubArray raw, int kth) {
+        return raw.start + NODE_HEADER_SIZE + kth * SLOT_SIZE;
+    }
+
+    //设置raw的第kth个son为uid，从0开始。
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Codec.putLong(raw.raw, slot(raw, kth), uid);
     }
 
-    //
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Codec.getLong(raw.raw, slot(raw, kth));
+    }
+
+    //第kth个key的位置(相对节点起始位置)和长度，只修改槽，不修改key的字节。
+    private static void setRawKthKeyRef(SubArray raw, int kth, int offset, int length) {
+        int slot = slot(raw, kth);
+        Codec.putShort(raw.raw, slot + 8, (short) offset);
+        Codec.putShort(raw.raw, slot + 10, (short) length);
     }
 
-    //设置raw的第kth个son的key为uid，从0开始。
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    private static int getRawKthKeyOffset(SubArray raw, int kth) {
+        return Codec.getShort(raw.raw, slot(raw, kth) + 8) & 0xFFFF;
+    }
+
+    private static int getRawKthKeyLength(SubArray raw, int kth) {
+        return Codec.getShort(raw.raw, slot(raw, kth) + 10) & 0xFFFF;
     }
 
     /**
-     * 获取raw的第kth个key，kth从0开始。
-     * @param raw
-     * @param kth
-     * @return
+     * 第kth个key占用的空间，正无穷不占用空间。
+     */
+    private static int keySize(SubArray raw, int kth) {
+        int length = getRawKthKeyLength(raw, kth);
+        return length == INFINITE_KEY ? 0 : length;
+    }
+
+    /**
+     * 把key去掉公共前缀后的字节存放到HeapStart之前，并设置为第kth个key。key为null时表示正无穷。
+     * 调用者保证key以节点的公共前缀开头，并且空间足够。
+     */
+    static void setRawKthKey(SubArray raw, byte[] key, int kth) {
+        if (key == null) {
+            setRawKthKeyRef(raw, kth, 0, INFINITE_KEY);
+            return;
+        }
+        int prefix = getRawPrefixLength(raw);
+        int length = key.length - prefix;
+        int heapStart = getRawHeapStart(raw) - length;
+        System.arraycopy(key, prefix, raw.raw, raw.start + heapStart, length);
+        setRawHeapStart(raw, heapStart);
+        setRawKthKeyRef(raw, kth, heapStart, length);
+    }
+
+    /**
+     * 获取raw的第kth个完整的key(公共前缀加上槽中的部分)的拷贝，kth从0开始。
+     * @return key，正无穷时返回null。
+     */
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int length = getRawKthKeyLength(raw, kth);
+        if (length == INFINITE_KEY) {
+            return null;
+        }
+        int prefix = getRawPrefixLength(raw);
+        int offset = clampOffset(raw, getRawKthKeyOffset(raw, kth));
+        length = Math.min(length, raw.end - raw.start - offset);
+        byte[] key = new byte[prefix + length];
+        System.arraycopy(raw.raw, prefixStart(raw, prefix), key, 0, prefix);
+        System.arraycopy(raw.raw, raw.start + offset, key, prefix, length);
+        return key;
+    }
+
+    /**
+     * 乐观读时槽中的值可能是写了一半的，把key的位置和长度限制在节点以内，保证读取不会越界。读到的结果在validate失败时会被丢弃。
+     */
+    private static int clampOffset(SubArray raw, int offset) {
+        return Math.min(offset, raw.end - raw.start);
+    }
+
+    /**
+     * 比较第kth个key和key的大小。
+     * @return 第kth个key小于、等于、大于key时分别返回负数、0、正数。
+     */
+    static int compareRawKthKey(SubArray raw, int kth, byte[] key) {
+        if (getRawKthKeyLength(raw, kth) == INFINITE_KEY) {
+            return 1;
+        }
+        int prefix = getRawPrefixLength(raw);
+        int cmp = comparePrefix(raw, prefix, key);
+        return cmp != 0 ? cmp : compareRawKthSuffix(raw, kth, key, prefix);
+    }
+
+    /**
+     * 比较节点的公共前缀和key的前prefix个字节。
+     * @return 节点中的key(不包括正无穷)都小于key时返回负数，都大于key时返回正数，都以key的前prefix个字节开头时返回0。
+     */
+    private static int comparePrefix(SubArray raw, int prefix, byte[] key) {
+        int start = prefixStart(raw, prefix);
+        int n = Math.min(prefix, key.length);
+        int cmp = Arrays.compareUnsigned(raw.raw, start, start + n, key, 0, n);
+        //key是公共前缀的前缀，比节点中所有的key都短
+        return cmp != 0 || n == prefix ? cmp : 1;
+    }
+
+    /**
+     * 比较第kth个key去掉公共前缀后的部分和key[prefix, key.length)，第kth个key不是正无穷。
+     */
+    private static int compareRawKthSuffix(SubArray raw, int kth, byte[] key, int prefix) {
+        int offset = clampOffset(raw, getRawKthKeyOffset(raw, kth));
+        int length = Math.min(getRawKthKeyLength(raw, kth), raw.end - raw.start - offset);
+        int from = raw.start + offset;
+        return Arrays.compareUnsigned(raw.raw, from, from + length, key, prefix, key.length);
+    }
+
+    /**
+     * 在raw的前noKeys个key中二分查找第一个大于等于key的位置。key按升序存储，可能重复。
+     * 先用公共前缀和key比较一次，key不以公共前缀开头时直接得到结果，否则二分查找时只比较去掉公共前缀的部分。
+     * @return 位置kth，所有key都小于key时返回noKeys。
+     */
+    static int lowerBound(SubArray raw, int noKeys, byte[] key) {
+        int prefix = getRawPrefixLength(raw);
+        int cmp = comparePrefix(raw, prefix, key);
+        if (cmp > 0) {
+            return 0;
+        }
+        if (cmp < 0) {
+            //只有最后一个key可能是正无穷
+            return noKeys > 0 && getRawKthKeyLength(raw, noKeys - 1) == INFINITE_KEY ? noKeys - 1 : noKeys;
+        }
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKeyLength(raw, mid) != INFINITE_KEY && compareRawKthSuffix(raw, mid, key, prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 节点中空闲的空间。
      */
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    private static int freeSpace(SubArray raw, int noKeys) {
+        return getRawHeapStart(raw) - NODE_HEADER_SIZE - noKeys * SLOT_SIZE;
     }
 
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+    /**
+     * 前noKeys组son-key和公共前缀实际占用的空间，不包括空洞。
+     */
+    static int usedSpace(SubArray raw, int noKeys) {
+        int used = noKeys * SLOT_SIZE + getRawPrefixLength(raw);
+        for (int i = 0; i < noKeys; i++) {
+            used += keySize(raw, i);
+        }
+        return used;
     }
 
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
+    //在第kth组之前空出一个槽，后面的槽向后移动一组
+    static void shiftRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = slot(raw, kth);
+        System.arraycopy(raw.raw, begin, raw.raw, begin + SLOT_SIZE, (noKeys - kth) * SLOT_SIZE);
+    }
+
+    //删除第kth组son-key，后面的槽向前移动一组
+    static void unshiftRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = slot(raw, kth);
+        System.arraycopy(raw.raw, begin + SLOT_SIZE, raw.raw, begin, (noKeys - kth - 1) * SLOT_SIZE);
+    }
+
+    /**
+     * 用sons和keys的[from, to)生成节点的数据，写入raw，公共前缀由这些key重新计算。key为null表示正无穷。
+     * 调用者保证空间足够(见encodedSize)。
+     */
+    static void writeRaw(SubArray raw, boolean isLeaf, long sibling, long[] sons, byte[][] keys, int from, int to) {
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, to - from);
+        setRawSibling(raw, sibling);
+        int prefix = prefixLength(keys, from, to);
+        setRawPrefix(raw, prefix == 0 ? new byte[0] : keys[from], prefix);
+        for (int i = from; i < to; i++) {
+            setRawKthSon(raw, sons[i], i - from);
+            setRawKthKey(raw, keys[i], i - from);
         }
     }
 
+    /**
+     * 长度为nodeSize的空节点数据。
+     */
+    static SubArray newRaw(int nodeSize) {
+        return new SubArray(new byte[nodeSize], 0, nodeSize);
+    }
+
     /**
      * 生成一个根节点的数据，该根节点的2个初始子节点分别是left和right，初始键值为key。
      * @param left 初始左子节点。
      * @param right 初始右子节点。
-     * @param key
+     * @param key left中key的上界，即right的第一个key。
+     * @param balance 所在B+树的balance。
      * @return 生成的根节点的数据。
      */
-    static byte[] newRootRaw(long left, long right, long key) {
-        //新建一个SubArray，长度为node的长度。
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        //初始化前三个字段。
-        setRawIsLeaf(raw, false);
-        setRawNoKeys(raw, 2);
-        setRawSibling(raw, 0);
-        //第0个子节点是left。
-        setRawKthSon(raw, left, 0);
-        //key0是key。
-        setRawKthKey(raw, key, 0);
-
-        //第1个子节点是right。
-        setRawKthSon(raw, right, 1);
-
-        //key2是Long.MAX_VALUE
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
-
+    static byte[] newRootRaw(long left, long right, byte[] key, int balance) {
+        SubArray raw = newRaw(nodeSize(balance));
+        //key1是正无穷
+        writeRaw(raw, false, 0, new long[]{left, right}, new byte[][]{key, null}, 0, 2);
         return raw.raw;
     }
 
     /**
      * 生成一个空的节点的数据。
      * 该节点是叶子节点，且没有任何的son，也没有兄弟节点。
+     * @param balance 所在B+树的balance。
      * @return 空节点的数据。
      */
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-
-        setRawIsLeaf(raw, true);
-        //该节点没有key。
-        setRawNoKeys(raw, 0);
-        //该节点没有兄弟节点。
-        setRawSibling(raw, 0);
+    static byte[] newNilRootRaw(int balance) {
+        SubArray raw = newRaw(nodeSize(balance));
+        writeRaw(raw, true, 0, new long[0], new byte[0][], 0, 0);
         return raw.raw;
     }
 
@@ -188,7 +494,7 @@ public class Node {
      * 根据B+树和node的uid，加载node。
      * @param bTree 节点所处的B树。
      * @param uid 节点的uid。
-     * @return 加载出的Node对象。
+     * @return 加载出的Node对象。节点已经被合并回收时返回null。
      * @throws Exception
      */
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -196,7 +502,9 @@ public class Node {
             提示：根据b树中的dm，和uid，读取DataItem
          */
         DataItem di = bTree.dm.read(uid);
-        assert di != null;
+        if (di == null) {
+            return null;
+        }
         Node n = new Node();
         n.tree = bTree;
         n.dataItem = di;
@@ -218,18 +526,29 @@ public class Node {
      * @return true:是叶子节点。false：不是叶子节点。
      */
     public boolean isLeaf() {
-        dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
-            dataItem.rUnLock();
-        }
+        //LeafFlag在节点创建后不会再改变，不需要加锁
+        return getRawIfLeaf(raw);
+    }
+
+    /**
+     * 乐观读时KeyNumber可能是写了一半的值，限制在节点的容量以内，保证之后的读取不会越界。
+     * 读到的结果在validate失败时会被丢弃。
+     */
+    private int safeNoKeys() {
+        int noKeys = getRawNoKeys(raw);
+        int capacity = (raw.end - raw.start - NODE_HEADER_SIZE) / SLOT_SIZE;
+        return Math.max(0, Math.min(noKeys, capacity));
     }
 
 
     class SearchNextRes {
         long uid;
         long siblingUid;
+
+        /**
+         * 该节点已经被合并到左侧节点，需要从根重新查找。
+         */
+        boolean dead;
     }
 
     /**
@@ -241,126 +560,215 @@ public class Node {
      * 如果返回结果的siblingUid字段不为0，说明key在当前节点的兄弟节点中，SearchNextRes对象的siblingUid字段即兄弟节点的uid。
      * @Instance 假设当前node的son-key部分存有以下值：uid1,7; uid2,11; uid3,20。node的兄弟节点的uid为uid4。
      * 1.调用searchNext(8)，则返回uid2。
-     * 2.调用searchNext(23),则会返回uid4。
+     * 2.调用searchNext(11)，则返回uid2。
+     * 3.调用searchNext(23),则会返回uid4。
      */
-    public SearchNextRes searchNext(long key) {
-        //1.由于要读dataItem的数据，因此上读锁。
+    public SearchNextRes searchNext(byte[] key) {
+        //1.先乐观读，期间节点没有被修改则直接返回，读者不修改任何共享状态。
+        long stamp = dataItem.tryOptimisticRead();
+        if (stamp != 0) {
+            SearchNextRes res = searchNextRaw(key);
+            if (dataItem.validate(stamp)) {
+                return res;
+            }
+        }
+        //2.期间节点被修改了，上读锁重新查找。
         dataItem.rLock();
         try {
-            SearchNextRes res = new SearchNextRes();
-            //解析当前节点共有多少个son-key对。
-            int noKeys = getRawNoKeys(raw);
-            //遍历这些son-key对
-            for (int i = 0; i < noKeys; i++) {
-                //遍历ik并和参数key比较，一旦key < ik，说明下一个node即ison
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
-            }
-            //如果遍历完也没返回，则说明要去兄弟节点找。
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
+            return searchNextRaw(key);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    private SearchNextRes searchNextRaw(byte[] key) {
+        SearchNextRes res = new SearchNextRes();
+        if (getRawIsDead(raw)) {
+            res.dead = true;
+            return res;
+        }
+        //解析当前节点共有多少个son-key对。
+        int noKeys = safeNoKeys();
+        //key升序存储，ik是ison中key的上界，重复的key可能分布在ik两侧的子节点中。
+        //二分查找第一个大于等于key的ik，说明下一个node即ison，也就是可能包含key的最左侧的子节点，之后沿叶子节点向右查找。
+        int i = lowerBound(raw, noKeys, key);
+        if (i < noKeys) {
+            res.uid = getRawKthSon(raw, i);
+            res.siblingUid = 0;
+            return res;
+        }
+        //如果遍历完也没返回，则说明要去兄弟节点找。
+        res.uid = 0;
+        res.siblingUid = getRawSibling(raw);
+        return res;
+    }
+
     class LeafSearchRangeRes {
-        List<Long> uids;
+        /**
+         * 范围内的uid，共size个。
+         */
+        long[] uids;
+        int size;
+
+        /**
+         * 需要返回key时，和uids一一对应的key。
+         */
+        byte[][] keys;
+
+        /**
+         * 最后一个uid对应的key，以及末尾有几个uid的key和它相同，size为0时没有意义。用于节点被合并后从这个key继续查找(见RangeCursor)。
+         */
+        byte[] lastKey;
+        int lastKeyCount;
+
         long siblingUid;
+
+        /**
+         * 该节点已经被合并到左侧节点，需要从根重新查找。
+         */
+        boolean dead;
     }
 
     /**
-     * 在当前节点进行范围查找，范围是[leftKey, rightKey]。返回所有满足条件的uid。
-     * 注意：约定如果rightKey大于等于该节点的最大key，则同时返回兄弟节点的uid，方便继续在下一个node中搜索。
-     * @param leftKey 查询的key的左边界。
-     * @param rightKey 查询的key的右边界。
-     * @return LeafSearchRangeRes对象，内部封装了List<Long> uids和long siblingUid。
-     * 如果rightKey大于等于该节点的最大key，则siblingUid指明了兄弟节点的uid，否则则为0。
+     * 在当前节点进行范围查找，范围是[leftKey, rightKey)。返回所有满足条件的uid。
+     * 注意：约定如果该节点中所有的key都小于rightKey，则同时返回兄弟节点的uid，方便继续在下一个node中搜索。
+     * @param leftKey 查询的key的左边界(包含)。
+     * @param rightKey 查询的key的右边界(不包含)，为null时没有右边界。
+     * @param withKeys 是否同时返回每个uid对应的key。
+     * @return LeafSearchRangeRes对象，内部封装了long[] uids和long siblingUid。
+     * 如果该节点中所有的key都小于rightKey，则siblingUid指明了兄弟节点的uid，否则则为0。
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        //由于涉及从dataItem中读数据，因此需要上读锁。
+    public LeafSearchRangeRes leafSearchRange(byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        //先乐观读，期间节点被修改了再上读锁重新查找。
+        long stamp = dataItem.tryOptimisticRead();
+        if (stamp != 0) {
+            LeafSearchRangeRes res = leafSearchRangeRaw(leftKey, rightKey, withKeys);
+            if (dataItem.validate(stamp)) {
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            //当前node一共有noKeys个key。
-            int noKeys = getRawNoKeys(raw);
-            //不断遍历key，直到找到大于等于左边界leftKey的key。
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
-                kth++;
-            }
-            //继续遍历key，当key小于等于右边界rightKey时，不断将key对应的son的uid加入list中。
-            List<Long> uids = new ArrayList<>();
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
-                    break;
-                }
-            }
-            //边界判断，如果已经遍历到最后一个key了，说明可能还可以继续看兄弟节点，因此把兄弟节点的uid也放到放回结果里。
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            return res;
+            return leafSearchRangeRaw(leftKey, rightKey, withKeys);
         } finally {
             //释放读锁。
             dataItem.rUnLock();
         }
     }
 
+    private LeafSearchRangeRes leafSearchRangeRaw(byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        if (getRawIsDead(raw)) {
+            LeafSearchRangeRes res = new LeafSearchRangeRes();
+            res.dead = true;
+            return res;
+        }
+        //当前node一共有noKeys个key。
+        int noKeys = safeNoKeys();
+        //二分查找第一个大于等于左边界leftKey的key。
+        int begin = lowerBound(raw, noKeys, leftKey);
+        //继续遍历key，找到第一个不小于右边界rightKey的key，[begin, kth)中的son就是范围内的uid。
+        int kth = begin;
+        while (kth < noKeys && (rightKey == null || compareRawKthKey(raw, kth, rightKey) < 0)) {
+            kth++;
+        }
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.size = kth - begin;
+        res.uids = new long[res.size];
+        res.keys = withKeys ? new byte[res.size][] : null;
+        for (int i = begin; i < kth; i++) {
+            res.uids[i - begin] = getRawKthSon(raw, i);
+            if (withKeys) {
+                res.keys[i - begin] = getRawKthKey(raw, i);
+            }
+        }
+        if (res.size > 0) {
+            res.lastKey = withKeys ? res.keys[res.size - 1] : getRawKthKey(raw, kth - 1);
+            int i = kth - 1;
+            //乐观读时可能读到写了一半的槽，结果会在validate失败时丢弃，这里只需要保证不出错
+            while (i >= begin && res.lastKey != null && compareRawKthKey(raw, i, res.lastKey) == 0) {
+                i--;
+            }
+            res.lastKeyCount = kth - 1 - i;
+        }
+        //边界判断，如果已经遍历到最后一个key了，说明可能还可以继续看兄弟节点，因此把兄弟节点的uid也放到放回结果里。
+        if (kth == noKeys) {
+            res.siblingUid = getRawSibling(raw);
+        }
+        return res;
+    }
+
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        byte[] newKey;
+
+        /**
+         * 该节点已经被合并到左侧节点，需要从根重新下降。
+         */
+        boolean dead;
     }
 
     /**
      * 将指定的son-key对插入到该node中。
      * @param uid son
      * @param key key
+     * @param left 内部节点中插入时，uid是子节点left分裂出的新节点，插入到left之后，key是left新的上界；叶子节点中不使用。
      * @return InsertAndSplitRes对象，包括三个字段：long siblingUid, newSon, newKey。
      * @throws Exception
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key, long left) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            //如果没插入成功，那么说明应该插入到兄弟节点中，因此将兄弟节点封装到结果集中返回。
-            success = insert(uid, key);
-            if (!success) {
+            if (getRawIsDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            //二分查找应该插入的位置，即第一个大于等于key的位置。
+            int kth = lowerBound(raw, noKeys, key);
+            if (!getRawIfLeaf(raw)) {
+                int slot = childSlot(noKeys, left);
+                if (slot >= 0) {
+                    kth = slot;
+                    //新的上界不能小于左侧子节点的上界，否则节点中的key不再有序
+                    if (kth > 0 && compareRawKthKey(raw, kth - 1, key) > 0) {
+                        key = getRawKthKey(raw, kth - 1);
+                    }
+                }
+            }
+            //如果已经遍历完了依然没有找到合适的位置，且该节点还有下一个节点，则应该插入到兄弟节点中，将兄弟节点封装到结果集中返回。
+            if (kth == noKeys && getRawSibling(raw) != 0) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
             }
-            //如果插入后，当前node的阶数不对，说明需要分裂。
-            if (needSplit()) {
-                try {
+            success = true;
+            try {
+                //空间不够时先整理掉空洞；key不以公共前缀开头或者仍然放不下时，在内存中插入后重新生成节点，放不下则分裂
+                if (hasRawPrefix(raw, key) && !canInsert(noKeys, key)) {
+                    compact(noKeys);
+                }
+                if (!hasRawPrefix(raw, key) || !canInsert(noKeys, key)) {
+                    SplitRes r = insertAndRewrite(noKeys, kth, uid, key);
+                    if (r != null) {
+                        res.newSon = r.newSon;
+                        res.newKey = r.newKey;
+                    }
+                    return res;
+                }
+                insert(noKeys, kth, uid, key);
+                //如果插入后，当前node的key数达到上限，需要分裂。
+                if (needSplit()) {
                     SplitRes r = split();
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
-                    return res;
-                } catch (Exception e) {
-                    err = e;
-                    throw e;
                 }
-            } else {
                 return res;
+            } catch (Exception e) {
+                err = e;
+                throw e;
             }
         } finally {
             if (err == null && success) {
@@ -372,84 +780,319 @@ public class Node {
     }
 
     /**
-     * 将son-key对插入到当前节点中。
-     * @param uid son
-     * @param key key
-     * @return 是否插入成功。
+     * 内部节点中子节点left所在的位置。
+     * 比节点中所有key都大的key会被插入到右侧的兄弟节点，因此子节点中可能有小于左侧子节点上界的key，
+     * 分裂时截断出的上界也可能不大于左侧子节点的上界，用lowerBound找到的位置不一定是left。
+     * @return 不在该节点中(比如随着该节点的分裂被移到了右侧)时返回-1。
      */
-    private boolean insert(long uid, long key) {
-        //获取当前节点共有多少son-key对。
-        int noKeys = getRawNoKeys(raw);
-        //遍历当前节点的这些son-key对，寻找应该插入的位置。
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
-            } else {
-                break;
+    private int childSlot(int noKeys, long left) {
+        for (int i = 0; i < noKeys; i++) {
+            if (getRawKthSon(raw, i) == left) {
+                return i;
             }
         }
-        //如果已经遍历完了依然没有找到合适的位置，且该节点还有下一个节点，则返回false。也就是说如果当前节点已经是最后一个节点了，那么就不返回false。
-        if (kth == noKeys && getRawSibling(raw) != 0) return false;
+        return -1;
+    }
+
+    /**
+     * 以节点的公共前缀开头的key是否可以直接插入，不需要整理节点。
+     */
+    private boolean canInsert(int noKeys, byte[] key) {
+        return freeSpace(raw, noKeys) >= SLOT_SIZE + key.length - getRawPrefixLength(raw);
+    }
 
+    /**
+     * 将son-key对插入到当前节点的第kth个位置，调用者保证key以节点的公共前缀开头，并且空间足够。
+     * @param noKeys 插入前key的个数。
+     */
+    private void insert(int noKeys, int kth, long uid, byte[] key) {
         if (getRawIfLeaf(raw)) {
-            //如果是叶子节点。
-            //横移kth组后面的son-key
-            shiftRawKth(raw, kth);
-            //设置第kth组son-key对
-            setRawKthKey(raw, key, kth);
+            //如果是叶子节点，横移kth组后面的son-key，设置第kth组son-key对
+            shiftRawKth(raw, kth, noKeys);
             setRawKthSon(raw, uid, kth);
-            //更新维护一下NoKey部分
-            setRawNoKeys(raw, noKeys + 1);
+            setRawKthKey(raw, key, kth);
         } else {
-            //如果不是叶子节点。
-            //获取第kth组key，记为kk
-            long kk = getRawKthKey(raw, kth);
+            //如果不是叶子节点，uid是第kth个子节点分裂出的新节点，key是它的第一个key。
+            //第kth个子节点的上界改为key，新节点接在它后面，上界是原来第kth个子节点的上界，直接复用原来key的字节。
+            int offset = getRawKthKeyOffset(raw, kth), length = getRawKthKeyLength(raw, kth);
+            shiftRawKth(raw, kth + 1, noKeys);
             setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth + 1);
-            setRawKthKey(raw, kk, kth + 1);
             setRawKthSon(raw, uid, kth + 1);
-            setRawNoKeys(raw, noKeys + 1);
+            setRawKthKeyRef(raw, kth + 1, offset, length);
         }
-        return true;
+        setRawNoKeys(raw, noKeys + 1);
     }
 
     /**
      * @Describe 当前节点是否需要分裂。
-     * @Detail 根据当前存储的son-key对是否达到 BALANCE_NUMBER * 2来判断。
+     * @Detail 根据当前存储的son-key对是否达到 balance * 2来判断。
      * @return true:需要分裂。 false:不需要分裂。
      */
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return tree.balance * 2 <= getRawNoKeys(raw);
+    }
+
+    /**
+     * 重新生成当前节点的数据，回收删除和替换key留下的空洞。
+     */
+    private void compact(int noKeys) {
+        long[] sons = new long[noKeys];
+        byte[][] keys = new byte[noKeys][];
+        readEntries(raw, noKeys, sons, keys, 0);
+        writeRaw(raw, getRawIfLeaf(raw), getRawSibling(raw), sons, keys, 0, noKeys);
+    }
+
+    /**
+     * 把raw中的noKeys组son-key读到sons和keys的from位置开始。
+     */
+    private static void readEntries(SubArray raw, int noKeys, long[] sons, byte[][] keys, int from) {
+        for (int i = 0; i < noKeys; i++) {
+            sons[from + i] = getRawKthSon(raw, i);
+            keys[from + i] = getRawKthKey(raw, i);
+        }
     }
 
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        byte[] newKey;
     }
 
     /**
-     * 分裂。
+     * key达到上限时分裂，后一半son-key移到新节点中。
      * @return
      * @throws Exception
      */
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        int noKeys = getRawNoKeys(raw);
+        long[] sons = new long[noKeys];
+        byte[][] keys = new byte[noKeys][];
+        readEntries(raw, noKeys, sons, keys, 0);
+        return split(sons, keys, noKeys / 2);
+    }
+
+    /**
+     * 不能直接插入时，在内存中插入后按新的公共前缀重新生成节点；key的个数达到上限或者仍然放不下时，按占用的空间平分成两个节点。
+     * @param noKeys 插入前key的个数。
+     * @param kth 插入的位置。
+     * @return 分裂时返回SplitRes，否则返回null。
+     */
+    private SplitRes insertAndRewrite(int noKeys, int kth, long uid, byte[] key) throws Exception {
+        long[] sons = new long[noKeys + 1];
+        byte[][] keys = new byte[noKeys + 1][];
+        readEntries(raw, noKeys, sons, keys, 0);
+        if (getRawIfLeaf(raw)) {
+            System.arraycopy(sons, kth, sons, kth + 1, noKeys - kth);
+            System.arraycopy(keys, kth, keys, kth + 1, noKeys - kth);
+            sons[kth] = uid;
+            keys[kth] = key;
+        } else {
+            System.arraycopy(sons, kth + 1, sons, kth + 2, noKeys - kth - 1);
+            System.arraycopy(keys, kth, keys, kth + 1, noKeys - kth);
+            keys[kth] = key;
+            sons[kth + 1] = uid;
+        }
+        if (noKeys + 1 < tree.balance * 2 && encodedSize(keys, 0, noKeys + 1) <= capacity(raw.end - raw.start)) {
+            writeRaw(raw, getRawIfLeaf(raw), getRawSibling(raw), sons, keys, 0, noKeys + 1);
+            return null;
+        }
+        int total = 0;
+        for (int i = 0; i <= noKeys; i++) {
+            total += SLOT_SIZE + (keys[i] == null ? 0 : keys[i].length);
+        }
+        int mid = 0, used = 0;
+        while (used * 2 < total) {
+            used += SLOT_SIZE + (keys[mid] == null ? 0 : keys[mid].length);
+            mid++;
+        }
+        mid = Math.max(1, Math.min(mid, noKeys));
+        return split(sons, keys, mid);
+    }
+
+    /**
+     * [mid, sons.length)移到新节点，新节点挂在当前节点右侧，当前节点保留[0, mid)。
+     * 叶子节点插入上一层的key是分开两个节点的最短的key；内部节点的key本身已经是上一层分裂时截断过的，直接使用。
+     */
+    private SplitRes split(long[] sons, byte[][] keys, int mid) throws Exception {
+        int total = sons.length;
+        SubArray nodeRaw = newRaw(raw.end - raw.start);
+        boolean isLeaf = getRawIfLeaf(raw);
+        writeRaw(nodeRaw, isLeaf, getRawSibling(raw), sons, keys, mid, total);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
+        writeRaw(raw, isLeaf, son, sons, keys, 0, mid);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
+        res.newKey = isLeaf ? separator(keys[mid - 1], keys[mid]) : keys[mid];
         return res;
     }
 
 
+    class DeleteRes {
+        /**
+         * 是否找到并删除了son-key对。
+         */
+        boolean found;
+
+        /**
+         * 删除后节点中的key是否少到需要合并。
+         */
+        boolean underflow;
+
+        /**
+         * 不为0时说明son-key对可能在兄弟节点中。
+         */
+        long siblingUid;
+
+        /**
+         * 该节点已经被合并到左侧节点，需要从根重新下降。
+         */
+        boolean dead;
+    }
+
+    /**
+     * 从叶子节点中删除指定的son-key对。
+     * @param uid son
+     * @param key key
+     * @return DeleteRes对象。没有找到时，如果节点中所有的key都不大于key，可能还在兄弟节点中，siblingUid为兄弟节点的uid。
+     */
+    public DeleteRes delete(long uid, byte[] key) {
+        DeleteRes res = new DeleteRes();
+        dataItem.before();
+        try {
+            if (getRawIsDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            //重复的key相邻存放，逐个比较son
+            while (kth < noKeys && compareRawKthKey(raw, kth, key) == 0) {
+                if (getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth, noKeys);
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.found = true;
+                    res.underflow = needMerge(noKeys - 1);
+                    return res;
+                }
+                kth++;
+            }
+            if (kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if (res.found) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * @Describe 该节点的key是否少到需要合并：key的个数不超过balance / 2，或者占用的空间不到四分之一。
+     */
+    private boolean needMerge(int noKeys) {
+        return noKeys <= tree.balance / 2 || usedSpace(raw, noKeys) * 4 <= capacity(raw.end - raw.start);
+    }
+
+    class MergeRes {
+        /**
+         * 被合并掉(打上DEAD标记)的右节点的uid，为0说明没有合并。
+         */
+        long freed;
+
+        /**
+         * 合并后当前节点的key是否也少到需要合并。
+         */
+        boolean underflow;
+    }
+
+    /**
+     * @Describe 把当前节点(内部节点)下的子节点child和与它相邻的一个子节点合并。
+     * @param child 需要合并的子节点。
+     * @return MergeRes对象，调用方负责回收被合并掉的节点。
+     * @throws Exception
+     * @Detail
+     * 1.按照父节点、左节点、右节点的顺序加写锁，即上层先于下层、同一层从左到右。插入和删除每次只锁一个节点，不会和这里形成死锁。
+     * 2.只有两个节点都是当前节点的子节点，左节点的SiblingUid指向右节点(右节点没有正在插入上一层的分裂)，
+     * 并且合并后不会立即分裂(key的个数和占用的空间都放得下)时才合并。
+     * 3.右节点的son-key对追加到左节点末尾(内部节点的key是对应子节点的上界，直接拼接依然有序)，左节点的SiblingUid指向右节点原来的兄弟节点；
+     * 当前节点中左节点的key改为右节点的key，删除右节点的son-key对；右节点打上DEAD标记。
+     * 4.合并前读到右节点内容的读者看到的是合并前的一致状态，之后到达右节点的读者和写者看到DEAD标记后从根重新开始。
+     * 不在相邻节点间搬移部分key(redistribute)：范围查找先读左节点、后读右节点，搬移发生在两次读取之间时会漏掉被搬移的key。
+     */
+    MergeRes mergeChild(long child) throws Exception {
+        MergeRes res = new MergeRes();
+        Node left = null, right = null;
+        int locked = 0;
+        dataItem.before();
+        locked++;
+        try {
+            //当前节点已经被合并到左侧节点时，它的子节点已经由左侧节点指向，不能在这里合并
+            if (getRawIsDead(raw)) {
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            int i = 0;
+            while (i < noKeys && getRawKthSon(raw, i) != child) {
+                i++;
+            }
+            if (i == noKeys || noKeys < 2) {
+                return res;
+            }
+            //优先和右边的节点合并，child是最后一个子节点时和左边的节点合并
+            int li = i + 1 < noKeys ? i : i - 1;
+            long leftUid = getRawKthSon(raw, li), rightUid = getRawKthSon(raw, li + 1);
+            left = loadNode(tree, leftUid);
+            right = loadNode(tree, rightUid);
+            if (left == null || right == null) {
+                return res;
+            }
+            left.dataItem.before();
+            locked++;
+            right.dataItem.before();
+            locked++;
+            int leftKeys = getRawNoKeys(left.raw), rightKeys = getRawNoKeys(right.raw);
+            if (getRawIsDead(left.raw) || getRawIsDead(right.raw)
+                    || getRawSibling(left.raw) != rightUid
+                    || leftKeys + rightKeys >= tree.balance * 2) {
+                return res;
+            }
+            long[] sons = new long[leftKeys + rightKeys];
+            byte[][] keys = new byte[leftKeys + rightKeys][];
+            readEntries(left.raw, leftKeys, sons, keys, 0);
+            readEntries(right.raw, rightKeys, sons, keys, leftKeys);
+            //合并后的公共前缀可能变短，按合并后的key计算占用的空间
+            if (encodedSize(keys, 0, sons.length) > capacity(left.raw.end - left.raw.start)) {
+                return res;
+            }
+            writeRaw(left.raw, getRawIfLeaf(left.raw), getRawSibling(right.raw), sons, keys, 0, sons.length);
+
+            //左节点的上界改为右节点的上界，直接复用右节点的key的字节
+            setRawKthKeyRef(raw, li, getRawKthKeyOffset(raw, li + 1), getRawKthKeyLength(raw, li + 1));
+            unshiftRawKth(raw, li + 1, noKeys);
+            setRawNoKeys(raw, noKeys - 1);
+
+            setRawDead(right.raw);
+
+            //日志按左节点、父节点、右节点的顺序写入，中途崩溃时右节点只是不再可达，不会出现重复或丢失的key
+            left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+            right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            locked = 0;
+            res.freed = rightUid;
+            res.underflow = needMerge(noKeys - 1);
+            return res;
+        } finally {
+            if (locked > 2) right.dataItem.unBefore();
+            if (locked > 1) left.dataItem.unBefore();
+            if (locked > 0) dataItem.unBefore();
+            if (left != null) left.release();
+            if (right != null) right.release();
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -458,7 +1101,9 @@ public class Node {
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
         for (int i = 0; i < KeyNumber; i++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            byte[] key = getRawKthKey(raw, i);
+            sb.append("son: ").append(getRawKthSon(raw, i))
+                    .append(", key: ").append(key == null ? "+inf" : Arrays.toString(key)).append("\n");
         }
         return sb.toString();
     }
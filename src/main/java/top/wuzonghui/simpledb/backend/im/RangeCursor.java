@@ -0,0 +1,195 @@
+package top.wuzonghui.simpledb.backend.im;
+
+import java.util.Arrays;
+
+/**
+ * @author Starry
+ * @create 2023-02-27-10:20 AM
+ * @Describe B+树上key在[leftKey, rightKey)中的son-key对的游标，由BPlusTree.cursor创建。
+ * @Detail searchRange把范围内所有的uid放到一个List<Long>中返回，结果很大时占用的内存也很大。
+ * 游标每次只读一个叶子节点，把其中范围内的uid拷贝到long数组中，用完后才沿SiblingUid读下一个叶子节点，
+ * 占用的内存和结果的大小无关；不需要更多结果时(比如limit)直接close，之后的叶子节点不会再被读取。
+ * 1.和searchRange一样，读叶子节点时不加锁，不会阻塞插入和删除，读到的是每个叶子节点在某一时刻的一致状态。
+ * 2.读到的叶子节点已经被合并回收时，已经返回的结果不能撤回，因此从根重新下降到最后返回的key所在的叶子节点，
+ * 跳过key等于它、已经返回过的uid，继续向右读取，每组son-key对最多返回一次。
+ * 游标不是线程安全的，只能由一个线程使用。
+ */
+public class RangeCursor implements AutoCloseable {
+    private final BPlusTree tree;
+
+    private final byte[] leftKey, rightKey;
+
+    private final boolean withKeys;
+
+    /**
+     * 当前叶子节点中范围内的son-key对，pos是下一个要返回的位置。
+     */
+    private long[] uids = new long[0];
+    private byte[][] keys;
+    private int size, pos;
+
+    /**
+     * 下一个要读取的叶子节点，为0时需要从根下降。
+     */
+    private long leafUid;
+
+    /**
+     * 已经读完了所有的叶子节点，或者已经close。
+     */
+    private boolean done;
+
+    /**
+     * 已经读取的最后一个key，以及key等于它的uid，节点被合并后从这里继续。
+     */
+    private byte[] lastKey;
+    private long[] lastUids = new long[0];
+    private int lastCount;
+
+    /**
+     * 从lastKey继续查找时，需要跳过已经返回过的uid，直到读到比lastKey大的key。
+     */
+    private boolean resuming;
+
+    RangeCursor(BPlusTree tree, byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.withKeys = withKeys;
+    }
+
+    /**
+     * @Describe 移动到下一组son-key对。
+     * @return 是否还有结果，返回false后游标已经读完。
+     * @throws Exception
+     */
+    public boolean next() throws Exception {
+        while (pos == size) {
+            if (done) {
+                return false;
+            }
+            fetch();
+        }
+        pos++;
+        return true;
+    }
+
+    /**
+     * 当前的uid，调用next()返回true之后才能调用。
+     */
+    public long uid() {
+        return uids[pos - 1];
+    }
+
+    /**
+     * 当前的key，创建游标时需要withKeys。
+     */
+    public byte[] key() {
+        return keys[pos - 1];
+    }
+
+    /**
+     * 不再读取之后的结果。
+     */
+    @Override
+    public void close() {
+        done = true;
+        size = pos = 0;
+        uids = new long[0];
+        keys = null;
+    }
+
+    /**
+     * 读取下一个叶子节点中范围内的son-key对，读完最后一个叶子节点后设置done。
+     */
+    private void fetch() throws Exception {
+        while (true) {
+            byte[] from = resuming ? lastKey : leftKey;
+            if (leafUid == 0) {
+                leafUid = tree.searchLeaf(from);
+            }
+            Node leaf = Node.loadNode(tree, leafUid);
+            if (leaf == null) {
+                restart();
+                continue;
+            }
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(from, rightKey, withKeys || resuming);
+            leaf.release();
+            if (res.dead) {
+                restart();
+                continue;
+            }
+            if (resuming) {
+                skipReturned(res);
+            }
+            remember(res);
+            uids = res.uids;
+            keys = res.keys;
+            size = res.size;
+            pos = 0;
+            leafUid = res.siblingUid;
+            done = leafUid == 0;
+            return;
+        }
+    }
+
+    /**
+     * 读到的叶子节点已经被合并，从根重新下降。已经返回过结果时从最后返回的key继续。
+     */
+    private void restart() {
+        leafUid = 0;
+        resuming = lastKey != null;
+    }
+
+    /**
+     * 从lastKey继续查找时，去掉key等于lastKey并且已经返回过的uid。key都不小于lastKey，等于它的在最前面。
+     */
+    private void skipReturned(Node.LeafSearchRangeRes res) {
+        int kept = 0;
+        boolean passed = false;
+        for (int i = 0; i < res.size; i++) {
+            if (!passed && Arrays.equals(res.keys[i], lastKey)) {
+                if (returned(res.uids[i])) {
+                    continue;
+                }
+            } else {
+                passed = true;
+            }
+            res.uids[kept] = res.uids[i];
+            res.keys[kept] = res.keys[i];
+            kept++;
+        }
+        res.size = kept;
+        //读到了比lastKey大的key，或者范围已经结束，之后不会再遇到返回过的uid
+        resuming = !passed && res.siblingUid != 0;
+        if (!withKeys) {
+            res.keys = null;
+        }
+    }
+
+    private boolean returned(long uid) {
+        for (int i = 0; i < lastCount; i++) {
+            if (lastUids[i] == uid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 这个叶子节点中的结果都会被返回，记下最后一个key和key等于它的uid。
+     */
+    private void remember(Node.LeafSearchRangeRes res) {
+        if (res.size == 0) {
+            return;
+        }
+        int count = Math.min(res.lastKeyCount, res.size);
+        //整个节点的key都等于lastKey时，之前节点中key等于它的uid也要保留
+        int keep = count == res.size && Arrays.equals(res.lastKey, lastKey) ? lastCount : 0;
+        if (lastUids.length < keep + count) {
+            lastUids = Arrays.copyOf(lastUids, Math.max(keep + count, lastUids.length * 2));
+        }
+        System.arraycopy(res.uids, res.size - count, lastUids, keep, count);
+        lastCount = keep + count;
+        lastKey = res.lastKey;
+    }
+}
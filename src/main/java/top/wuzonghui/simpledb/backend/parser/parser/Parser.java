@@ -75,6 +75,12 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
+                case "set":
+                    stat = parseSet(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -111,6 +117,45 @@ public class Parser {
         return new Show();
     }
 
+    /**
+     * set lock_timeout 毫秒数
+     */
+    private static Object parseSet(Tokenizer tokenizer) throws Exception {
+        Set set = new Set();
+        String name = tokenizer.peek();
+        if (!"lock_timeout".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        set.name = name;
+        tokenizer.pop();
+        String value = tokenizer.peek();
+        try {
+            Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        set.value = value;
+        tokenizer.pop();
+        return set;
+    }
+
+    /**
+     * vacuum [tableName]，不指定表名时清理所有表。
+     */
+    private static Object parseVacuum(Tokenizer tokenizer) throws Exception {
+        Vacuum vacuum = new Vacuum();
+        String tableName = tokenizer.peek();
+        if ("".equals(tableName)) {
+            return vacuum;
+        }
+        if (!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        vacuum.tableName = tableName;
+        tokenizer.pop();
+        return vacuum;
+    }
+
     private static Object parseUpdate(Tokenizer tokenizer) throws Exception {
         Update update = new Update();
         update.tableName = tokenizer.peek();
@@ -186,17 +231,25 @@ public class Parser {
             throw Error.InvalidCommandException;
         }
 
+        List<String[]> rows = new ArrayList<>();
         List<String> values = new ArrayList<>();
         while(true) {
             tokenizer.pop();
             String value = tokenizer.peek();
-            if("".equals(value)) {
-                break;
+            if("".equals(value) || ",".equals(value)) {
+                if (values.isEmpty()) {
+                    throw Error.InvalidCommandException;
+                }
+                rows.add(values.toArray(new String[values.size()]));
+                values.clear();
+                if ("".equals(value)) {
+                    break;
+                }
             } else {
                 values.add(value);
             }
         }
-        insert.values = values.toArray(new String[values.size()]);
+        insert.values = rows.toArray(new String[rows.size()][]);
 
         return insert;
     }
@@ -244,7 +297,30 @@ public class Parser {
             return read;
         }
 
-        read.where = parseWhere(tokenizer);
+        if(!"for".equals(tmp) && !"limit".equals(tmp)) {
+            read.where = parseWhere(tokenizer);
+        }
+        //select ... [where ...] [limit n] [for share]
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                read.limit = Integer.parseInt(tokenizer.peek());
+            } catch (NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(read.limit < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
+        if("for".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"share".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            read.forShare = true;
+        }
         return read;
     }
 
@@ -268,8 +344,9 @@ public class Parser {
 
         //and or
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        //where之后可以跟limit和for share，交给调用方处理
+        if("".equals(logicOp) || "for".equals(logicOp) || "limit".equals(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -281,7 +358,8 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
+        String next = tokenizer.peek();
+        if(!"".equals(next) && !"for".equals(next) && !"limit".equals(next)) {
             throw Error.InvalidCommandException;
         }
         return where;
@@ -318,6 +396,16 @@ public class Parser {
     }
 
     private static Object parseDrop(Tokenizer tokenizer) throws Exception {
+        if ("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            DropIndex dropIndex = new DropIndex();
+            dropIndex.tableName = parseIndexTarget(tokenizer);
+            dropIndex.fieldName = parseNameList(tokenizer);
+            if (!"".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            return dropIndex;
+        }
         Drop drop = new Drop();
         String table = tokenizer.peek();
         if (!"table".equals(table)) {
@@ -338,9 +426,68 @@ public class Parser {
         return drop;
     }
 
+    /**
+     * 解析create index和drop index中的on tableName (fieldName1, fieldName2, ...)部分。
+     * @return tableName
+     */
+    private static String parseIndexTarget(Tokenizer tokenizer) throws Exception {
+        if (!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String tableName = tokenizer.peek();
+        if (!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return tableName;
+    }
+
+    /**
+     * 解析(name1, name2, ...)，至少有一个名字。
+     */
+    private static String[] parseNameList(Tokenizer tokenizer) throws Exception {
+        if (!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        List<String> names = new ArrayList<>();
+        while (true) {
+            tokenizer.pop();
+            String name = tokenizer.peek();
+            if (!isName(name)) {
+                throw Error.InvalidCommandException;
+            }
+            names.add(name);
+            tokenizer.pop();
+            String next = tokenizer.peek();
+            if (")".equals(next)) {
+                break;
+            } else if (!",".equals(next)) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        tokenizer.pop();
+        return names.toArray(new String[names.size()]);
+    }
+
     private static Object parseCreate(Tokenizer tokenizer) throws Exception {
         String table = tokenizer.peek();
         tokenizer.pop();
+        if ("index".equals(table)) {
+            CreateIndex createIndex = new CreateIndex();
+            createIndex.tableName = parseIndexTarget(tokenizer);
+            createIndex.fieldName = parseNameList(tokenizer);
+            createIndex.include = new String[0];
+            //include (...)中的字段只存放在叶子节点中，不参与查找
+            if ("include".equals(tokenizer.peek())) {
+                tokenizer.pop();
+                createIndex.include = parseNameList(tokenizer);
+            }
+            if (!"".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            return createIndex;
+        }
         if (!table.equals("table")) {
             throw Error.InvalidCommandException;
         }
@@ -448,6 +595,16 @@ public class Parser {
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
         String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        //begin read only [isolation level ...]
+        if("read".equals(isolation)) {
+            tokenizer.pop();
+            if(!"only".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            begin.isReadOnly = true;
+            isolation = tokenizer.peek();
+        }
         if("".equals(isolation)) {
             return begin;
         }
@@ -2,4 +2,5 @@ package top.wuzonghui.simpledb.backend.parser.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isReadOnly;
 }
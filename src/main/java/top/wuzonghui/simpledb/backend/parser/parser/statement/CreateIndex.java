@@ -0,0 +1,7 @@
+package top.wuzonghui.simpledb.backend.parser.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String[] fieldName;
+    public String[] include;
+}
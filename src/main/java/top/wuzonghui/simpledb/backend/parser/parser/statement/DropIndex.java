@@ -0,0 +1,6 @@
+package top.wuzonghui.simpledb.backend.parser.parser.statement;
+
+public class DropIndex {
+    public String tableName;
+    public String[] fieldName;
+}
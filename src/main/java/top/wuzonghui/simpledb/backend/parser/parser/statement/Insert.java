@@ -2,5 +2,8 @@ package top.wuzonghui.simpledb.backend.parser.parser.statement;
 
 public class Insert {
     public String tableName;
-    public String[] values;
+    /**
+     * 要插入的每一行数据，insert into t values 1 "a", 2 "b" 一次插入多行，行之间用逗号分隔。
+     */
+    public String[][] values;
 }
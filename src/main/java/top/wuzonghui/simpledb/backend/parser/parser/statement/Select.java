@@ -4,4 +4,12 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+    /**
+     * select ... for share，对读到的记录加共享锁。
+     */
+    public boolean forShare;
+    /**
+     * select ... limit n，最多返回n行，-1表示没有限制。
+     */
+    public int limit = -1;
 }
@@ -0,0 +1,9 @@
+package top.wuzonghui.simpledb.backend.parser.parser.statement;
+
+public class Set {
+    /**
+     * 要设置的参数名，目前只支持lock_timeout。
+     */
+    public String name;
+    public String value;
+}
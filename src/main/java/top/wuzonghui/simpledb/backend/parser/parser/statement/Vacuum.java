@@ -0,0 +1,8 @@
+package top.wuzonghui.simpledb.backend.parser.parser.statement;
+
+public class Vacuum {
+    /**
+     * 要清理的表，为null时清理所有表。
+     */
+    public String tableName;
+}
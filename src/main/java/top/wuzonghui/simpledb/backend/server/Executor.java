@@ -17,9 +17,15 @@ public class Executor {
 
     long xid;
 
+    /**
+     * 通过set lock_timeout设置的锁等待超时时间，对当前会话之后开启的所有事务生效，小于0表示使用默认值。
+     */
+    long lockTimeout;
+
     public Executor(TableManager tbm) {
         this.tbm = tbm;
         this.xid = 0;
+        this.lockTimeout = -1;
     }
 
     /**
@@ -41,6 +47,7 @@ public class Executor {
             Begin begin = (Begin) stat;
             BeginRes beginRes = tbm.begin(begin);
             this.xid = beginRes.xid;
+            applyLockTimeout();
             return beginRes.result;
         } else if (Commit.class.isInstance(stat)) {
             if (xid == 0) {
@@ -56,6 +63,16 @@ public class Executor {
             byte[] abort = tbm.abort(this.xid);
             xid = 0;
             return abort;
+        } else if (Set.class.isInstance(stat)) {
+            Set set = (Set) stat;
+            lockTimeout = Long.parseLong(set.value);
+            if (xid != 0) {
+                return tbm.setLockTimeout(xid, lockTimeout);
+            }
+            return ("set " + set.name).getBytes();
+        } else if (Vacuum.class.isInstance(stat)) {
+            //vacuum不属于任何事务，回收的是对所有活跃事务都不可见的版本
+            return tbm.vacuum((Vacuum) stat);
         } else {
             return execute2(stat);
         }
@@ -63,15 +80,18 @@ public class Executor {
 
     private byte[] execute2(Object stat) throws Exception {
         /*
-            1.如果没指定事务，那么就分配一个临时事务。
+            1.如果没指定事务，那么就分配一个临时事务。select和show只读数据，分配只读事务，不需要写xid文件。
             2.根据stat对象的类型调用响应方法。
          */
         boolean tempTransaction = false;
         Exception e = null;
         if (this.xid == 0) {
             tempTransaction = true;
-            BeginRes begin = tbm.begin(new Begin());
+            Begin temp = new Begin();
+            temp.isReadOnly = (Select.class.isInstance(stat) && !((Select) stat).forShare) || Show.class.isInstance(stat);
+            BeginRes begin = tbm.begin(temp);
             this.xid = begin.xid;
+            applyLockTimeout();
         }
         try {
             byte[] res = null;
@@ -89,6 +109,10 @@ public class Executor {
                 res = tbm.update(xid, (Update) stat);
             } else if (Drop.class.isInstance(stat)) {
                 res = tbm.drop(xid, (Drop) stat);
+            } else if (CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(xid, (CreateIndex) stat);
+            } else if (DropIndex.class.isInstance(stat)) {
+                res = tbm.dropIndex(xid, (DropIndex) stat);
             }
             return res;
         } catch (Exception e1) {
@@ -106,6 +130,12 @@ public class Executor {
         }
     }
 
+    private void applyLockTimeout() {
+        if (lockTimeout >= 0) {
+            tbm.setLockTimeout(xid, lockTimeout);
+        }
+    }
+
     /**
      * close一个执行器会回滚当前未提交的事务。
      */
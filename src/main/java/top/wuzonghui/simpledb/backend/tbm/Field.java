@@ -2,24 +2,28 @@ package top.wuzonghui.simpledb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import top.wuzonghui.simpledb.backend.im.BPlusTree;
+import top.wuzonghui.simpledb.backend.im.RangeCursor;
 import top.wuzonghui.simpledb.backend.parser.parser.statement.SingleExpression;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.backend.utils.ParseStringRes;
 import top.wuzonghui.simpledb.backend.utils.Parser;
 import top.wuzonghui.simpledb.common.Error;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Starry
  * @create 2023-01-06-1:46 AM
  * @Describe 字段的抽象。一个Field对象就是一个表字段的抽象。由于 TBM 基于 VM，单个字段信息和表信息都是直接保存在 Entry 中。
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][KeyFormat]
  * 如果field无索引，IndexUid为0。
  * 其中FieldName，TypeName这样的字符串，在数据库中存储的方式都是[StringLength][StringData]。
+ * KeyFormat是1字节的B+树key格式，旧版本的Entry没有这一字节，其中string字段的索引以字符串的哈希值为key(见hasHashKeys)。
  */
 public class Field {
     /**
@@ -45,12 +49,44 @@ public class Field {
     /**
      * 如果index=0，则说明该Field不存在索引，如果不为0，则代表该Field的索引对应的B+树的bootDataItem的uid。
      */
-    private long index;
+    private volatile long index;
 
     /**
-     * 当前字段(只有索引字段有)的索引，一颗B+树。
+     * 当前字段(只有索引字段有)的索引，一颗B+树。加载字段时不会立即加载，第一次使用时由tree()加载。
      */
-    private BPlusTree bt;
+    private volatile BPlusTree bt;
+
+    /**
+     * 正在为该字段建立索引时不为null，记录建树期间其他事务对索引的修改{key, uid, 1插入/0删除}，建好后按顺序补到新树上。
+     */
+    private volatile Queue<Change> building;
+
+    /**
+     * string字段的索引以字符串的哈希值为key，是旧版本建立的索引，加载表时重建(见Table.upgradeIndexes)。
+     */
+    private volatile boolean hashKeys;
+
+    /**
+     * KeyFormat：旧版本的key格式，string类型是字符串的哈希值。
+     */
+    private static final byte KEY_HASH = 0;
+
+    /**
+     * KeyFormat：key是value2Key的可比较编码。
+     */
+    private static final byte KEY_ORDERED = 1;
+
+    private static class Change {
+        byte[] key;
+        long uid;
+        boolean insert;
+
+        Change(byte[] key, long uid, boolean insert) {
+            this.key = key;
+            this.uid = uid;
+            this.insert = insert;
+        }
+    }
 
     /**
      * @Describe 根据Field所属的Table和Field实际存储的Entry的uid，加载一个Field对象。
@@ -61,7 +97,7 @@ public class Field {
     public static Field loadField(Table tb, long uid) {
         byte[] raw = null;
         try {
-            //[FieldName][TypeName][IndexUid]
+            //[FieldName][TypeName][IndexUid][KeyFormat]
             raw = ((TableManagerImpl) tb.tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
         } catch (Exception e) {
             Panic.panic(e);
@@ -83,7 +119,7 @@ public class Field {
     }
 
     /**
-     * @Describe 通过解析按Field格式的byte数组，[FieldName][TypeName][IndexUid]，将FileName
+     * @Describe 通过解析按Field格式的byte数组，[FieldName][TypeName][IndexUid][KeyFormat]，将FileName
      * @param raw
      * @return
      */
@@ -94,21 +130,38 @@ public class Field {
         fieldName = res.str;
         position += res.next;
         //2.解析fieldType
-        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        res = Parser.parseString(raw, position);
         fieldType = res.str;
 
         //解析出indexUid
         position += res.next;
-        this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
-        //如果index不为0，说明该字段存在索引。
-        if (index != 0) {
-            try {
-                bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
-            } catch (Exception e) {
-                Panic.panic(e);
+        this.index = Codec.getLong(raw, position);
+        position += 8;
+        byte keyFormat = position < raw.length ? raw[position] : KEY_HASH;
+        this.hashKeys = "string".equals(fieldType) && index != 0 && keyFormat == KEY_HASH;
+        return this;
+    }
+
+    /**
+     * @Describe 获取该字段索引的B+树，第一次调用时才根据index加载。
+     * @return 该字段的B+树。
+     */
+    private BPlusTree tree() {
+        BPlusTree tree = bt;
+        if (tree == null) {
+            synchronized (this) {
+                tree = bt;
+                if (tree == null) {
+                    try {
+                        tree = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+                    } catch (Exception e) {
+                        Panic.panic(e);
+                    }
+                    bt = tree;
+                }
             }
         }
-        return this;
+        return tree;
     }
 
     /**
@@ -146,10 +199,29 @@ public class Field {
      * @throws Exception
      */
     private void persistSelf(long xid) throws Exception {
+        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, raw(index));
+    }
+
+    private byte[] raw(long index) {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        return Bytes.concat(nameRaw, typeRaw, indexRaw, new byte[]{KEY_ORDERED});
+    }
+
+    /**
+     * @Describe 通过VersionManager更新该字段的Entry，把IndexUid改为index。
+     * @return 字段的Entry是否换了uid(旧格式的Entry更新后会换到新的uid)。
+     * @throws Exception
+     */
+    private boolean persistIndex(long xid, long index) throws Exception {
+        long newUid = ((TableManagerImpl) tb.tbm).vm.update(xid, 0, uid, raw(index));
+        if (newUid == 0) {
+            throw Error.NullEntryException;
+        }
+        boolean moved = newUid != uid;
+        this.uid = newUid;
+        return moved;
     }
 
     /**
@@ -171,6 +243,113 @@ public class Field {
         return index != 0;
     }
 
+    /**
+     * @Describe 是否正在为该字段建立索引。
+     */
+    public boolean isBuilding() {
+        return building != null;
+    }
+
+    /**
+     * @Describe 开始为该字段建立索引，此后对该字段索引的修改都通过logBuild记录下来。调用者持有表的索引写锁。
+     */
+    void startBuild() {
+        building = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @Describe 记录建树期间对索引的一次修改。
+     * @param key 字段的值。
+     * @param uid 版本链的根。
+     * @param insert true：插入。false：删除。
+     */
+    void logBuild(Object key, long uid, boolean insert) {
+        Queue<Change> log = building;
+        if (log != null) {
+            log.add(new Change(value2Key(key), uid, insert));
+        }
+    }
+
+    /**
+     * @Describe 建树完成，补上建树期间的修改，把新树设为该字段的索引并持久化。调用者持有表的索引写锁。
+     * @param index 新树的bootDataItem的uid。
+     * @throws Exception
+     */
+    void finishBuild(long xid, long index) throws Exception {
+        BPlusTree tree = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+        for (Change change : building) {
+            if (change.insert) {
+                //扫描时已经看到的版本链不重复插入
+                if (!tree.search(change.key).contains(change.uid)) {
+                    tree.insert(change.key, change.uid);
+                }
+            } else {
+                tree.delete(change.key, change.uid);
+            }
+        }
+        boolean moved = persistIndex(xid, index);
+        this.bt = tree;
+        this.index = index;
+        this.building = null;
+        if (moved) {
+            tb.rewrite(xid);
+        }
+    }
+
+    /**
+     * @Describe 建树失败，放弃记录的修改。
+     */
+    void abortBuild() {
+        building = null;
+    }
+
+    /**
+     * @Describe 是否是以字符串的哈希值为key的旧索引。
+     */
+    boolean hasHashKeys() {
+        return hashKeys;
+    }
+
+    /**
+     * @Describe 用以value2Key为key重新建好的树替换该字段的旧索引并持久化。只在加载表时调用，此时没有其他事务使用索引。
+     * @param index 新树的bootDataItem的uid。
+     * @return 旧的B+树，由调用者释放。
+     * @throws Exception
+     */
+    BPlusTree replaceIndex(long xid, long index) throws Exception {
+        BPlusTree old = tree();
+        boolean moved = persistIndex(xid, index);
+        this.bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+        this.index = index;
+        this.hashKeys = false;
+        if (moved) {
+            tb.rewrite(xid);
+        }
+        return old;
+    }
+
+    /**
+     * @Describe 把该字段的IndexUid持久化为0。内存中的索引在事务提交后才由detachIndex摘除，在此之前其他事务照常维护和使用它。
+     * @throws Exception
+     */
+    void dropIndex(long xid) throws Exception {
+        boolean moved = persistIndex(xid, 0);
+        if (moved) {
+            tb.rewrite(xid);
+        }
+    }
+
+    /**
+     * @Describe 从内存中摘除该字段的索引。调用者持有表的索引写锁，此后不会再有人使用旧树。
+     * @return 旧的B+树，由调用者释放。
+     */
+    BPlusTree detachIndex() {
+        BPlusTree tree = tree();
+        this.index = 0;
+        this.bt = null;
+        return tree;
+    }
+
     /**
      * @Describe 向该Field索引的B+树中，插入son-key对。
      * @param key key，可以是String，也可以是int，也可以是long。
@@ -178,19 +357,36 @@ public class Field {
      * @throws Exception
      */
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        tree().insert(value2Key(key), uid);
+    }
+
+    /**
+     * @Describe 从该Field索引的B+树中，删除son-key对。
+     * @param key key，可以是String，也可以是int，也可以是long。
+     * @param uid son(uid)。数据实际存储的DataItem的uid。
+     * @return 是否找到并删除了该son-key对。
+     * @throws Exception
+     */
+    public boolean delete(Object key, long uid) throws Exception {
+        return tree().delete(value2Key(key), uid);
     }
 
     /**
-     * @Describe 利用当前字段的B+树索引，搜索所有key在[left,right]中的数据。
-     * @param left 左边界。
-     * @param right 右边界
+     * @Describe 利用当前字段的B+树索引，搜索所有key在[left, right)中的数据，key由value2Key计算。
+     * @param left 左边界，为null时没有左边界。
+     * @param right 右边界，为null时没有右边界。
      * @return List  uids，存储了所有在范围里的数据的uid。
      * @throws Exception
      */
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    public List<Long> search(byte[] left, byte[] right) throws Exception {
+        return tree().searchRange(left, right, null);
+    }
+
+    /**
+     * @Describe 和search相同的范围，返回逐个叶子节点读取的游标，游标的key是value2Key计算出的key。
+     */
+    RangeCursor cursor(byte[] left, byte[] right) {
+        return tree().cursor(left, right, true);
     }
 
     /**
@@ -213,25 +409,73 @@ public class Field {
     }
 
     /**
-     * @Describe 计算Object key在B+树中的long key。
-     * @param key
-     * @return long类型的返回值。
-     * @Instance
+     * @Describe 计算Object key在该字段的B+树中的key。
+     * @Detail 按无符号字节比较key和比较值本身的顺序一致，因此等值和范围查找都对应B+树上的一段连续范围。
+     * int32和int64都编码成8字节的Codec.sortableLong，和之前建立的整数索引兼容；string编码见Codec.sortableString，
+     * 不同的字符串编码后一定不同，等值查找只会找到值相同的数据。
+     */
+    public byte[] value2Key(Object key) {
+        switch (fieldType) {
+            case "int32":
+                return Codec.sortableLong((int) key);
+            case "int64":
+                return Codec.sortableLong((long) key);
+            default:
+                return Codec.sortableString((String) key);
+        }
+    }
+
+    /**
+     * @Describe 将Object v编码成可比较的字节串，用于组合索引的key。
+     * @Detail 按无符号字节逐个比较编码后的字节串，和比较值本身的顺序一致；编码后的字节串可以直接拼接，由bytes2Value依次解析。
+     * int32和int64分别编码成4字节和8字节(Codec.sortableInt、Codec.sortableLong)，string编码见Codec.sortableString。
      */
-    public long value2Uid(Object key) {
-        long uid = 0;
+    public byte[] value2Bytes(Object v) {
+        byte[] raw = null;
         switch (fieldType) {
+            case "int32":
+                raw = Codec.sortableInt((int) v);
+                break;
+            case "int64":
+                raw = Codec.sortableLong((long) v);
+                break;
             case "string":
-                uid = Parser.str2Uid((String) key);
+                raw = Codec.sortableString((String) v);
                 break;
+        }
+        return raw;
+    }
+
+    /**
+     * @Describe 从raw的offset处解析出由value2Bytes编码的值。
+     * @return 解析出的值，以及该值占用的字节数。
+     */
+    public ParseValueRes bytes2Value(byte[] raw, int offset) {
+        ParseValueRes res = new ParseValueRes();
+        switch (fieldType) {
             case "int32":
-                int uint = (int) key;
-                return (long) uint;
+                res.v = Codec.getSortableInt(raw, offset);
+                res.shift = 4;
+                break;
             case "int64":
-                uid = (long) key;
+                res.v = Codec.getSortableLong(raw, offset);
+                res.shift = 8;
+                break;
+            case "string":
+                ParseStringRes r = Codec.getSortableString(raw, offset);
+                res.v = r.str;
+                res.shift = r.next;
                 break;
         }
-        return uid;
+        return res;
+    }
+
+    /**
+     * @Describe 比较该字段的两个值。
+     * @return v1小于、等于、大于v2时分别返回负数、0、正数。
+     */
+    public int compareValue(Object v1, Object v2) {
+        return Codec.compareKeys(value2Bytes(v1), value2Bytes(v2));
     }
 
     /**
@@ -267,18 +511,28 @@ public class Field {
     }
 
     public ParseValueRes parserValue(byte[] raw) {
+        return parserValue(raw, 0);
+    }
+
+    /**
+     * @Describe 从raw的offset处解析出该字段的值，不拷贝raw。
+     * @param raw 一行数据所在的数组，可以是DataItem所在页的数据。
+     * @param offset 该字段的值在raw中的起始位置。
+     * @return 解析出的值，以及该值占用的字节数。
+     */
+    public ParseValueRes parserValue(byte[] raw, int offset) {
         ParseValueRes res = new ParseValueRes();
         switch (fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
+                res.v = Codec.getInt(raw, offset);
                 res.shift = 4;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Codec.getLong(raw, offset);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
+                ParseStringRes r = Parser.parseString(raw, offset);
                 res.v = r.str;
                 res.shift = r.next;
                 break;
@@ -318,36 +572,51 @@ public class Field {
     }
 
     /**
-     * @Describe 解析SingleExpression对象，返回FieldCalRes对象。
+     * @Describe 解析SingleExpression对象，返回该字段的B+树上对应的key范围。
      * @param exp
-     * @return FieldCalRes对象，包括long left,long right两个字段。
+     * @return FieldCalRes对象，key范围为[left, right)。
      * @throws Exception
      * @Instance 比如exp.field = id, exp.compareOp = ">", exp.value = 7。
      * 则会根据索引，查询出id > 7的leftKey和rightKey，封装到FieldCalRes对象中返回。
      */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
+        return calRange(new byte[0], value2Key(string2Value(exp.value)), exp.compareOp);
+    }
+
+    /**
+     * @Describe 该字段作为组合索引中的一列时，解析SingleExpression对象，返回组合索引上对应的key范围。
+     * @param prefix 该字段之前的各列的等值条件编码后拼接成的前缀。
+     */
+    public FieldCalRes calExp(byte[] prefix, SingleExpression exp) throws Exception {
+        return calRange(prefix, value2Bytes(string2Value(exp.value)), exp.compareOp);
+    }
+
+    /**
+     * @Describe 以prefix开头、下一部分和key满足compareOp的所有key的范围。key之后可能还拼接着其他列，
+     * 因此"="的上界和">"的下界都是以prefix + key开头的所有key的上界。
+     */
+    static FieldCalRes calRange(byte[] prefix, byte[] key, String compareOp) throws Exception {
         FieldCalRes result = new FieldCalRes();
-        switch (exp.compareOp) {
-            case ">" :
-                //右边界是最大值没什么好说的。
-                result.right = Long.MAX_VALUE;
-                //将exp中的string value，解析成Object value
-                Object value1 = string2Value(exp.value);
-                //根据Object value，算出key。
-                long l = value2Uid(value1) + 1;
-                result.left = l;
+        byte[] full = Bytes.concat(prefix, key);
+        switch (compareOp) {
+            case ">":
+                result.left = Codec.prefixEnd(full);
+                result.right = Codec.prefixEnd(prefix);
+                //key全是0xFF时没有更大的key
+                if (result.left == null) {
+                    result.right = result.left = prefix;
+                }
                 break;
-            case "<" :
-                result.left = 0;
-                Object value2 = string2Value(exp.value);
-                long l2 = value2Uid(value2);
-                result.right = l2 > 0 ? l2 - 1 : l2;
+            case "<":
+                result.left = prefix;
+                result.right = full;
                 break;
-            case "=" :
-                long l3 = value2Uid(string2Value(exp.value));
-                result.left = l3;
-                result.right = l3;
+            case "=":
+                result.left = full;
+                result.right = Codec.prefixEnd(full);
                 break;
+            default:
+                throw Error.InvalidLogOpException;
         }
         return result;
     }
@@ -1,6 +1,9 @@
 package top.wuzonghui.simpledb.backend.tbm;
 
+/**
+ * 索引上的key范围[left, right)，为null时没有边界。
+ */
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public byte[] right;
 }
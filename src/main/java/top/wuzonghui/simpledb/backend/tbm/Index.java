@@ -0,0 +1,334 @@
+package top.wuzonghui.simpledb.backend.tbm;
+
+import com.google.common.primitives.Bytes;
+import top.wuzonghui.simpledb.backend.im.BPlusTree;
+import top.wuzonghui.simpledb.backend.im.RangeCursor;
+import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+import top.wuzonghui.simpledb.backend.utils.Codec;
+import top.wuzonghui.simpledb.backend.utils.Panic;
+import top.wuzonghui.simpledb.backend.utils.ParseStringRes;
+import top.wuzonghui.simpledb.backend.utils.Parser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Starry
+ * @create 2023-02-24-3:12 PM
+ * @Describe 组合索引。和Field中的单字段索引一样保存在Entry中，二进制格式为：
+ * [IndexUid][KeyNumber][FieldName1][FieldName2]...[FieldNameN]
+ * IndexUid是B+树的bootDataItem的uid，前KeyNumber个字段是key字段，其余的是include字段。
+ * @Detail B+树中的key是各个key字段的值按Field.value2Bytes编码后依次拼接，再拼接上各个include字段的值。
+ * 1.编码后的字节串按无符号字节比较和值的顺序一致，并且可以直接拼接，因此前几个key字段的等值条件加上下一个字段的范围条件，
+ * 对应B+树上的一段连续范围(见Field.calExp)。
+ * 2.include字段只是附在key之后，不参与查找，叶子节点中的key包含了查询需要的所有字段时，
+ * 可以直接从key中解析出数据行，不需要再读取记录(见Table.read)。
+ * 3.和单字段索引一样，索引项指向版本链的根，在vacuum回收整条版本链时删除。
+ */
+public class Index {
+    /**
+     * 该索引的uid，也是实际存储的Entry的uid。
+     */
+    long uid;
+
+    /**
+     * 索引所属的表。
+     */
+    private Table tb;
+
+    /**
+     * key字段。
+     */
+    Field[] keyFields;
+
+    /**
+     * include字段。
+     */
+    Field[] includeFields;
+
+    /**
+     * B+树的bootDataItem的uid，建立索引完成之前为0。
+     */
+    private volatile long index;
+
+    private volatile BPlusTree bt;
+
+    /**
+     * 正在建立索引时不为null，记录建树期间其他事务对索引的修改，建好后按顺序补到新树上。
+     */
+    private volatile Queue<Change> building;
+
+    private static class Change {
+        byte[] key;
+        long uid;
+        boolean insert;
+
+        Change(byte[] key, long uid, boolean insert) {
+            this.key = key;
+            this.uid = uid;
+            this.insert = insert;
+        }
+    }
+
+    Index(Table tb, Field[] keyFields, Field[] includeFields) {
+        this.tb = tb;
+        this.keyFields = keyFields;
+        this.includeFields = includeFields;
+    }
+
+    /**
+     * @Describe 根据Index实际存储的Entry的uid，加载一个Index对象。调用前表的字段已经加载。
+     */
+    static Index loadIndex(Table tb, long uid) {
+        byte[] raw = null;
+        try {
+            raw = ((TableManagerImpl) tb.tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        assert raw != null;
+        long index = Codec.getLong(raw, 0);
+        int keyNumber = Codec.getShort(raw, 8);
+        int position = 10;
+        Field[] fields = new Field[tb.fields.size()];
+        int count = 0;
+        while (position < raw.length) {
+            ParseStringRes res = Parser.parseString(raw, position);
+            position += res.next;
+            for (Field field : tb.fields) {
+                if (field.fieldName.equals(res.str)) {
+                    fields[count++] = field;
+                }
+            }
+        }
+        Field[] keyFields = new Field[keyNumber];
+        Field[] includeFields = new Field[count - keyNumber];
+        System.arraycopy(fields, 0, keyFields, 0, keyNumber);
+        System.arraycopy(fields, keyNumber, includeFields, 0, count - keyNumber);
+        Index idx = new Index(tb, keyFields, includeFields);
+        idx.uid = uid;
+        idx.index = index;
+        return idx;
+    }
+
+    private byte[] raw() {
+        byte[] raw = Bytes.concat(Parser.long2Byte(index), Parser.short2Byte((short) keyFields.length));
+        for (Field field : keyFields) {
+            raw = Bytes.concat(raw, Parser.string2Byte(field.fieldName));
+        }
+        for (Field field : includeFields) {
+            raw = Bytes.concat(raw, Parser.string2Byte(field.fieldName));
+        }
+        return raw;
+    }
+
+    private BPlusTree tree() {
+        BPlusTree tree = bt;
+        if (tree == null) {
+            synchronized (this) {
+                tree = bt;
+                if (tree == null) {
+                    try {
+                        tree = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+                    } catch (Exception e) {
+                        Panic.panic(e);
+                    }
+                    bt = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @Describe 索引是否已经建好，可以使用。
+     */
+    public boolean isIndexed() {
+        return index != 0;
+    }
+
+    public boolean isBuilding() {
+        return building != null;
+    }
+
+    /**
+     * @Describe 是否以fieldNames为key字段(顺序相同)。
+     */
+    boolean hasKeys(String[] fieldNames) {
+        if (fieldNames.length != keyFields.length) {
+            return false;
+        }
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (!keyFields[i].fieldName.equals(fieldNames[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @Describe key字段或include字段中是否包含field。
+     */
+    boolean contains(Field field) {
+        for (Field f : keyFields) {
+            if (f == field) {
+                return true;
+            }
+        }
+        for (Field f : includeFields) {
+            if (f == field) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @Describe 叶子节点中的key是否包含了fieldNames中的所有字段。
+     */
+    boolean covers(Collection<String> fieldNames) {
+        for (String name : fieldNames) {
+            boolean found = false;
+            for (Field f : keyFields) {
+                found |= f.fieldName.equals(name);
+            }
+            for (Field f : includeFields) {
+                found |= f.fieldName.equals(name);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @Describe 数据行在该索引中的key。
+     * @param entry 数据行，{fieldName -> value}。
+     */
+    byte[] key(Map<String, Object> entry) {
+        byte[] key = new byte[0];
+        for (Field field : keyFields) {
+            key = Bytes.concat(key, field.value2Bytes(entry.get(field.fieldName)));
+        }
+        for (Field field : includeFields) {
+            key = Bytes.concat(key, field.value2Bytes(entry.get(field.fieldName)));
+        }
+        return key;
+    }
+
+    /**
+     * @Describe 从索引的key中解析出key字段和include字段的值。
+     */
+    Map<String, Object> decode(byte[] key) {
+        Map<String, Object> entry = new HashMap<>();
+        int position = 0;
+        for (Field field : keyFields) {
+            Field.ParseValueRes res = field.bytes2Value(key, position);
+            entry.put(field.fieldName, res.v);
+            position += res.shift;
+        }
+        for (Field field : includeFields) {
+            Field.ParseValueRes res = field.bytes2Value(key, position);
+            entry.put(field.fieldName, res.v);
+            position += res.shift;
+        }
+        return entry;
+    }
+
+    void insert(Map<String, Object> entry, long uid) throws Exception {
+        tree().insert(key(entry), uid);
+    }
+
+    boolean delete(Map<String, Object> entry, long uid) throws Exception {
+        return tree().delete(key(entry), uid);
+    }
+
+    /**
+     * @Describe 搜索key在[left, right)中的数据。
+     */
+    List<Long> search(byte[] left, byte[] right) throws Exception {
+        return tree().searchRange(left, right, null);
+    }
+
+    /**
+     * @Describe 和search相同的范围，返回逐个叶子节点读取的游标，游标的key可以用decode解析。
+     */
+    RangeCursor cursor(byte[] left, byte[] right) {
+        return tree().cursor(left, right, true);
+    }
+
+    /**
+     * @Describe 开始建立索引，此后对该索引的修改都通过logBuild记录下来。调用者持有表的索引写锁。
+     */
+    void startBuild() {
+        building = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @Describe 记录建树期间对索引的一次修改。
+     */
+    void logBuild(Map<String, Object> entry, long uid, boolean insert) {
+        Queue<Change> log = building;
+        if (log != null) {
+            log.add(new Change(key(entry), uid, insert));
+        }
+    }
+
+    /**
+     * @Describe 建树完成，补上建树期间的修改，把该索引持久化。调用者持有表的索引写锁，之后由调用者更新表的Entry。
+     * @param index 新树的bootDataItem的uid。
+     */
+    void finishBuild(long xid, long index) throws Exception {
+        BPlusTree tree = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+        for (Change change : building) {
+            if (change.insert) {
+                if (!tree.search(change.key).contains(change.uid)) {
+                    tree.insert(change.key, change.uid);
+                }
+            } else {
+                tree.delete(change.key, change.uid);
+            }
+        }
+        this.index = index;
+        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, raw());
+        this.bt = tree;
+        this.building = null;
+    }
+
+    void abortBuild() {
+        building = null;
+    }
+
+    /**
+     * @Describe 标记该索引已经删除。调用者持有表的索引写锁，此后不会再有人使用旧树。
+     * @return 旧的B+树，由调用者释放。
+     */
+    BPlusTree drop() {
+        BPlusTree tree = tree();
+        this.index = 0;
+        this.bt = null;
+        return tree;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Index(");
+        for (int i = 0; i < keyFields.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(keyFields[i].fieldName);
+        }
+        sb.append(")");
+        if (includeFields.length > 0) {
+            sb.append(" include (");
+            for (int i = 0; i < includeFields.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(includeFields[i].fieldName);
+            }
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+}
@@ -1,15 +1,25 @@
 package top.wuzonghui.simpledb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import top.wuzonghui.simpledb.backend.common.SubArray;
+import top.wuzonghui.simpledb.backend.im.BPlusTree;
+import top.wuzonghui.simpledb.backend.im.BulkLoader;
+import top.wuzonghui.simpledb.backend.im.RangeCursor;
 import top.wuzonghui.simpledb.backend.parser.parser.statement.*;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.backend.utils.ParseStringRes;
 import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.backend.vm.LockTable;
 import top.wuzonghui.simpledb.backend.vm.VersionManager;
 import top.wuzonghui.simpledb.common.Error;
 
 import java.util.*;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 /**
  * @author Starry
@@ -19,6 +29,8 @@ import java.util.*;
  * 二进制结构如下：
  * [TableName][NextTable]
  * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [0][Index1Uid][Index2Uid]...[IndexNUid]
+ * 没有组合索引时不写后一行，字段的uid不会是0，以此分隔字段和组合索引(见Index)。
  */
 public class Table {
     /**
@@ -47,6 +59,61 @@ public class Table {
      */
     List<Field> fields = new ArrayList<>();
 
+    /**
+     * 该表的组合索引，包括正在建立的。
+     */
+    List<Index> indexes = new CopyOnWriteArrayList<>();
+
+    /**
+     * 加载表时解析出的字段uid，由loadFields()加载成Field对象。
+     */
+    private long[] fieldUids;
+
+    /**
+     * 加载表时解析出的组合索引的uid，在字段之后加载。
+     */
+    private long[] indexUids = new long[0];
+
+    /**
+     * 索引的读写锁。使用索引的语句(查找、insert、update、vacuum)持有读锁，create index和drop index切换字段或组合索引的状态时持有写锁。
+     */
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /**
+     * 有未提交的create index或drop index的事务，0表示没有。同一时刻只允许一个事务修改该表的索引，持有索引写锁时修改。
+     */
+    private long indexOwner;
+
+    /**
+     * indexOwner对索引的修改，事务结束时由TableManager调用commitIndexes或abortIndexes处理。
+     */
+    private final List<IndexChange> indexChanges = new CopyOnWriteArrayList<>();
+
+    /**
+     * 事务中对索引的一次修改。
+     * 新建的索引立即生效，事务回滚时从内存中撤销并回收新树。
+     * 删除的索引只持久化，事务提交后才摘除并回收旧树：提交前其他事务照常维护它，回滚或者崩溃恢复后IndexUid仍然指向完整的树。
+     */
+    private static class IndexChange {
+        /**
+         * 修改的字段索引，组合索引时为null。
+         */
+        Field field;
+        Index index;
+        boolean drop;
+        /**
+         * 修改前字段Entry的uid，回滚时恢复。
+         */
+        long fieldUid;
+
+        IndexChange(Field field, Index index, boolean drop) {
+            this.field = field;
+            this.index = index;
+            this.drop = drop;
+            this.fieldUid = field == null ? 0 : field.uid;
+        }
+    }
+
     public Table(TableManager tbm, long uid) {
         this.tbm = tbm;
         this.uid = uid;
@@ -62,6 +129,8 @@ public class Table {
      * @Describe 通过tbm对象，和uid对象，加载Table对象。
      * @return 加载出的Table对象。
      * @Detail 会根据uid，利用vm读出该表的二进制数据，解析二进制数据生成Table对象。
+     * 此时只解析了表名、下一张表的uid和各字段的uid，字段本身需要再调用loadFields()加载，
+     * 这样TableManager可以先顺着链表拿到所有表，再并行加载各表的字段。
      */
     public static Table loadTable(TableManager tbm, long uid) {
         TableManagerImpl tableManager = (TableManagerImpl) tbm;
@@ -124,35 +193,84 @@ public class Table {
         this.name = parseStringRes.str;
 
         position += parseStringRes.next;
-        this.nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+        this.nextUid = Codec.getLong(raw, position);
 
         position += 8;
 
-        while (position < raw.length) {
-            long fieldUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+        long[] uids = new long[(raw.length - position) / 8];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Codec.getLong(raw, position);
             position += 8;
-            Field field = Field.loadField(this, fieldUid);
-            this.fields.add(field);
+        }
+        int separator = 0;
+        while (separator < uids.length && uids[separator] != 0) {
+            separator++;
+        }
+        this.fieldUids = Arrays.copyOfRange(uids, 0, separator);
+        if (separator < uids.length) {
+            this.indexUids = Arrays.copyOfRange(uids, separator + 1, uids.length);
         }
         return this;
     }
 
+    /**
+     * 根据parseSelf解析出的字段uid，加载该表的所有字段。
+     */
+    void loadFields() {
+        List<Field> loaded = new ArrayList<>(fieldUids.length);
+        for (long fieldUid : fieldUids) {
+            loaded.add(Field.loadField(this, fieldUid));
+        }
+        this.fields = loaded;
+        for (long indexUid : indexUids) {
+            indexes.add(Index.loadIndex(this, indexUid));
+        }
+    }
+
     //该表调用vm，根据自身信息，将自己持久化到数据库中。
     private Table persistSelf(long xid) throws Exception {
-        //封装自身信息为raw
+        //根据自身持有的tbm，找到vm，insert
+        TableManagerImpl tableManager = (TableManagerImpl) this.tbm;
+        VersionManager vm = tableManager.vm;
+        long insertUid = vm.insert(xid, raw());
+        this.uid = insertUid;
+        return this;
+    }
+
+    //封装自身信息为raw
+    private byte[] raw() {
         byte[] tableNameRaw = Parser.string2Byte(this.name);
         byte[] nextTableRaw = Parser.long2Byte(this.nextUid);
         byte[] fieldUids = new byte[0];
         for (Field field : this.fields) {
             fieldUids = Bytes.concat(fieldUids, Parser.long2Byte(field.uid));
         }
+        byte[] indexUids = new byte[0];
+        for (Index index : indexes) {
+            if (index.isIndexed() && !isDropping(index)) {
+                indexUids = Bytes.concat(indexUids, Parser.long2Byte(index.uid));
+            }
+        }
+        if (indexUids.length > 0) {
+            indexUids = Bytes.concat(Parser.long2Byte(0), indexUids);
+        }
+        return Bytes.concat(tableNameRaw, nextTableRaw, fieldUids, indexUids);
+    }
 
-        //根据自身持有的tbm，找到vm，insert
+    /**
+     * 字段或下一张表的uid变化后，更新该表的Entry。旧格式的Entry更新后会换到新的uid，此时还要修正指向该表的booter或上一张表。
+     */
+    void rewrite(long xid) throws Exception {
         TableManagerImpl tableManager = (TableManagerImpl) this.tbm;
-        VersionManager vm = tableManager.vm;
-        long insertUid = vm.insert(xid, Bytes.concat(tableNameRaw, nextTableRaw, fieldUids));
-        this.uid = insertUid;
-        return this;
+        long oldUid = this.uid;
+        long newUid = tableManager.vm.update(xid, 0, oldUid, raw());
+        if (newUid == 0) {
+            throw Error.NullEntryException;
+        }
+        if (newUid != oldUid) {
+            this.uid = newUid;
+            tableManager.relinkTable(xid, oldUid, newUid);
+        }
     }
 
     @Override
@@ -179,17 +297,68 @@ public class Table {
      */
     public int delete(long xid, Delete delete) throws Exception {
         //通过解析where语句，返回所有要删除的数据行的uid。
-        List<Long> uids = parseWhere(delete.where);
+        CalWhereRes where = calWhere(delete.where, null);
+        List<Long> uids = search(where);
         int count = 0;
         VersionManager versionManager = ((TableManagerImpl)this.tbm).vm;
         for (Long uid : uids) {
-            if (versionManager.delete(xid, uid)) {
+            if (where.filter) {
+                Map<String, Object> entry = versionManager.read(xid, uid, this::parseEntry);
+                if (entry == null || !where.matches(entry)) continue;
+            }
+            if (versionManager.delete(xid, this.uid, uid)) {
                 count++;
             }
         }
         return count;
     }
 
+    /**
+     * @Describe 清理该表中的死版本。
+     * @return 回收的版本数。
+     * @Detail 每一条版本链的根都会插入到所有索引中，因此扫描任意一个索引的全部范围，就能找到该表的所有版本链，
+     * 再逐条交给vm回收链上已经对所有活跃事务都不可见的版本。
+     * 整条版本链都被回收时，根也不再存在，同时从所有索引中删除指向它的索引项，索引的大小因此和存活的数据一致。
+     * delete和update不直接删除索引项：被删除的版本在vacuum之前仍可能对其他事务可见，需要通过索引找到。
+     * vacuum同时让vm记下只剩一个对所有事务都可见的版本的链，查询可以直接使用组合索引中的值(见read)。
+     */
+    public int vacuum() throws Exception {
+        indexLock.readLock().lock();
+        try {
+            return vacuum0();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private int vacuum0() throws Exception {
+        List<Long> uids = indexedField().search(null, null);
+        int count = 0;
+        VersionManager versionManager = ((TableManagerImpl)this.tbm).vm;
+        for (Long uid : uids) {
+            List<Map<String, Object>> freed = new ArrayList<>(1);
+            count += versionManager.vacuum(uid, raw -> freed.add(parseEntry(raw)));
+            //create index之前的update可能让同一条链上有不同的索引列，每个版本都删一次，重复的删除什么也不做
+            for (Map<String, Object> entry : freed) {
+                for (Field field : fields) {
+                    if (field.isIndexed()) {
+                        field.delete(entry.get(field.fieldName), uid);
+                    } else if (field.isBuilding()) {
+                        field.logBuild(entry.get(field.fieldName), uid, false);
+                    }
+                }
+                for (Index index : indexes) {
+                    if (index.isIndexed()) {
+                        index.delete(entry, uid);
+                    } else if (index.isBuilding()) {
+                        index.logBuild(entry, uid, false);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
     /**
      * @Describe update该表的数据。
      * @param xid 执行update操作的事务的xid。
@@ -198,46 +367,55 @@ public class Table {
      * @throws Exception
      */
     public int update(long xid, Update update) throws Exception {
+        //先加表上的意向排他锁再持有索引读锁，之后的行锁不会在持有读锁时等待表锁，见lockTableEntry
+        ((TableManagerImpl) tbm).vm.lockTable(xid, this.uid, LockTable.IX);
+        indexLock.readLock().lock();
+        try {
+            return update0(xid, update);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private int update0(long xid, Update update) throws Exception {
         //那些需要更新数据的行数据的uid。
-        List<Long> uids = parseWhere(update.where);
+        CalWhereRes where = calWhere(update.where, null);
+        List<Long> uids = search(where);
         //找到需要更新的Field。
-        Field field = null;
-        for (Field field1 : fields) {
-            if (field1.fieldName.equals(update.fieldName)) {
-                field = field1;
-                break;
-            }
-        }
-        if(field == null) {
-            throw Error.FieldNotFoundException;
-        }
+        Field field = findField(update.fieldName);
         //将update对象中String类型的value对象，根据该field的数据类型，解析为对应的数据。
         Object value = field.string2Value(update.value);
+        boolean indexed = field.isIndexed() || field.isBuilding();
+        for (Index index : indexes) {
+            indexed |= index.contains(field);
+        }
         int count = 0;
         VersionManager versionManager = ((TableManagerImpl)this.tbm).vm;
         for (Long uid : uids) {
-            /*
-                更新数据实际上是将原来的行数据删除，再将新的数据插入到表中，记得更新索引。
-             */
-            //1.读出行数据
-            byte[] raw = versionManager.read(xid, uid);
-            if (raw == null) continue;
-            //2.将原数据删除
-            versionManager.delete(xid, uid);
-            //3.将行数据解析成Map
-            Map<String, Object> map = parseEntry(raw);
+            //1.读出行数据，直接解析成Map
+            Map<String, Object> map = versionManager.read(xid, uid, this::parseEntry);
+            if (map == null || !where.matches(map)) continue;
+            //2.被更新的字段在某个索引(包括正在建立的索引和组合索引的include字段)中并且值发生了变化时，新版本需要新的索引项，
+            //只能将原数据删除再插入一条新记录；否则新版本直接接在原记录的版本链上，索引不需要修改。
+            boolean indexChanged = indexed && !value.equals(map.get(field.fieldName));
+            //3.修改Map中要更新的字段
             map.put(field.fieldName, value);
             //4.将map反解析为raw数据
             byte[] newRaw = entry2Raw(map);
-            long newUid = versionManager.insert(xid, newRaw);
+            long root;
+            if (indexChanged) {
+                if (!versionManager.delete(xid, this.uid, uid)) continue;
+                root = versionManager.insert(xid, newRaw);
+            } else {
+                root = versionManager.update(xid, this.uid, uid, newRaw);
+                if (root == 0) continue;
+            }
 
             count++;
 
-            //遍历Field，更新索引
-            for (Field field1 : fields) {
-                if (field1.isIndexed()) {
-                    field1.insert(map.get(field1.fieldName), newUid);
-                }
+            //新的版本链需要插入到所有索引中
+            if (root != uid) {
+                indexInsert(map, root);
             }
         }
         return count;
@@ -249,10 +427,12 @@ public class Table {
      * @param read Select对象，封装了读取数据所需的全部信息。
      * @return String。
      * @throws Exception
+     * @Detail 查询用到的所有字段(select的字段和where中的字段)都在组合索引的key中时(index-only scan)，
+     * 对于vm确认对所有事务都可见的版本链，直接从索引的key中解析出数据行，不读取记录；其余的仍然读取记录判断可见性。
+     * 除for share外，用RangeCursor边扫描索引边读取数据行，不先把所有uid放到列表中，limit满足后不再读取之后的叶子节点。
+     * 重复的uid由CalWhereRes.owns去掉，不需要记录已经返回过的uid。
      */
     public String read(long xid, Select read) throws Exception {
-        //找到那些满足where条件的数据行的uid。
-        List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
         String[] readField = read.fields;
         List<Field> readField0 = new ArrayList<>();
@@ -283,16 +463,63 @@ public class Table {
             sb.append("-");
         }
         sb.append("\n");
-        boolean isEmptySet = true;
-        for (Long uid : uids) {
-            //读出数据行
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
-            isEmptySet = false;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry, readField0)).append("\n");
-        }
-        if (isEmptySet) {
+
+        //for share需要对每一行加锁，不使用index-only scan
+        Set<String> used = new HashSet<>();
+        for (Field field : readField0) {
+            used.add(field.fieldName);
+        }
+        if (read.where != null) {
+            used.add(read.where.singleExp1.field);
+            if (read.where.singleExp2 != null) {
+                used.add(read.where.singleExp2.field);
+            }
+        }
+        CalWhereRes where = calWhere(read.where, read.forShare ? null : used);
+        boolean indexOnly = !read.forShare && where.covers(used);
+
+        int count = 0;
+        VersionManager versionManager = ((TableManagerImpl) tbm).vm;
+        if (read.forShare) {
+            //等待行锁时不能持有索引锁，先找出所有uid
+            for (Long uid : search(where)) {
+                if (count == read.limit) {
+                    break;
+                }
+                //for share：先加共享锁再读，持有期间其他事务不能删除或更新该行
+                versionManager.lockShared(xid, this.uid, uid);
+                Map<String, Object> entry = versionManager.read(xid, uid, this::parseEntry);
+                if (entry == null || !where.matches(entry)) continue;
+                count++;
+                sb.append(printEntry(entry, readField0)).append("\n");
+            }
+        } else {
+            indexLock.readLock().lock();
+            try {
+                for (int i = 0; i < where.scans.size() && count != read.limit; i++) {
+                    Scan scan = where.scans.get(i);
+                    //达到limit后close，之后的叶子节点不再读取
+                    try (RangeCursor cursor = scan.cursor()) {
+                        while (count != read.limit && cursor.next()) {
+                            long uid = cursor.uid();
+                            Map<String, Object> entry;
+                            if (indexOnly && versionManager.isAllVisible(uid)) {
+                                entry = scan.index.decode(cursor.key());
+                            } else {
+                                //读出数据行，在DataItem的读锁内直接从页数据中解析，不拷贝整行
+                                entry = versionManager.read(xid, uid, this::parseEntry);
+                            }
+                            if (entry == null || !where.owns(i, entry, cursor.key()) || !where.matches(entry)) continue;
+                            count++;
+                            sb.append(printEntry(entry, readField0)).append("\n");
+                        }
+                    }
+                }
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        }
+        if (count == 0) {
             return "Empty Set";
         }
         return sb.toString();
@@ -302,22 +529,410 @@ public class Table {
      * @Describe 在该表上执行insert操作。
      * @param xid 执行insert操作的事务的xid。
      * @param insert 封装好的insert对象，携带所有insert信息。
+     * @return 插入的行数。
      * @throws Exception
-     * @Detail 要插入的数据将会被封装成一行，并插入到数据库中。如果一个表字段存在索引，则更新索引。
-     */
-    public void insert(long xid, Insert insert) throws Exception {
-        //根据insert的String[]数组，解析出map
-        Map<String, Object> entry = string2Entry(insert.values);
-        //根据map解析出一行数据的二进制格式。
-        byte[] raw = entry2Raw(entry);
-        //调用vm的insert方法，将这一行数据插入到数据库中，返回插入的记录的uid。
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        //遍历该表的所有表字段，如果该表字段存在索引，那么需要对索引进行更新。
+     * @Detail 要插入的每一行数据都会被封装成一行，通过vm的insertBatch批量插入到数据库中。如果一个表字段存在索引，则更新索引。
+     */
+    public int insert(long xid, Insert insert) throws Exception {
+        //根据insert的每一行String[]数组，解析出map，并根据map解析出一行数据的二进制格式。
+        List<Map<String, Object>> entries = new ArrayList<>(insert.values.length);
+        List<byte[]> raws = new ArrayList<>(insert.values.length);
+        for (String[] values : insert.values) {
+            Map<String, Object> entry = string2Entry(values);
+            entries.add(entry);
+            raws.add(entry2Raw(entry));
+        }
+        //新插入的行对其他事务不可见，不需要行锁，只在表上加意向排他锁，和锁升级后的表锁互斥。
+        VersionManager versionManager = ((TableManagerImpl) tbm).vm;
+        versionManager.lockTable(xid, this.uid, LockTable.IX);
+        indexLock.readLock().lock();
+        try {
+            //调用vm的insertBatch方法，将这些行一起插入到数据库中，返回插入的记录的uid。
+            List<Long> uids = versionManager.insertBatch(xid, raws);
+            //遍历该表的所有表字段，如果该表字段存在索引，那么需要对索引进行更新。
+            for (int i = 0; i < uids.size(); i++) {
+                indexInsert(entries.get(i), uids.get(i));
+            }
+            return uids.size();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把一条新的版本链插入到所有索引中，正在建立的索引先记录下来，建好后再补上。调用者持有索引读锁。
+     */
+    private void indexInsert(Map<String, Object> entry, long uid) throws Exception {
         for (Field field : fields) {
             if (field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
+            } else if (field.isBuilding()) {
+                field.logBuild(entry.get(field.fieldName), uid, true);
+            }
+        }
+        for (Index index : indexes) {
+            if (index.isIndexed()) {
+                index.insert(entry, uid);
+            } else if (index.isBuilding()) {
+                index.logBuild(entry, uid, true);
+            }
+        }
+    }
+
+    /**
+     * @Describe 为该表的已有字段建立索引。只有一个字段并且没有include字段时建立该字段的索引，否则建立组合索引(见Index)。
+     * @param xid 执行create index的事务的xid，用它持久化字段的IndexUid或者组合索引。
+     * @param fieldNames key字段。
+     * @param include include字段。
+     * @throws Exception
+     * @Detail
+     * 1.持有索引写锁把字段(或新的组合索引)标记为正在建立索引，此后其他事务对该索引的修改都被记录下来。
+     * 2.不持有写锁，扫描一个已有的索引找到所有版本链，把链上每个版本的索引key和根交给BulkLoader，自底向上建树。
+     * 同一条链可能因为之前的update有多个不同的值，都要建立索引项，否则旧版本对应的值就查不到这条链。
+     * 3.再次持有写锁，补上建树期间记录的修改，把新树设为该索引并持久化。组合索引要rewrite表的Entry，在获取写锁之前先获取表锁(见lockTableEntry)。
+     * 写锁只在两次切换时短暂持有，而且用tryLock轮询获取，不会让之后的读锁排在它后面，扫描和建树期间其他事务照常读写。
+     */
+    public void createIndex(long xid, String[] fieldNames, String[] include) throws Exception {
+        if (fieldNames.length == 1 && include.length == 0) {
+            createIndex(xid, fieldNames[0]);
+            return;
+        }
+        Field[] keyFields = new Field[fieldNames.length];
+        Field[] includeFields = new Field[include.length];
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < fieldNames.length; i++) {
+            keyFields[i] = findField(fieldNames[i]);
+            names.add(fieldNames[i]);
+        }
+        for (int i = 0; i < include.length; i++) {
+            includeFields[i] = findField(include[i]);
+            names.add(include[i]);
+        }
+        if (names.size() != fieldNames.length + include.length) {
+            throw Error.InvalidCommandException;
+        }
+        Index index = new Index(this, keyFields, includeFields);
+        lockIndexes();
+        Field scanField;
+        try {
+            claimIndexes(xid);
+            for (Index other : indexes) {
+                if (other.hasKeys(fieldNames)) {
+                    throw Error.DuplicatedIndexException;
+                }
+            }
+            scanField = indexedField();
+            index.startBuild();
+            indexes.add(index);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        boolean done = false;
+        try {
+            long boot = buildIndex(scanField, index::key);
+            lockTableEntry(xid);
+            lockIndexes();
+            try {
+                claimIndexes(xid);
+                index.finishBuild(xid, boot);
+                //先登记再rewrite，rewrite失败时由事务回滚撤销
+                record(xid, new IndexChange(null, index, false));
+                rewrite(xid);
+                done = true;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } finally {
+            if (!done) {
+                indexes.remove(index);
+                index.abortBuild();
+            }
+        }
+    }
+
+    /**
+     * @Describe 为该表的一个已有字段建立索引，见createIndex(long, String[], String[])。
+     */
+    public void createIndex(long xid, String fieldName) throws Exception {
+        Field field = findField(fieldName);
+        lockIndexes();
+        Field scanField;
+        try {
+            claimIndexes(xid);
+            if (field.isIndexed() || field.isBuilding()) {
+                throw Error.DuplicatedIndexException;
+            }
+            scanField = indexedField();
+            field.startBuild();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        boolean done = false;
+        try {
+            long index = buildIndex(scanField, entry -> field.value2Key(entry.get(field.fieldName)));
+            lockIndexes();
+            try {
+                claimIndexes(xid);
+                IndexChange change = new IndexChange(field, null, false);
+                field.finishBuild(xid, index);
+                record(xid, change);
+                done = true;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } finally {
+            if (!done) {
+                field.abortBuild();
+            }
+        }
+    }
+
+    /**
+     * 扫描scanField的索引找到所有版本链，把链上每个版本的key和根交给BulkLoader建树。
+     * @param key 根据数据行计算key。
+     * @return 新树的bootDataItem的uid。
+     */
+    private long buildIndex(Field scanField, Function<Map<String, Object>, byte[]> key) throws Exception {
+        List<Long> uids;
+        indexLock.readLock().lock();
+        try {
+            uids = scanField.search(null, null);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        TableManagerImpl tableManager = (TableManagerImpl) tbm;
+        BulkLoader loader = BulkLoader.newBulkLoader();
+        for (Long uid : uids) {
+            List<byte[]> keys = new ArrayList<>();
+            tableManager.vm.readVersions(uid, raw -> {
+                byte[] k = key.apply(parseEntry(raw));
+                for (byte[] other : keys) {
+                    if (Arrays.equals(other, k)) {
+                        return;
+                    }
+                }
+                keys.add(k);
+            });
+            for (byte[] k : keys) {
+                loader.add(k, uid);
+            }
+        }
+        return loader.build(tableManager.dm);
+    }
+
+    /**
+     * @Describe 是否有以字符串的哈希值为key的旧版本string字段索引。
+     */
+    boolean hasHashKeys() {
+        for (Field field : fields) {
+            if (field.hasHashKeys()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @Describe 重建以字符串的哈希值为key的旧版本string字段索引，新的索引以可比较的字符串编码为key，支持范围查找。
+     * 只在加载表时调用，此时没有其他事务使用该表。
+     * @param xid 持久化字段新的IndexUid的事务的xid。
+     * @throws Exception
+     */
+    void upgradeIndexes(long xid) throws Exception {
+        for (Field field : fields) {
+            if (field.hasHashKeys()) {
+                //旧索引的全部范围仍然能找到所有版本链
+                long index = buildIndex(field, entry -> field.value2Key(entry.get(field.fieldName)));
+                field.replaceIndex(xid, index).drop();
+            }
+        }
+    }
+
+    /**
+     * @Describe 删除该表的一个索引。只有一个字段时删除该字段的索引，该表至少要保留一个字段索引；否则删除key字段相同的组合索引。
+     * 持有索引写锁持久化索引的删除，旧树在事务提交后由commitIndexes摘除并回收。
+     * @param xid 执行drop index的事务的xid，用它持久化字段的IndexUid或者表的组合索引。
+     * @param fieldNames 要删除的索引的key字段。
+     * @throws Exception
+     */
+    public void dropIndex(long xid, String[] fieldNames) throws Exception {
+        boolean tableLocked = false;
+        while (true) {
+            lockIndexes();
+            try {
+                claimIndexes(xid);
+                Field field = fieldNames.length == 1 ? findField(fieldNames[0]) : null;
+                if (field != null && field.isIndexed() && !isDropping(field)) {
+                    boolean remains = false;
+                    for (Field other : fields) {
+                        if (other != field && other.isIndexed() && !isDropping(other)) {
+                            remains = true;
+                            break;
+                        }
+                    }
+                    if (!remains) {
+                        throw Error.TableNoIndexException;
+                    }
+                    IndexChange change = new IndexChange(field, null, true);
+                    field.dropIndex(xid);
+                    record(xid, change);
+                    return;
+                }
+                Index index = null;
+                for (Index other : indexes) {
+                    if (other.isIndexed() && !isDropping(other) && other.hasKeys(fieldNames)) {
+                        index = other;
+                        break;
+                    }
+                }
+                if (index == null) {
+                    throw Error.FieldNotIndexedException;
+                }
+                if (tableLocked) {
+                    //先登记，rewrite写出的表不再包含该索引
+                    record(xid, new IndexChange(null, index, true));
+                    rewrite(xid);
+                    return;
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            //删除组合索引要rewrite，放开写锁等到表锁后重新检查
+            lockTableEntry(xid);
+            tableLocked = true;
+        }
+    }
+
+    /**
+     * @Describe 事务提交后，摘除并回收它删除的索引。
+     * @param xid 已提交的事务的xid，不是indexOwner时什么也不做。
+     * @throws Exception
+     */
+    void commitIndexes(long xid) throws Exception {
+        List<BPlusTree> trees = new ArrayList<>();
+        lockIndexes();
+        try {
+            if (indexOwner != xid) {
+                return;
+            }
+            for (IndexChange change : indexChanges) {
+                if (change.drop) {
+                    trees.add(detach(change));
+                }
+            }
+            indexChanges.clear();
+            indexOwner = 0;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        for (BPlusTree tree : trees) {
+            tree.drop();
+        }
+    }
+
+    /**
+     * @Describe 事务回滚后，逆序撤销它在内存中对索引的修改：摘除并回收新建的索引，恢复字段Entry的uid。删除的索引没有从内存中摘除，不需要撤销。
+     * @param xid 已回滚的事务的xid，不是indexOwner时什么也不做。
+     * @throws Exception
+     */
+    void abortIndexes(long xid) throws Exception {
+        List<BPlusTree> trees = new ArrayList<>();
+        lockIndexes();
+        try {
+            if (indexOwner != xid) {
+                return;
+            }
+            for (int i = indexChanges.size() - 1; i >= 0; i--) {
+                IndexChange change = indexChanges.get(i);
+                if (change.field != null) {
+                    change.field.uid = change.fieldUid;
+                }
+                if (!change.drop) {
+                    trees.add(detach(change));
+                }
+            }
+            indexChanges.clear();
+            indexOwner = 0;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        for (BPlusTree tree : trees) {
+            tree.drop();
+        }
+    }
+
+    private BPlusTree detach(IndexChange change) {
+        if (change.field != null) {
+            return change.field.detachIndex();
+        }
+        indexes.remove(change.index);
+        return change.index.drop();
+    }
+
+    /**
+     * 组合索引保存在表的Entry中，rewrite会用X锁锁住表的uid。持有索引写锁时不能等待这把锁：
+     * 持有表上意向锁的事务的下一条语句会等待索引读锁，这种等待不在LockTable中，死锁检测发现不了。
+     * 因此在获取写锁之前先在LockTable中等到表锁，持有表锁时其他事务不会持有表上的意向锁，也不会在持有读锁时等待它。
+     */
+    private void lockTableEntry(long xid) throws Exception {
+        ((TableManagerImpl) tbm).vm.lockTable(xid, this.uid, LockTable.X);
+    }
+
+    /**
+     * 检查xid能否修改该表的索引，调用者持有索引写锁。其他事务的索引修改还未提交时报错。
+     */
+    private void claimIndexes(long xid) throws Exception {
+        if (indexOwner != 0 && indexOwner != xid) {
+            throw Error.ConcurrentUpdateException;
+        }
+    }
+
+    /**
+     * 登记xid对索引的一次修改，调用者持有索引写锁并已经通过claimIndexes检查。
+     */
+    private void record(long xid, IndexChange change) {
+        indexOwner = xid;
+        indexChanges.add(change);
+    }
+
+    /**
+     * 字段索引或组合索引是否已被indexOwner删除，等待事务提交。
+     */
+    private boolean isDropping(Object target) {
+        for (IndexChange change : indexChanges) {
+            if (change.drop && (change.field == target || change.index == target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取索引写锁。用tryLock轮询而不是排队等待：排队的写锁会挡住之后的读锁，
+     * 而持有读锁的语句可能在等待其他事务的行锁，一起排队容易互相等待。
+     */
+    private void lockIndexes() throws InterruptedException {
+        while (!indexLock.writeLock().tryLock()) {
+            Thread.sleep(1);
+        }
+    }
+
+    private Field findField(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if (field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    private Field indexedField() throws Exception {
+        for (Field field : fields) {
+            if (field.isIndexed()) {
+                return field;
             }
         }
+        throw Error.TableNoIndexException;
     }
 
     /**
@@ -371,18 +986,14 @@ public class Table {
 
     /**
      * @Describe 根据该Table的Field，将一行数据解析为"fieldName = fieldValue"对。
-     * @param raw 待解析的数据行。
+     * @param raw 待解析的数据行，直接指向Entry的data部分。
      * @return Map
-     * @throws Exception
      */
-    private Map<String, Object> parseEntry(byte[] raw) throws Exception{
-        if (raw == null) {
-            throw Error.InvalidFieldException;
-        }
-        int position = 0;
+    private Map<String, Object> parseEntry(SubArray raw) {
+        int position = raw.start;
         Map<String, Object> map = new HashMap<>();
         for (Field field : this.fields) {
-            Field.ParseValueRes parseValueRes = field.parserValue(Arrays.copyOfRange(raw, position, raw.length));
+            Field.ParseValueRes parseValueRes = field.parserValue(raw.raw, position);
             map.put(field.fieldName, parseValueRes.v);
             position += parseValueRes.shift;
         }
@@ -408,98 +1019,262 @@ public class Table {
 
 
     /**
-     * @Describe 通过解析Where对象，返回所有Where对象包含的Entry的uid。
-     * @param where 待解析的where对象。
-     * @return 将在范围内的uid放到列表中返回。
+     * @Describe 解析Where对象，找到where使用的索引和对应的key范围。
+     * @param where 待解析的where对象，为null时扫描一个索引的全部范围。
+     * @param used 查询用到的所有字段，不为null时优先使用包含这些字段的组合索引，以便使用index-only scan。
+     * @return CalWhereRes对象。
      * @throws Exception
      * @Detail 关于where的规则。
-     * 1.where只能作用于索引字段。
-     * 2.where语句最多只有2个部分。
-     * 3.where语句的fieldname必须一样。
+     * 1.where最多只有2个部分，用and或or连接。
+     * 2.单个条件需要作用于有索引的字段，或者作用于某个组合索引的第一个key字段。
+     * 3.and连接的两个条件作用于同一个字段时取两个范围的交集；作用于不同字段时，如果有组合索引的前两个key字段依次是
+     * "="条件的字段和另一个条件的字段，就在组合索引上查找一段连续的范围，否则只使用其中一个条件查找，另一个条件由matches检查。
+     * 4.or连接的两个条件分别查找，结果去重。
      */
-    private List<Long> parseWhere(Where where) throws Exception {
-        /*
-            如何解析Where语句？
-         */
-        long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
+    private CalWhereRes calWhere(Where where, Collection<String> used) throws Exception {
+        CalWhereRes res = new CalWhereRes();
+        res.where = where;
         //如果where为null，则说明全表扫描
-        Field whereField = null;
-        boolean single = true;
         if (where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    whereField = field;
+            Scan scan = new Scan();
+            scan.index = coveringIndex(null, used);
+            if (scan.index == null) {
+                scan.field = indexedField();
+            }
+            res.scans.add(scan);
+            return res;
+        }
+        res.filter = true;
+        switch (where.logicOp) {
+            case "":
+                res.scans.add(planSingle(where.singleExp1, used));
+                break;
+            case "and":
+                res.scans.add(planAnd(where.singleExp1, where.singleExp2, used));
+                break;
+            case "or":
+                res.scans.add(planSingle(where.singleExp1, used));
+                res.scans.add(planSingle(where.singleExp2, used));
+                break;
+            default:
+                throw Error.InvalidLogOpException;
+        }
+        return res;
+    }
+
+    /**
+     * 第一个key字段是field(为null时不限)，并且包含了used中所有字段的组合索引。
+     */
+    private Index coveringIndex(Field field, Collection<String> used) {
+        if (used == null) {
+            return null;
+        }
+        for (Index index : indexes) {
+            if (index.isIndexed() && (field == null || index.keyFields[0] == field) && index.covers(used)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 单个条件的查找方式：优先使用包含查询所有字段的组合索引，其次是该字段的索引，最后是第一个key字段是该字段的组合索引。
+     * @return 没有可用的索引时返回null。
+     */
+    private Scan tryPlan(SingleExpression exp, Collection<String> used) throws Exception {
+        Field field = findField(exp.field);
+        Scan scan = new Scan();
+        scan.index = coveringIndex(field, used);
+        if (scan.index == null && field.isIndexed()) {
+            scan.field = field;
+            FieldCalRes range = field.calExp(exp);
+            scan.left = range.left;
+            scan.right = range.right;
+            return scan;
+        }
+        if (scan.index == null) {
+            for (Index index : indexes) {
+                if (index.isIndexed() && index.keyFields[0] == field) {
+                    scan.index = index;
                     break;
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            //where不为null，由于本数据库暂时只支持对单个字段的where语句，因此需要找到该字段。
-            String fieldName = where.singleExp1.field;
-            for (Field field : fields) {
-                if (field.fieldName.equals(fieldName)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
+        }
+        if (scan.index == null) {
+            return null;
+        }
+        FieldCalRes range = field.calExp(new byte[0], exp);
+        scan.left = range.left;
+        scan.right = range.right;
+        return scan;
+    }
+
+    private Scan planSingle(SingleExpression exp, Collection<String> used) throws Exception {
+        Scan scan = tryPlan(exp, used);
+        if (scan == null) {
+            throw Error.FieldNotIndexedException;
+        }
+        return scan;
+    }
+
+    private Scan planAnd(SingleExpression exp1, SingleExpression exp2, Collection<String> used) throws Exception {
+        if (exp1.field.equals(exp2.field)) {
+            //同一个字段，在同一个索引上取两个范围的交集
+            Scan scan = planSingle(exp1, used);
+            Scan other = planSingle(exp2, used);
+            if (scan.left == null || (other.left != null && Codec.compareKeys(other.left, scan.left) > 0)) {
+                scan.left = other.left;
+            }
+            if (scan.right == null || (other.right != null && Codec.compareKeys(other.right, scan.right) < 0)) {
+                scan.right = other.right;
+            }
+            return scan;
+        }
+        Scan scan = planComposite(exp1, exp2);
+        if (scan == null) {
+            scan = planComposite(exp2, exp1);
+        }
+        if (scan == null) {
+            //优先使用等值条件
+            SingleExpression first = "=".equals(exp2.compareOp) ? exp2 : exp1;
+            scan = tryPlan(first, used);
+            if (scan == null) {
+                scan = planSingle(first == exp1 ? exp2 : exp1, used);
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * 在前两个key字段依次是eq和range的字段的组合索引上，查找eq的等值条件下满足range条件的范围。
+     * @return 没有这样的组合索引，或者eq不是等值条件时返回null。
+     */
+    private Scan planComposite(SingleExpression eq, SingleExpression range) throws Exception {
+        if (!"=".equals(eq.compareOp)) {
+            return null;
+        }
+        Field eqField = findField(eq.field), rangeField = findField(range.field);
+        for (Index index : indexes) {
+            if (index.isIndexed() && index.keyFields.length >= 2
+                    && index.keyFields[0] == eqField && index.keyFields[1] == rangeField) {
+                Scan scan = new Scan();
+                scan.index = index;
+                FieldCalRes res = rangeField.calExp(eqField.value2Bytes(eqField.string2Value(eq.value)), range);
+                scan.left = res.left;
+                scan.right = res.right;
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @Describe 依次执行where的每个查找，结果按uid去重。delete和update会修改索引，先找出所有uid再逐个处理。
+     * @return 将在范围内的uid放到列表中返回。
+     */
+    private List<Long> search(CalWhereRes where) throws Exception {
+        indexLock.readLock().lock();
+        try {
+            List<Long> uids = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            for (Scan scan : where.scans) {
+                List<Long> found = scan.field != null ? scan.field.search(scan.left, scan.right)
+                        : scan.index.search(scan.left, scan.right);
+                for (Long uid : found) {
+                    //create index之前的update可能让一条版本链在索引中有多个key，or的两个范围也可能有重复
+                    if (seen.add(uid)) {
+                        uids.add(uid);
                     }
-                    whereField = field;
-                    break;
                 }
             }
-            if (whereField == null) {
-                throw Error.FieldNotFoundException;
-            }
-            CalWhereRes calWhereRes = calWhere(whereField, where);
-            l0 = calWhereRes.l0;
-            r0 = calWhereRes.r0;
-            l1 = calWhereRes.l1;
-            r1 = calWhereRes.r1;
-            single = calWhereRes.single;
+            return uids;
+        } finally {
+            indexLock.readLock().unlock();
         }
-        List<Long> uids = whereField.search(l0, r0);
-        if (!single) {
-            uids.addAll(whereField.search(l1, r1));
+    }
+
+    /**
+     * 在一个索引上查找key范围[left, right)，field不为null时是字段的索引，否则是组合索引index。
+     */
+    class Scan {
+        Field field;
+        Index index;
+        byte[] left, right;
+
+        RangeCursor cursor() {
+            return field != null ? field.cursor(left, right) : index.cursor(left, right);
+        }
+
+        /**
+         * 数据行在这个索引中的key。
+         */
+        byte[] key(Map<String, Object> entry) {
+            return field != null ? field.value2Key(entry.get(field.fieldName)) : index.key(entry);
         }
-        return uids;
     }
 
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        List<Scan> scans = new ArrayList<>();
 
-        //true：where语句只有一个限制条件，或者两个限制条件用and连接。 false：两个限制条件，or连接。
-        boolean single;
-    }
+        Where where;
 
-    private CalWhereRes calWhere(Field field, Where where) throws Exception {
-        CalWhereRes calWhereRes = new CalWhereRes();
-        switch (where.logicOp) {
-            case "":
-                calWhereRes.single = true;
-                FieldCalRes fieldCalRes = field.calExp(where.singleExp1);
-                calWhereRes.l0 = fieldCalRes.left;
-                calWhereRes.r0 = fieldCalRes.right;
-                break;
-            case "and":
-                calWhereRes.single = true;
-                FieldCalRes fieldCalRes1 = field.calExp(where.singleExp1);
-                FieldCalRes fieldCalRes2 = field.calExp(where.singleExp2);
-                calWhereRes.l0 = Math.max(fieldCalRes1.left, fieldCalRes2.left);
-                calWhereRes.r0 = Math.min(fieldCalRes1.right, fieldCalRes2.right);
-                break;
-            case "or":
-                calWhereRes.single = false;
-                FieldCalRes fieldCalRes3 = field.calExp(where.singleExp1);
-                FieldCalRes fieldCalRes4 = field.calExp(where.singleExp2);
-                calWhereRes.l0 = fieldCalRes3.left;
-                calWhereRes.r0 = fieldCalRes3.right;
-                calWhereRes.l1 = fieldCalRes4.left;
-                calWhereRes.r1 = fieldCalRes4.right;
-                break;
-            default:
-                throw Error.InvalidLogOpException;
+        //true：需要用读出的数据行再检查一次where条件。
+        boolean filter;
+
+        /**
+         * 是否所有的查找都在包含了used中所有字段的组合索引上。
+         */
+        boolean covers(Collection<String> used) {
+            for (Scan scan : scans) {
+                if (scan.index == null || !scan.index.covers(used)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 第i个查找通过key找到的数据行是否由它返回，用于不记录已返回的uid直接去重。
+         * 1.create index之前的update可能让一条版本链在索引中有多个key，只有等于可见版本的key的那一项返回该行。
+         * 2.or的第二个查找跳过满足第一个条件的行，它们已经由第一个查找返回。
+         */
+        boolean owns(int i, Map<String, Object> entry, byte[] key) throws Exception {
+            if (!Arrays.equals(scans.get(i).key(entry), key)) {
+                return false;
+            }
+            return i == 0 || !matches(where.singleExp1, entry);
+        }
+
+        /**
+         * 用读出的数据行再检查一次where条件。create index之前的update可能让一条版本链在索引中有多个key，
+         * 通过旧版本的key找到的链，可见版本不一定满足where条件；and只用一个条件查找时，另一个条件也在这里检查。
+         */
+        boolean matches(Map<String, Object> entry) throws Exception {
+            if (!filter) {
+                return true;
+            }
+            switch (where.logicOp) {
+                case "and":
+                    return matches(where.singleExp1, entry) && matches(where.singleExp2, entry);
+                case "or":
+                    return matches(where.singleExp1, entry) || matches(where.singleExp2, entry);
+                default:
+                    return matches(where.singleExp1, entry);
+            }
+        }
+
+        private boolean matches(SingleExpression exp, Map<String, Object> entry) throws Exception {
+            Field field = findField(exp.field);
+            int cmp = field.compareValue(entry.get(field.fieldName), field.string2Value(exp.value));
+            switch (exp.compareOp) {
+                case ">":
+                    return cmp > 0;
+                case "<":
+                    return cmp < 0;
+                default:
+                    return cmp == 0;
+            }
         }
-        return calWhereRes;
     }
 
 }
@@ -12,7 +12,7 @@ import top.wuzonghui.simpledb.backend.vm.VersionManager;
  */
 public interface TableManager {
     /**
-     * @Describe 调用vm开启一个事务，并将xid和"begin".getByte()封装到BeginRes对象中返回。
+     * @Describe 调用vm开启一个事务(begin.isReadOnly为true时开启只读事务)，并将xid和"begin".getByte()封装到BeginRes对象中返回。
      * @param begin Begin对象。
      * @return BeginRes对象。
      */
@@ -57,6 +57,30 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * 设置事务等待行锁的最长时间(毫秒)，小于等于0表示一直等待。
+     * @return "set lock_timeout".getBytes()
+     */
+    byte[] setLockTimeout(long xid, long timeout);
+
+    /**
+     * 回收指定表(未指定时为所有表)中对所有活跃事务都不可见的版本，并整理这些版本所在的页。
+     * @return "vacuum N raw".getBytes()，N为回收的版本数。
+     */
+    byte[] vacuum(Vacuum vacuum) throws Exception;
+
+    /**
+     * 为表的已有字段建立索引。扫描已有数据建树的过程中不阻塞其他事务的读写，只在开始和结束时短暂地切换字段的索引状态。
+     * @return "create index".getBytes()
+     */
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
+
+    /**
+     * 删除字段的索引，表至少要保留一个索引。
+     * @return "drop index".getBytes()
+     */
+    byte[] dropIndex(long xid, DropIndex dropIndex) throws Exception;
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -2,6 +2,7 @@ package top.wuzonghui.simpledb.backend.tbm;
 
 import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.parser.parser.statement.*;
+import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.backend.utils.Parser;
 import top.wuzonghui.simpledb.backend.vm.Transaction;
 import top.wuzonghui.simpledb.backend.vm.VersionManager;
@@ -11,6 +12,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,6 +45,11 @@ public class TableManagerImpl implements TableManager {
 
     private Map<Long, List<Table>> xidTableCache;
 
+    /**
+     * 各事务执行过create index或drop index的表，事务结束时处理这些表上未提交的索引修改，见Table.commitIndexes。
+     */
+    private Map<Long, List<Table>> xidIndexCache;
+
     private Lock lock;
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
@@ -51,6 +58,7 @@ public class TableManagerImpl implements TableManager {
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
+        this.xidIndexCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
     }
@@ -58,7 +66,7 @@ public class TableManagerImpl implements TableManager {
     @Override
     public BeginRes begin(Begin begin) {
         int level = begin.isRepeatableRead ? Transaction.REPEATABLEREAD : Transaction.READCOMMITTED;
-        long xid = vm.begin(level);
+        long xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level);
         BeginRes beginRes = new BeginRes();
         beginRes.xid = xid;
         beginRes.result = "begin".getBytes();
@@ -68,15 +76,32 @@ public class TableManagerImpl implements TableManager {
     @Override
     public byte[] commit(long xid) throws Exception {
         vm.commit(xid);
+        //事务提交后才回收删除的索引，提交失败时由之后的abort撤销
+        for (Table table : removeIndexTables(xid)) {
+            table.commitIndexes(xid);
+        }
         return "commit".getBytes();
     }
 
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        try {
+            for (Table table : removeIndexTables(xid)) {
+                table.abortIndexes(xid);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
         return "abort".getBytes();
     }
 
+    @Override
+    public byte[] setLockTimeout(long xid, long timeout) {
+        vm.setLockTimeout(xid, timeout);
+        return "set lock_timeout".getBytes();
+    }
+
 
     @Override
     public byte[] show(long xid) {
@@ -175,6 +200,79 @@ public class TableManagerImpl implements TableManager {
         return ("delete " + count + " raw").getBytes();
     }
 
+    @Override
+    public byte[] vacuum(Vacuum vacuum) throws Exception {
+        List<Table> tables = new ArrayList<>();
+        lock.lock();
+        try {
+            if (vacuum.tableName == null) {
+                tables.addAll(tableCache.values());
+            } else {
+                Table table = tableCache.get(vacuum.tableName);
+                if (table == null) {
+                    throw Error.TableNotFoundException;
+                }
+                tables.add(table);
+            }
+        } finally {
+            lock.unlock();
+        }
+        int count = 0;
+        for (Table table : tables) {
+            count += table.vacuum();
+        }
+        //回收的版本已经被逻辑删除，整理它们所在的页，腾出的空间重新交给PageIndex
+        dm.compact();
+        return ("vacuum " + count + " raw").getBytes();
+    }
+
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        Table table = indexTable(xid, createIndex.tableName);
+        table.createIndex(xid, createIndex.fieldName, createIndex.include);
+        return "create index".getBytes();
+    }
+
+    @Override
+    public byte[] dropIndex(long xid, DropIndex dropIndex) throws Exception {
+        Table table = indexTable(xid, dropIndex.tableName);
+        table.dropIndex(xid, dropIndex.fieldName);
+        return "drop index".getBytes();
+    }
+
+    /**
+     * 获取要修改索引的表，并登记到xidIndexCache中。
+     */
+    private Table indexTable(long xid, String tableName) throws Exception {
+        lock.lock();
+        try {
+            Table table = tableCache.get(tableName);
+            if (table == null) {
+                throw Error.TableNotFoundException;
+            }
+            if (!xidIndexCache.containsKey(xid)) {
+                xidIndexCache.put(xid, new ArrayList<>());
+            }
+            List<Table> tables = xidIndexCache.get(xid);
+            if (!tables.contains(table)) {
+                tables.add(table);
+            }
+            return table;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Table> removeIndexTables(long xid) {
+        lock.lock();
+        try {
+            List<Table> tables = xidIndexCache.remove(xid);
+            return tables == null ? new ArrayList<>() : tables;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public byte[] drop(long xid, Drop stat) {
         return new byte[0];
@@ -182,14 +280,64 @@ public class TableManagerImpl implements TableManager {
 
     /**
      * 初始化TMB对象时调用，将所有Table对象加载到内存中。
+     * @Detail
+     * 1.表之间是链表结构，只能顺着nextUid依次读出每张表的表头。
+     * 2.各表的字段互不依赖，在ForkJoinPool的公共池中并行加载，索引的B+树则推迟到第一次使用时再加载。
      */
     private void loadTables() {
+        List<Table> tables = new ArrayList<>();
         long uid = firstTableUid();
         while (uid != 0) {
             Table table = Table.loadTable(this, uid);
             uid = table.nextUid;
+            tables.add(table);
+        }
+        ForkJoinPool.commonPool().submit(() -> tables.parallelStream().forEach(Table::loadFields)).join();
+        for (Table table : tables) {
             tableCache.put(table.name, table);
         }
+        upgradeIndexes(tables);
+    }
+
+    /**
+     * 旧版本的string字段索引以字符串的哈希值为key，加载完所有表后在一个事务中重建，见Table.upgradeIndexes。
+     */
+    private void upgradeIndexes(List<Table> tables) {
+        try {
+            for (Table table : tables) {
+                if (table.hasHashKeys()) {
+                    long xid = vm.begin(Transaction.READCOMMITTED);
+                    table.upgradeIndexes(xid);
+                    vm.commit(xid);
+                }
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 表头的Entry被重写到了新的uid(旧格式的Entry更新时会换uid)后，修正指向它的booter或上一张表的nextUid。
+     * @param oldUid 表头原来的uid。
+     * @param newUid 表头新的uid。
+     */
+    void relinkTable(long xid, long oldUid, long newUid) throws Exception {
+        lock.lock();
+        try {
+            if (firstTableUid() == oldUid) {
+                updateFirstTableUid(newUid);
+                return;
+            }
+            for (Table table : tableCache.values()) {
+                if (table.nextUid == oldUid) {
+                    table.nextUid = newUid;
+                    table.rewrite(xid);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -36,6 +36,12 @@ public interface TransactionManager {
      */
     void abort(long xid);
 
+    /**
+     * 获取已经分配出去的最大xid，只读事务以此确定快照的上界，不会修改xid文件。
+     * @return 最大的xid，还没有分配过事务时返回0。
+     */
+    long getXidCounter();
+
     //查询一个事务的状态是否是active
     boolean isActive(long xid);
     //查询一个事务是否已提交
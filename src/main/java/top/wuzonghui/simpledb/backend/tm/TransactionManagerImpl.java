@@ -124,6 +124,16 @@ public class TransactionManagerImpl implements TransactionManager{
         }
     }
 
+    @Override
+    public long getXidCounter() {
+        counterLock.lock();
+        try {
+            return xidCounter;
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
     //
     private void incrXidCounter() {
         xidCounter++;
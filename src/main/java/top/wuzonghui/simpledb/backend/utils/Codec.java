@@ -0,0 +1,162 @@
+package top.wuzonghui.simpledb.backend.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Starry
+ * @create 2023-02-05-4:20 PM
+ * @Describe 基本类型的编解码工具类，直接在byte数组的指定offset处按大端序读写short、int、long。
+ * @Detail
+ * 1.Parser的parseLong等方法需要先用Arrays.copyOfRange拷贝出一个小数组，long2Byte等方法每次都要分配一个ByteBuffer，
+ * 在Entry、Node、PageX这类每次访问都会调用的地方会产生大量的临时对象。
+ * 2.该类基于VarHandle的byte数组视图实现，读写都不分配对象，JIT会将其编译成一次带边界检查的内存读写。
+ * 3.字节序和Parser保持一致(大端序)，因此两者读写的数据可以互相解析，已有的文件格式不受影响。
+ */
+public class Codec {
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * 读取raw中[offset, offset + 2)的short值
+     */
+    public static short getShort(byte[] raw, int offset) {
+        return (short) SHORT.get(raw, offset);
+    }
+
+    /**
+     * 读取raw中[offset, offset + 4)的int值
+     */
+    public static int getInt(byte[] raw, int offset) {
+        return (int) INT.get(raw, offset);
+    }
+
+    /**
+     * 读取raw中[offset, offset + 8)的long值
+     */
+    public static long getLong(byte[] raw, int offset) {
+        return (long) LONG.get(raw, offset);
+    }
+
+    /**
+     * 将value写入raw的[offset, offset + 2)
+     */
+    public static void putShort(byte[] raw, int offset, short value) {
+        SHORT.set(raw, offset, value);
+    }
+
+    /**
+     * 将value写入raw的[offset, offset + 4)
+     */
+    public static void putInt(byte[] raw, int offset, int value) {
+        INT.set(raw, offset, value);
+    }
+
+    /**
+     * 将value写入raw的[offset, offset + 8)
+     */
+    public static void putLong(byte[] raw, int offset, long value) {
+        LONG.set(raw, offset, value);
+    }
+
+    /**
+     * 把long编码成8字节的可比较key：翻转符号位后按大端序存放，按无符号字节逐个比较的顺序和long的大小顺序一致。
+     */
+    public static byte[] sortableLong(long value) {
+        byte[] raw = new byte[8];
+        putLong(raw, 0, value ^ Long.MIN_VALUE);
+        return raw;
+    }
+
+    /**
+     * 解析raw中[offset, offset + 8)处由sortableLong编码的long值
+     */
+    public static long getSortableLong(byte[] raw, int offset) {
+        return getLong(raw, offset) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 把int编码成4字节的可比较key，规则同sortableLong。
+     */
+    public static byte[] sortableInt(int value) {
+        byte[] raw = new byte[4];
+        putInt(raw, 0, value ^ Integer.MIN_VALUE);
+        return raw;
+    }
+
+    /**
+     * 解析raw中[offset, offset + 4)处由sortableInt编码的int值
+     */
+    public static int getSortableInt(byte[] raw, int offset) {
+        return getInt(raw, offset) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * 把字符串编码成可比较、可以和其他key直接拼接的key：UTF-8字节中的0x00写成0x00 0xFF，最后以0x00 0x00结尾。
+     * 结尾的0x00 0x00小于任何转义后的字节，因此较短的前缀排在前面，和字符串的字典序一致。
+     */
+    public static byte[] sortableString(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        int zeros = 0;
+        for (byte b : utf8) {
+            if (b == 0) {
+                zeros++;
+            }
+        }
+        byte[] raw = new byte[utf8.length + zeros + 2];
+        int pos = 0;
+        for (byte b : utf8) {
+            raw[pos++] = b;
+            if (b == 0) {
+                raw[pos++] = (byte) 0xFF;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * 解析raw中offset处由sortableString编码的字符串。
+     * @return 字符串，以及它占用的字节数。
+     */
+    public static ParseStringRes getSortableString(byte[] raw, int offset) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = offset;
+        while (true) {
+            byte b = raw[pos++];
+            if (b == 0) {
+                if (raw[pos++] == 0) {
+                    break;
+                }
+            }
+            out.write(b);
+        }
+        return new ParseStringRes(new String(out.toByteArray(), StandardCharsets.UTF_8), pos - offset);
+    }
+
+    /**
+     * 按无符号字节逐个比较两个key，较短的key是较长的key的前缀时较短的key更小。
+     */
+    public static int compareKeys(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * 以prefix为前缀的key的上界(不包含)：去掉末尾的0xFF后把最后一个字节加1，所有以prefix开头的key都小于它。
+     * @return 上界，prefix为空或者全是0xFF时返回null，表示没有上界。
+     */
+    public static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+}
@@ -2,8 +2,6 @@ package top.wuzonghui.simpledb.backend.utils;
 
 import com.google.common.primitives.Bytes;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * @author Starry
@@ -17,7 +15,7 @@ public class Parser {
      * @return
      */
     public static int parseInt(byte[] buffer) {
-        return ByteBuffer.wrap(buffer, 0, 4).getInt();
+        return Codec.getInt(buffer, 0);
     }
 
 
@@ -28,8 +26,7 @@ public class Parser {
      * @return
      */
     public static long parseLong(byte[] buf) {
-        ByteBuffer wrap = ByteBuffer.wrap(buf, 0, 8);
-        return wrap.getLong();
+        return Codec.getLong(buf, 0);
     }
 
     /**
@@ -38,7 +35,9 @@ public class Parser {
      * @return
      */
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] result = new byte[Long.BYTES];
+        Codec.putLong(result, 0, value);
+        return result;
     }
 
     /**
@@ -47,8 +46,7 @@ public class Parser {
      * @return
      */
     public static short parseShort(byte[] buf) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buf, 0, 2);
-        return byteBuffer.getShort();
+        return Codec.getShort(buf, 0);
     }
 
     /**
@@ -57,7 +55,9 @@ public class Parser {
      * @return
      */
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(2).putShort(value).array();
+        byte[] result = new byte[Short.BYTES];
+        Codec.putShort(result, 0, value);
+        return result;
     }
 
     /**
@@ -66,7 +66,9 @@ public class Parser {
      * @return
      */
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(4).putInt(value).array();
+        byte[] result = new byte[Integer.BYTES];
+        Codec.putInt(result, 0, value);
+        return result;
     }
 
     /**
@@ -75,8 +77,18 @@ public class Parser {
      * @return ParseStringRes对象，包括String和next，next指明了下一个string的offset。
      */
     public static ParseStringRes parseString(byte[] raw) {
-        int stringLength = parseInt(Arrays.copyOfRange(raw, 0, 4));
-        String s = new String(Arrays.copyOfRange(raw, 4, 4 + stringLength));
+        return parseString(raw, 0);
+    }
+
+    /**
+     * 从raw的offset处解析字符串，不拷贝raw。
+     * @param raw 待解析的字节数组。
+     * @param offset 字符串在raw中的起始位置。
+     * @return ParseStringRes对象，包括String和next，next为该字符串占用的字节数。
+     */
+    public static ParseStringRes parseString(byte[] raw, int offset) {
+        int stringLength = Codec.getInt(raw, offset);
+        String s = new String(raw, offset + 4, stringLength);
         return new ParseStringRes(s, stringLength + 4);
     }
 
@@ -90,17 +102,5 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    /**
-     * @Describe 将string类型转换为long类型。
-     */
-    public static long str2Uid(String key) {
-        long seed = 13331;
-        long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
-        }
-        return res;
-    }
-
 
 }
@@ -1,13 +1,12 @@
 package top.wuzonghui.simpledb.backend.vm;
 
-import com.google.common.primitives.Bytes;
 import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
-import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 
-import javax.xml.crypto.Data;
 import java.util.Arrays;
+import java.util.function.Function;
 
 /**
  * @author Starry
@@ -16,10 +15,16 @@ import java.util.Arrays;
  * 上层通过VM模块操作数据的最小单位就是Entry。
  * 每个记录有多个版本(Version),当上层模块对Entry进行修改时，VM就会为这个Entry创建一个新的Version。
  * 此外该类对外提供一些工具方法。
- * @Detail 格式：[XMIN, 8byte] [XMAX, 8byte] [data]。
+ * Entry本身不再单独缓存，它只是DataItem上的一层轻量视图：loadEntry时通过DM获取并持有DataItem(DataItem和所在的页因此被钉在缓存中)，
+ * release时释放该DataItem。每次读取只需要经过DM的缓存，不再有一层Entry缓存的查找和引用计数。
+ * @Detail 格式：[XMIN, 8byte] [XMAX, 8byte] [NEXT, 8byte] [data]。
  * XMIN 是创建该条记录（版本）的事务编号。
  * XMAX 则是删除该条记录（版本）的事务编号。
+ * NEXT 是该记录的下一个(更新的)版本的uid，0表示没有下一个版本。同一条记录的所有版本从最早的版本(根)开始串成一条版本链，
+ * 索引中只记录根的uid，update不修改索引列时只需要在链尾接上新版本。
  * DATA 就是这条记录持有的数据。
+ * 旧版本的Entry格式为[XMIN, 8byte] [XMAX, 8byte] [data]，没有NEXT字段。xid不会用到最高位，
+ * 因此新格式的Entry在XMIN的最高位置1以示区分，旧格式的Entry依然可以读取和删除，但不能接上新版本。
  */
 public class Entry {
     /**
@@ -32,10 +37,25 @@ public class Entry {
      */
     private static final int OF_XMAX = OF_XMIN+8;
 
+    /**
+     * Entry中NEXT部分的offset
+     */
+    private static final int OF_NEXT = OF_XMAX+8;
+
+    /**
+     * 旧格式的Entry中data部分的offset
+     */
+    private static final int OF_LEGACY_DATA = OF_XMAX+8;
+
     /**
      * Entry中data部分的offset
      */
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_DATA = OF_NEXT+8;
+
+    /**
+     * XMIN最高位的标志位，置1表示该Entry带有NEXT字段。
+     */
+    private static final long FLAG_CHAINED = Long.MIN_VALUE;
 
     /**
      * Entry的uid。和Entry所在的dataItem的uid一致。
@@ -47,36 +67,53 @@ public class Entry {
      */
     private DataItem dataItem;
 
-    /**
-     * 操作该Entry对象的VersionManager对象
-     */
-    private VersionManager vm;
-
     /**
      * 创建一个新的Entry对象
-     * @param vm 操作该Entry对象的VersionManager对象
      * @param dataItem 该Entry所处的dataItem对象
      * @param uid 该Entry的uid
      * @return 创建的Entry对象
      */
-    public static Entry newEntry(VersionManager vm, DataItem dataItem, long uid) {
+    public static Entry newEntry(DataItem dataItem, long uid) {
         Entry entry = new Entry();
-        entry.vm = vm;
         entry.dataItem = dataItem;
         entry.uid = uid;
         return entry;
     }
 
     /**
-     * 封装符合[XMIN, 8byte] [XMAX, 8byte] [data]格式的byte数组。
+     * 封装符合[XMIN, 8byte] [XMAX, 8byte] [NEXT, 8byte] [data]格式的byte数组。
      * @param xid 创建该条记录的事务的xid
      * @param data Entry的数据部分
      * @return
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] XMIN = Parser.long2Byte(xid);
-        byte[] XMAX = new byte[OF_DATA - OF_XMAX];
-        return Bytes.concat(XMIN, XMAX, data);
+        return wrapEntryRaw(xid, data, 0);
+    }
+
+    /**
+     * 封装符合[XMIN, 8byte] [XMAX, 8byte] [NEXT, 8byte] [data]格式的byte数组。
+     * @param xid 创建该条记录的事务的xid
+     * @param data Entry的数据部分
+     * @param next 下一个版本的uid
+     * @return
+     */
+    public static byte[] wrapEntryRaw(long xid, byte[] data, long next) {
+        byte[] raw = new byte[OF_DATA + data.length];
+        Codec.putLong(raw, OF_XMIN, xid | FLAG_CHAINED);
+        Codec.putLong(raw, OF_NEXT, next);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
+    }
+
+    /**
+     * 根据XMIN的标志位，计算data部分在Entry中的offset。
+     */
+    private static int dataOffset(SubArray subArray) {
+        return isChained(subArray) ? OF_DATA : OF_LEGACY_DATA;
+    }
+
+    private static boolean isChained(SubArray subArray) {
+        return (Codec.getLong(subArray.raw, subArray.start + OF_XMIN) & FLAG_CHAINED) != 0;
     }
 
     public boolean dataItemIsNull() {
@@ -88,18 +125,45 @@ public class Entry {
      * @return 以拷贝byte数组的形式返回。
      */
     public byte[] data() {
+        //先乐观地拷贝，期间没有写操作则直接返回
+        long stamp = dataItem.tryOptimisticRead();
+        if (stamp != 0) {
+            SubArray data = dataItem.data();
+            int offset = dataOffset(data);
+            byte[] result = Arrays.copyOfRange(data.raw, data.start + offset, data.end);
+            if (dataItem.validate(stamp)) {
+                return result;
+            }
+        }
         //由于涉及到对DataItem的读操作，因此加读锁
         dataItem.rLock();
         try {
             SubArray data = dataItem.data();
-            byte[] result = new byte[data.end - data.start - OF_DATA];
-            System.arraycopy(data.raw, data.start + OF_DATA, result, 0, result.length);
+            int offset = dataOffset(data);
+            byte[] result = new byte[data.end - data.start - offset];
+            System.arraycopy(data.raw, data.start + offset, result, 0, result.length);
             return result;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    /**
+     * 在读锁内将该Entry的data部分交给reader处理，不拷贝数据。
+     * reader可能根据数据中的长度等字段做解析，读到不完整的数据会出错，因此这里不使用乐观读。
+     * @param reader 处理data的函数，传入的SubArray直接指向页内数据，只在reader执行期间有效，不能被保存或修改。
+     * @return reader的返回值。
+     */
+    public <R> R read(Function<SubArray, R> reader) {
+        dataItem.rLock();
+        try {
+            SubArray data = dataItem.data();
+            return reader.apply(new SubArray(data.raw, data.start + dataOffset(data), data.end));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     /**
      * 设置该Entry的XMAX部分
      * @param xid 删除该Entry的事务的xid。
@@ -109,29 +173,53 @@ public class Entry {
         dataItem.before();
         try {
             SubArray data = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, data.raw, data.start + OF_XMAX, 8);
+            Codec.putLong(data.raw, data.start + OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
     }
 
     /**
-     * 释放该条Entry，由VM实现。
+     * 同时设置该Entry的XMAX和NEXT部分，用于在该版本之后接上一个新版本，两个字段在同一条日志中修改。
+     * @param xid 更新该Entry的事务的xid。
+     * @param next 新版本的uid。
      */
-    public void release() {
-        ((VersionManagerImpl)vm).releaseEntry(this);
+    public void setXmaxAndNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray data = dataItem.data();
+            Codec.putLong(data.raw, data.start + OF_XMAX, xid);
+            Codec.putLong(data.raw, data.start + OF_NEXT, next);
+        } finally {
+            dataItem.after(xid);
+        }
     }
 
     /**
-     * @Describe 删除该条Entry。
+     * 设置该Entry的NEXT部分，用于vacuum把死版本从版本链中摘除。
+     * @param xid 执行修改的事务的xid。
+     * @param next 新的下一个版本的uid。
+     */
+    public void setNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray data = dataItem.data();
+            Codec.putLong(data.raw, data.start + OF_NEXT, next);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    /**
+     * @Describe 释放该条Entry。
      * @Detail 在这里顺便总结一下各层释放的逻辑。
-     * 1.删除该条Entry，就是释放该条Entry依赖的DataItem对象。
+     * 1.释放该条Entry，就是释放该条Entry依赖的DataItem对象。
      * 2.释放DataItem对象，即释放DataItem对象所在的page。
      * 3.释放Page，则是将Page从缓存中删除，然后将Page数据从内存中刷到文件系统中。
      * 4.注意：DataItem和Page的缓存都是用的引用计数缓存，并不是调用release()方法就一定会释放，
      * 每一次get()会让该对象的引用次数+1,release()方法则会让该对象的引用次数-1，只有引用次数到0了才会真的走释放逻辑。
      */
-    public void remove(){
+    public void release() {
         dataItem.release();
     }
 
@@ -140,14 +228,7 @@ public class Entry {
      * @return XMIN代表生成该条Entry的事务编号。
      */
     public long getXmin() {
-        dataItem.rLock();
-        try {
-            SubArray subArray = dataItem.data();
-            byte[] bytes = Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMIN, subArray.start + OF_XMAX);
-            return Parser.parseLong(bytes);
-        } finally {
-            dataItem.rUnLock();
-        }
+        return readLong(OF_XMIN) & ~FLAG_CHAINED;
     }
 
     /**
@@ -155,11 +236,46 @@ public class Entry {
      * @return XMAX代表删除该条Entry的事务编号。如果是0表示该记录没有被删除。
      */
     public long getXmax() {
+        return readLong(OF_XMAX);
+    }
+
+    /**
+     * 该Entry是否带有NEXT字段，旧格式的Entry不能接上新版本。
+     */
+    public boolean isChained() {
+        return (readLong(OF_XMIN) & FLAG_CHAINED) != 0;
+    }
+
+    /**
+     * 获取该条Entry的NEXT部分。
+     * @return 下一个版本的uid，0表示这是版本链上最新的版本，旧格式的Entry始终返回0。
+     */
+    public long getNext() {
+        //XMIN的标志位在插入后不会再改变，不需要和NEXT在同一次读取中检查
+        if (!isChained()) {
+            return 0;
+        }
+        return readLong(OF_NEXT);
+    }
+
+    /**
+     * 读取Entry中offset处的long值。
+     * @Detail 先乐观读，读取后期间没有写操作则直接返回；否则加读锁重新读取。
+     * 头部字段都是定长的，即使读到了写了一半的值也只会被丢弃，不会越界。
+     */
+    private long readLong(int offset) {
+        long stamp = dataItem.tryOptimisticRead();
+        if (stamp != 0) {
+            SubArray subArray = dataItem.data();
+            long value = Codec.getLong(subArray.raw, subArray.start + offset);
+            if (dataItem.validate(stamp)) {
+                return value;
+            }
+        }
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            byte[] bytes = Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMAX, subArray.start + OF_DATA);
-            return Parser.parseLong(bytes);
+            return Codec.getLong(subArray.raw, subArray.start + offset);
         } finally {
             dataItem.rUnLock();
         }
@@ -171,19 +287,18 @@ public class Entry {
 
 
     /**
-     * 根据VersionManager对象，以及uid，加载一个新的Entry。
-     * @param versionManager 管理Entry的VersionManager对象
-     * @param uid Entry的uid。根据该uid，可以解析出Entry所处DataItem的位置(pageno、offset)。
-     * @return Entry对象。
+     * 通过DataManager和uid，加载一个新的Entry。
+     * @param dataManager 存储Entry的DataManager对象
+     * @param uid Entry的uid。根据该uid，可以解析出Entry所处DataItem的位置(pageno、slot)。
+     * @return Entry对象，调用方使用完后需要release。uid对应的DataItem不存在或者已经被回收时返回null。
      * @throws Exception
      */
-    public static Entry loadEntry(VersionManager versionManager, long uid) throws Exception {
-        //将vm对象强转成VersionManagerImpl对象。本数据库的vm对象皆是VersionManagerImpl对象，因此可以强转。
-        VersionManagerImpl versionManagerImpl = (VersionManagerImpl) versionManager;
-        //拿到VersionManagerImpl对象的dataManager字段。
-        DataManager dataManager = versionManagerImpl.dataManager;
-        //通过DataManager和uid读出Entry所在的dataItem。
+    public static Entry loadEntry(DataManager dataManager, long uid) throws Exception {
+        //通过DataManager和uid读出Entry所在的dataItem，DM会持有该DataItem直到release。
         DataItem dataItem = dataManager.read(uid);
-        return newEntry(versionManager, dataItem, uid);
+        if (dataItem == null) {
+            return null;
+        }
+        return newEntry(dataItem, uid);
     }
 }
@@ -3,271 +3,503 @@ package top.wuzonghui.simpledb.backend.vm;
 import top.wuzonghui.simpledb.common.Error;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Starry
  * @create 2023-01-02-2:01 PM
- * @Describe 该类在内存中维护一个依赖等待图，以进行死锁检测。
+ * @Describe 该类在内存中维护资源(uid)的持有关系和一个依赖等待图，以进行死锁检测。
+ * @Detail
+ * 1.资源按uid分到STRIPES个分段中，每个分段有自己的锁，记录该分段中每个被持有的uid的持有者和FIFO等待队列。
+ * 不同uid的获取和释放落在不同分段时互不阻塞。
+ * 2.锁分为IS/IX/S/X四种模式，表和行都是资源(表用表的uid)，兼容的模式可以同时持有。
+ * 行锁会先在表上加对应的意向锁(S对应IS，X对应IX)，一个事务在同一张表上持有的行锁达到escalationThreshold后，
+ * 尝试把表上的意向锁升级为S/X(锁升级)，成功后该表之后的行锁直接由表锁覆盖，不再进入锁表。
+ * 3.所有会修改等待图的操作(开始等待、把uid转交给等待者)都在graphLock下进行，保证检测时等待图不会变化；
+ * 没有等待者的获取和释放只需要分段锁。加锁顺序总是先graphLock再分段锁。
+ * 4.加入新的等待边之前图中无环，新边造成的环一定经过新边的起点，因此只需要从新的等待者出发做一次dfs，而不需要遍历所有事务。
  */
 public class LockTable {
 
     /**
-     * @Describe 记录某个xid已经获得的资源的uid列表。
-     * @Instance {xid1 = [uid1, uid3, uid17]}代表xid为xid1的事务，
-     * 获取了uid为uid1，uid3，uid17的资源。
+     * 锁模式：意向共享、意向排他、共享、排他。
+     */
+    public static final int IS = 0;
+    public static final int IX = 1;
+    public static final int S = 2;
+    public static final int X = 3;
+
+    /**
+     * 兼容矩阵，COMPATIBLE[a][b]表示模式a和模式b能否被不同事务同时持有。
      */
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      X
+            /* IS */ {true, true, true, false},
+            /* IX */ {true, true, false, false},
+            /* S  */ {true, false, true, false},
+            /* X  */ {false, false, false, false},
+    };
 
     /**
-     * @Describe 记录了uid被xid持有。
+     * 默认的锁升级阈值。
      */
-    private Map<Long, Long> u2x;        // UID被某个XID持有
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    private static final int STRIPES = 64;
 
     /**
-     * @Describe 记录了正在等待uid的xid列表。
-     * @Instance {uid1 = [xid1, xid2, xid7]}代表uid为uid1的资源，
-     * 有xid为xid1，xid2，xid7的三个事务正在等待获取。
+     * @Describe 一个正在等待的加锁请求。
      */
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
+    private static class Request {
+        long xid;
+        int mode;
+
+        Request(long xid, int mode) {
+            this.xid = xid;
+            this.mode = mode;
+        }
+    }
 
     /**
-     * 正在等待资源的XID,对应的锁对象。
+     * @Describe 一个被持有的uid：持有者及其模式，以及按到达顺序等待它的请求。
      */
-    private Map<Long, Lock> waitLock;
+    private static class Resource {
+        Map<Long, Integer> holders = new HashMap<>(4);
+        ArrayDeque<Request> waiters = new ArrayDeque<>();
+    }
 
     /**
-     * @Describe XID正在等待的UID。
+     * @Describe 一个分段，resources只记录被持有的uid，uid没有持有者且没有等待者时移除。
+     */
+    private static class Stripe {
+        Lock lock = new ReentrantLock();
+        Map<Long, Resource> resources = new HashMap<>();
+    }
+
+    /**
+     * @Describe 一个事务持有的锁：持有的uid，以及在每张表上持有的不同行的数量(用于锁升级)。
+     * 行锁数量只由事务自己的线程修改。
+     */
+    private static class Holding {
+        Set<Long> uids = ConcurrentHashMap.newKeySet();
+        Map<Long, Integer> rowCounts = new ConcurrentHashMap<>();
+        /**
+         * 正在等待的、还没有计数的行，0表示没有。
+         */
+        long waitedRow;
+        /**
+         * 已经升级的表 {tableUid -> 表锁模式}
+         */
+        Map<Long, Integer> escalated = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes;
+
+    private final int escalationThreshold;
+
+    /**
+     * @Describe 记录某个xid已经获得的资源。
+     * @Instance {xid1 = [uid1, uid3, uid17]}代表xid为xid1的事务，
+     * 获取了uid为uid1，uid3，uid17的资源。
+     */
+    private Map<Long, Holding> x2u;
+
+    /**
+     * @Describe XID正在等待的UID，即等待图的边。只在graphLock下修改。
      * @Instance {xid1 = uid7}代表xid1的事务在等待uid7的资源。
      */
     private Map<Long, Long> waitU;
 
-    private Lock lock;
+    /**
+     * 正在等待资源的XID,对应的等待者。只在graphLock下修改。
+     */
+    private Map<Long, Waiter> waiters;
+
+    private Lock graphLock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        this(DEFAULT_ESCALATION_THRESHOLD);
+    }
+
+    public LockTable(int escalationThreshold) {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.escalationThreshold = escalationThreshold;
+        x2u = new ConcurrentHashMap<>();
+        waitU = new ConcurrentHashMap<>();
+        waiters = new ConcurrentHashMap<>();
+        graphLock = new ReentrantLock();
+    }
+
+    private Stripe stripeOf(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58) & (STRIPES - 1)];
+    }
+
+    /**
+     * 模式a是否覆盖模式b，即持有a的事务不需要再申请b。
+     */
+    private static boolean covers(int a, int b) {
+        if (a == b || a == X) {
+            return true;
+        }
+        return b == IS && (a == IX || a == S);
+    }
+
+    /**
+     * 同一个事务先后申请a和b后应当持有的模式。IX和S的组合没有单独的模式，按X处理。
+     */
+    private static int combine(int a, int b) {
+        if (covers(a, b)) {
+            return a;
+        }
+        if (covers(b, a)) {
+            return b;
+        }
+        return X;
     }
 
     /**
      * 当一个事务commit或aborted，就可以释放它持有的资源。
-     * 当一个事务释放资源时，等待这些资源的xid会获取到该资源，并且解锁。
+     * 当一个事务释放资源时，每个资源会按FIFO顺序交给队首兼容的等待者，并且唤醒它们。
      * @param xid 要释放资源的事务的xid。
      */
     public void remove(long xid) {
-        //1.由于可能有多个事务同时调用remove方法，因此需要加锁。
-        lock.lock();
-        try {
-            /*
-                1.当一个事务释放的时候，xid会释放所有占用的uid，因此需要利用wait字段，让一个xid可以占用该xid释放出的uid。
-                2.清除各field中的记录
-             */
-            List<Long> list = x2u.get(xid);
-            if (list != null) {
-                while (!list.isEmpty()) {
-                    Long uid = list.remove(0);
-                    selectNewXID(uid);
-                }
+        //先撤销xid自己的等待边，之后不会再有资源被转交给它。
+        if (waitU.containsKey(xid)) {
+            graphLock.lock();
+            try {
+                waitU.remove(xid);
+                waiters.remove(xid);
+            } finally {
+                graphLock.unlock();
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-
-        } finally {
-            lock.unlock();
+        }
+        Holding holding = x2u.remove(xid);
+        if (holding == null) {
+            return;
+        }
+        for (long uid : holding.uids) {
+            release(xid, uid);
         }
     }
 
     /**
-     * xid代表的事务尝试获取uid代表的资源。
+     * xid代表的事务尝试以排他模式获取uid代表的资源。
      * @param xid 尝试获取uid的xid。
      * @param uid xid试图获取的uid。
-     * @return 不需要等待，直接获取资源则返回null。否则返回锁对象。
+     * @return 不需要等待，直接获取资源则返回null。否则返回等待者，调用方通过Waiter.await等待资源被转交。
      * @throws Exception 会造成死锁则抛出异常。
      */
-    public Lock add(long xid, long uid) throws Exception {
-        //1.上锁。要上锁因为可能有多个事务同时尝试获取资源，可能导致数据不一致。
-        lock.lock();
+    public Waiter add(long xid, long uid) throws Exception {
+        return add(xid, uid, X);
+    }
 
+    /**
+     * xid代表的事务尝试以mode模式获取uid代表的资源。
+     * @param xid 尝试获取uid的xid。
+     * @param uid xid试图获取的uid。
+     * @param mode IS/IX/S/X。
+     * @return 不需要等待，直接获取资源则返回null。否则返回等待者，调用方通过Waiter.await等待资源被转交。
+     * @throws Exception 会造成死锁则抛出异常。
+     */
+    public Waiter add(long xid, long uid, int mode) throws Exception {
+        Stripe stripe = stripeOf(uid);
+        //1.快速路径：已经持有覆盖mode的锁，或者没有等待者且和其他持有者兼容，只需要分段锁。
+        stripe.lock.lock();
         try {
-            //2.如果xid已经获得了uid，则说明不需要等待，返回null
-            if (isInList(x2u, xid, uid)) {
+            if (tryAcquire(stripe, xid, uid, mode)) {
                 return null;
             }
-            //3.如果该uid没有被任何xid占用，则也不需要等待，返回null。但是需要更新u2x和x2u。
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                //更新xid持有的uid。
-                putIntoList(x2u, xid, uid);
-                return null;
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        //2.需要等待：在graphLock下重新检查，加入等待队列，并从新的等待者出发检测死锁。
+        graphLock.lock();
+        try {
+            Resource resource;
+            Request request = new Request(xid, mode);
+            stripe.lock.lock();
+            try {
+                if (tryAcquire(stripe, xid, uid, mode)) {
+                    return null;
+                }
+                resource = stripe.resources.get(uid);
+                //锁升级请求排在队首，否则它会和排在后面、等待它释放的请求互相等待。
+                if (resource.holders.containsKey(xid)) {
+                    resource.waiters.addFirst(request);
+                } else {
+                    resource.waiters.addLast(request);
+                }
+            } finally {
+                stripe.lock.unlock();
             }
-            /*
-                4.如果2和3都没有返回null，则说明xid既不是已经获得了uid，uid也不处于空闲状态，不能返回null，xid需要等待资源，需要返回锁对象。
-                更新waitU。
-                更新wait。
-                如果发生了死锁，那么更新waitU，更新wait，并且报错。
-                如果没发生死锁，那么新建一个重入锁，锁上，更新waitLock，返回。
-             */
             waitU.put(xid, uid);
-            putIntoList(wait, uid, xid);
-            if (hasDeadLock()) {
+            if (hasDeadLock(xid)) {
                 //如果xid对uid的获取导致了死锁，采取如下策略：撤销这条边，并撤销事务。
                 waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+                stripe.lock.lock();
+                try {
+                    resource.waiters.remove(request);
+                } finally {
+                    stripe.lock.unlock();
+                }
                 throw Error.DeadlockException;
             }
-            Lock lock1 = new ReentrantLock();
-            lock1.lock();
-            waitLock.put(xid, lock1);
-            return lock1;
+            Waiter waiter = new Waiter();
+            waiters.put(xid, waiter);
+            return waiter;
         } finally {
-            lock.unlock();
+            graphLock.unlock();
         }
     }
 
     /**
-     * 在等待uid的xid中，选择一个获取到该uid,会释放获取到该uid资源的xid的锁。
+     * xid代表的事务尝试获取tableUid表中uid行的锁，会先获取表上的意向锁。
+     * 该事务在表上持有的不同行的数量每达到escalationThreshold的整数倍，就尝试不等待地把表锁升级为S/X，
+     * 升级成功后，该表之后的行锁请求直接返回。
+     * @param mode 行锁模式，S或X。
+     * @return 不需要等待则返回null。否则返回等待者，等待结束后需要重新调用该方法，直到返回null。
+     * @throws Exception 会造成死锁则抛出异常。
      */
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> list = wait.get(uid);
-
-        if (list == null) return;
-
-        if (list != null) {
-            while (list.size() > 0) {
-                long xid = list.remove(0);
-                //
-                if (!waitLock.containsKey(xid)) {
-                    continue;
-                } else {
-                    u2x.put(uid, xid);
-                    Lock lo = waitLock.remove(xid);
-                    waitU.remove(xid);
-                    lo.unlock();
-                    break;
-                }
+    public Waiter addRow(long xid, long tableUid, long uid, int mode) throws Exception {
+        Holding holding = x2u.get(xid);
+        if (holding != null) {
+            Integer tableMode = holding.escalated.get(tableUid);
+            if (tableMode != null && covers(tableMode, mode)) {
+                return null;
+            }
+        }
+        Waiter waiter = add(xid, tableUid, mode == S ? IS : IX);
+        if (waiter != null) {
+            return waiter;
+        }
+        holding = holdingOf(xid);
+        //已经持有的行(for share之后的update、重复读取)不重复计数，等待后被转交的行在重新调用时计数
+        boolean newRow = holding.waitedRow == uid || !holding.uids.contains(uid);
+        waiter = add(xid, uid, mode);
+        if (waiter != null) {
+            holding.waitedRow = newRow ? uid : 0;
+            return waiter;
+        }
+        holding.waitedRow = 0;
+        if (newRow) {
+            int rows = holding.rowCounts.merge(tableUid, 1, Integer::sum);
+            if (rows % escalationThreshold == 0) {
+                tryEscalate(xid, tableUid, mode, holding);
             }
         }
+        return null;
+    }
 
-        if (list != null && list.isEmpty()) wait.remove(uid);
+    /**
+     * 不等待地尝试把xid在表上的锁升级为mode，表上有其他不兼容的持有者或者有等待者时放弃，下次达到阈值再尝试。
+     */
+    private void tryEscalate(long xid, long tableUid, int mode, Holding holding) {
+        Stripe stripe = stripeOf(tableUid);
+        stripe.lock.lock();
+        try {
+            if (tryAcquire(stripe, xid, tableUid, mode)) {
+                holding.escalated.put(tableUid, stripe.resources.get(tableUid).holders.get(xid));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
     /**
-     * 从key为id0对应的value中，移除id1。
+     * 在持有stripe锁的情况下尝试直接获取uid。
+     * @return true:获取成功。false:需要等待。
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long id0, long id1) {
-        List<Long> list = listMap.get(id0);
-        if (list == null) {
-            return;
+    private boolean tryAcquire(Stripe stripe, long xid, long uid, int mode) {
+        Resource resource = stripe.resources.get(uid);
+        if (resource == null) {
+            resource = new Resource();
+            resource.holders.put(xid, mode);
+            stripe.resources.put(uid, resource);
+            holdingOf(xid).uids.add(uid);
+            return true;
         }
-        Iterator<Long> i = list.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == id1) {
-                i.remove();
-                break;
-            }
+        Integer held = resource.holders.get(xid);
+        if (held != null && covers(held, mode)) {
+            return true;
         }
-        if (list.size() == 0) {
-            listMap.remove(id0);
+        //有等待者时不能插队，保证FIFO。
+        if (!resource.waiters.isEmpty() || !isCompatible(resource, xid, mode)) {
+            return false;
         }
+        resource.holders.put(xid, held == null ? mode : combine(held, mode));
+        holdingOf(xid).uids.add(uid);
+        return true;
     }
 
-
+    private Holding holdingOf(long xid) {
+        return x2u.computeIfAbsent(xid, k -> new Holding());
+    }
 
     /**
-     * @Describe 判断当前的图结构中是否存在死锁。
-     * @return true:存在死锁。false:不存在死锁。
-     * @Detail 通过带访问戳的dfs实现。
-     * 图的节点：可以将一个节点视为一个xid；
-     * 图的边：当xid0的节点等待获取uid0的时候，xid0节点就指向持有uid0的节点xid1。
-     * 为什么需要访问戳，减少重复dfs。
-     * 总体思路：遍历所有持有资源的节点，检查图是否有环，有环则说明存在死锁。
-     * 如果node1指向node2，node2指向node3，那么node1，node2，node3的访问戳就相同，可以理解为一条线路，访问戳用Map记录。
-     * 当node1经历过dfs后，node2和node3已经被记录到了访问戳里，所以再遍历到node2，node3的时候就可以直接知道node2和node3不存在环。
-     * 这个访问戳就相当于一个memory，对dfs进行剪枝，在复杂图结构中会极大得提升遍历速度。
-     * 当遍历到一个没有访问戳的节点，就开启一个新的访问戳，不断迭代遍历即可，并把整条线路路过的节点，都以{xid -> stamp}的形式记录在Map中。
-     * 如果一个新的节点指向了已有的线路，那么说明该节点不存在环，但是如果一个新节点的线路延申到了自己所在线路上，则说明有环。
-     * 此外，如果线路不再延申，也就是说当前node不再有出去的边，也就是当前xid没有正在等待的uid，那么线路断掉，不存在环。
-     * @Instance xid3持有uid4，等待uid7。xid6持有uid7，等待uid4。发生了循环等待，即死锁。
+     * mode是否和resource除xid以外的所有持有者兼容。
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        //遍历所有持有资源的xid。
-        for (long xid : x2u.keySet()) {
-
-            Integer sta = xidStamp.get(xid);
-            //如果该xid已经属于某个结构。
-            if(sta != null && sta > 0) {
-                continue;
-            }
-
-            stamp++;
-            if (dfs(xid)) {
-                return true;
+    private static boolean isCompatible(Resource resource, long xid, int mode) {
+        for (Map.Entry<Long, Integer> holder : resource.holders.entrySet()) {
+            if (holder.getKey() != xid && !COMPATIBLE[holder.getValue()][mode]) {
+                return false;
             }
         }
-        return false;
+        return true;
     }
 
-    //存放的是{xid -> stamp} xid属于哪个分支
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
-
-    //true:有环，false：没有环
-    private boolean dfs(long xid) {
-        Integer sta = xidStamp.get(xid);
-        //如果当前xid已经属于某个图结构，且这个图结构恰好就是当前图结构，说明出现了环。
-        if (sta != null && sta == stamp) {
-            return true;
-        }
-        //如果当前xid已经属于某个图结构，且这个图结构是前面dfs出的某个图结构，说明没有环。
-        if (sta != null && sta < stamp) {
-            return false;
+    /**
+     * xid释放uid。之后按FIFO顺序把uid转交给队首所有兼容的等待者，并唤醒它们。
+     */
+    private void release(long xid, long uid) {
+        Stripe stripe = stripeOf(uid);
+        stripe.lock.lock();
+        try {
+            Resource resource = stripe.resources.get(uid);
+            if (resource == null || !resource.holders.containsKey(xid)) {
+                return;
+            }
+            //没有等待者，不涉及等待图。
+            if (resource.waiters.isEmpty()) {
+                resource.holders.remove(xid);
+                if (resource.holders.isEmpty()) {
+                    stripe.resources.remove(uid);
+                }
+                return;
+            }
+        } finally {
+            stripe.lock.unlock();
         }
 
-        //如果当前xid不在某个图结构中，那么就以xid为根节点，dfs。也就是说当前的xid在一个独立的结构stamp中。
-        xidStamp.put(xid, stamp);
-        //当前xid正在等待的uid
-        Long uid = waitU.get(xid);
-        //如果当前xid没有等待的uid，那么肯定没有环。
-        if(uid == null) return false;
-        //持有这个uid的xid是x
-        Long x = u2x.get(uid);
-        return dfs(x);
+        graphLock.lock();
+        try {
+            stripe.lock.lock();
+            try {
+                Resource resource = stripe.resources.get(uid);
+                if (resource == null || resource.holders.remove(xid) == null) {
+                    return;
+                }
+                grantWaiters(resource, uid);
+                if (resource.holders.isEmpty() && resource.waiters.isEmpty()) {
+                    stripe.resources.remove(uid);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        } finally {
+            graphLock.unlock();
+        }
     }
 
     /**
-     * 将id1加入到key为id1对应的value中,新加入的uid1放到列表index为0的位置。
+     * 从队首开始，把uid转交给所有和当前持有者兼容的等待者，遇到第一个不兼容的等待者就停止。
+     * 调用方需要持有graphLock和uid所在分段的锁。
      */
-    private void putIntoList(Map<Long, List<Long>> x2u, long id0, long id1) {
-        if (!x2u.containsKey(id0)) {
-            x2u.put(id0, new ArrayList<>());
+    private void grantWaiters(Resource resource, long uid) {
+        while (!resource.waiters.isEmpty()) {
+            Request request = resource.waiters.peekFirst();
+            Long waiting = waitU.get(request.xid);
+            //已经放弃等待的xid直接跳过。
+            if (waiting == null || waiting != uid) {
+                resource.waiters.pollFirst();
+                continue;
+            }
+            if (!isCompatible(resource, request.xid, request.mode)) {
+                return;
+            }
+            resource.waiters.pollFirst();
+            waitU.remove(request.xid);
+            //先登记持有关系再唤醒，否则被唤醒的事务可能在登记之前就释放了所有资源。
+            Integer held = resource.holders.get(request.xid);
+            resource.holders.put(request.xid, held == null ? request.mode : combine(held, request.mode));
+            holdingOf(request.xid).uids.add(uid);
+            if (waiters.remove(request.xid).grant()) {
+                continue;
+            }
+            //等待超时的xid同样跳过，它之后会被回滚。撤销刚才的登记。
+            if (held == null) {
+                resource.holders.remove(request.xid);
+                x2u.computeIfPresent(request.xid, (k, h) -> {
+                    h.uids.remove(uid);
+                    return h.uids.isEmpty() ? null : h;
+                });
+            } else {
+                resource.holders.put(request.xid, held);
+            }
         }
-        x2u.get(id0).add(0, id1);
     }
 
     /**
-     * @Describe 判断uid是否在xid对应的value中。等价于xid是否已经持有了资源uid。
-     * @return true:在。false：不在。
+     * @Describe 判断xid新加入的等待边是否造成了死锁，调用方需要持有graphLock。
+     * @return true:存在死锁。false:不存在死锁。
+     * @Detail
+     * 图的节点：可以将一个节点视为一个xid；
+     * 图的边：当xid0的节点等待获取uid0的时候，xid0节点指向uid0上所有和它不兼容的持有者，以及排在它前面、和它不兼容的等待者。
+     * 加边之前图中无环，因此只需要从xid出发dfs，看能否回到xid。
+     * @Instance xid3持有uid4，等待uid7。xid6持有uid7，等待uid4。发生了循环等待，即死锁。
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long xid, long uid) {
-        List<Long> l = listMap.get(xid);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid) {
+    private boolean hasDeadLock(long xid) {
+        Deque<Long> stack = new ArrayDeque<>();
+        Set<Long> visited = new HashSet<>();
+        pushBlockers(xid, stack);
+        while (!stack.isEmpty()) {
+            long x = stack.pop();
+            if (x == xid) {
                 return true;
             }
+            if (visited.add(x)) {
+                pushBlockers(x, stack);
+            }
         }
         return false;
     }
+
+    /**
+     * 把阻塞xid的事务压入stack，xid没有在等待时什么也不做。
+     */
+    private void pushBlockers(long xid, Deque<Long> stack) {
+        Long uid = waitU.get(xid);
+        if (uid == null) {
+            return;
+        }
+        Stripe stripe = stripeOf(uid);
+        stripe.lock.lock();
+        try {
+            Resource resource = stripe.resources.get(uid);
+            if (resource == null) {
+                return;
+            }
+            Request request = null;
+            for (Request r : resource.waiters) {
+                if (r.xid == xid) {
+                    request = r;
+                    break;
+                }
+            }
+            if (request == null) {
+                return;
+            }
+            for (Map.Entry<Long, Integer> holder : resource.holders.entrySet()) {
+                if (holder.getKey() != xid && !COMPATIBLE[holder.getValue()][request.mode]) {
+                    stack.push(holder.getKey());
+                }
+            }
+            for (Request r : resource.waiters) {
+                if (r == request) {
+                    break;
+                }
+                if (!COMPATIBLE[r.mode][request.mode]) {
+                    stack.push(r.xid);
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
 }
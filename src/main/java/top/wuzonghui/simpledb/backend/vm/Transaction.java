@@ -3,7 +3,7 @@ package top.wuzonghui.simpledb.backend.vm;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -23,9 +23,29 @@ public class Transaction {
     public int level;
 
     /**
-     * 快照字段，在事务新建的时候存储所有在事务新建的时候活跃的事务。
+     * 快照字段，升序存储所有在事务新建的时候活跃的事务的xid(不包含超级事务)，只有REPEATABLEREAD隔离级别的事务才有快照。
      */
-    public Map<Long, Boolean> snapshot;
+    public long[] snapshot;
+
+    /**
+     * 快照的下界，即快照中最小的xid，快照为空(或没有快照)时等于snapshotXmax。小于该值的事务在快照建立时都已经结束。
+     */
+    public long snapshotXmin;
+
+    /**
+     * 快照的上界，大于等于该值的事务在快照建立时还没有开始，一定不在快照中。读写事务为自身的xid，只读事务为下一个将要分配的xid。
+     */
+    public long snapshotXmax;
+
+    /**
+     * 是否是只读事务。只读事务的xid是VM分配的负数，不占用xid文件，也不会出现在其他事务的快照中。
+     */
+    public boolean readOnly;
+
+    /**
+     * 等待行锁的最长时间(毫秒)，小于等于0表示一直等待。超时后事务会像发生死锁一样被自动回滚。
+     */
+    public long lockTimeout = DEFAULT_LOCK_TIMEOUT;
 
     public Exception error;
 
@@ -34,6 +54,11 @@ public class Transaction {
     public static final int READCOMMITTED = 0;
     public static final int REPEATABLEREAD = 1;
 
+    /**
+     * 默认的锁等待超时时间，50秒。
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT = 50000;
+
 
     /**
      * 创建一个Transaction对象，并返回。
@@ -46,19 +71,57 @@ public class Transaction {
         Transaction transaction = new Transaction();
         transaction.xid = xid;
         transaction.level = level;
+        takeSnapshot(transaction, xid, active);
+        return transaction;
+    }
+
+    /**
+     * 创建一个只读事务对象。
+     * @param xid VM分配的虚拟xid，是一个负数，不会和xid文件中的事务冲突。
+     * @param level 事务的隔离级别。
+     * @param xmax 下一个将要分配的xid，xid不小于该值的事务在只读事务开始时还没有开始。
+     * @param active 当前活跃的事务。
+     * @return 新建的只读事务对象。
+     */
+    public static Transaction newReadOnlyTransaction(long xid, int level, long xmax, Map<Long, Transaction> active) {
+        Transaction transaction = new Transaction();
+        transaction.xid = xid;
+        transaction.level = level;
+        transaction.readOnly = true;
+        takeSnapshot(transaction, xmax, active);
+        return transaction;
+    }
+
+    /**
+     * 为事务建立快照，快照的上界为xmax。
+     * READCOMMITTED隔离级别的事务不需要快照，只记录上下界，供vacuum计算回收边界。
+     */
+    private static void takeSnapshot(Transaction transaction, long xmax, Map<Long, Transaction> active) {
+        transaction.snapshotXmax = xmax;
+        transaction.snapshotXmin = xmax;
         //如果该事务的隔离级别是可重复读
-        if (level == REPEATABLEREAD) {
-            transaction.snapshot = new HashMap<>();
-            //transaction.snapshot记录了所有现在还在活跃的事务。
-            for (Long x : active.keySet()) {
-                transaction.snapshot.put(x, true);
+        if (transaction.level != REPEATABLEREAD) {
+            return;
+        }
+        //transaction.snapshot记录了所有现在还在活跃的读写事务，排序后可以二分查找。只读事务的xid是负数，不会写数据，直接跳过。
+        long[] xids = new long[active.size()];
+        int n = 0;
+        for (long x : active.keySet()) {
+            if (x > TransactionManagerImpl.SUPER_XID && x < xmax && n < xids.length) {
+                xids[n++] = x;
             }
         }
-        return transaction;
+        xids = Arrays.copyOf(xids, n);
+        Arrays.sort(xids);
+        transaction.snapshot = xids;
+        if (n > 0) {
+            transaction.snapshotXmin = xids[0];
+        }
     }
 
     /**
      * xid是否在该事务的快照中。事务对象初始化的时候，快照会保存所有在事务初始化时还在活跃的事务。
+     * 先用快照的上下界过滤，大部分记录的xmin都早于snapshotXmin，不需要查找；落在区间内的再二分查找。
      * @param xid
      * @return true:在快照中。false：不在快照中。
      */
@@ -67,6 +130,9 @@ public class Transaction {
         if (xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        if (xid < snapshotXmin || xid >= snapshotXmax) {
+            return false;
+        }
+        return Arrays.binarySearch(snapshot, xid) >= 0;
     }
 }
@@ -1,8 +1,13 @@
 package top.wuzonghui.simpledb.backend.vm;
 
+import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
 /**
  * @author Starry
  * @create 2022-12-30-7:20 PM
@@ -18,6 +23,16 @@ public interface VersionManager {
      */
     byte[] read(long xid, long uid) throws Exception;
 
+    /**
+     * @Describe 指定的事务read数据，不拷贝记录，而是在DataItem的读锁内把data部分直接交给reader解析。
+     * @param xid 指定的事务的xid。
+     * @param uid 要读取的数据所在Entry的uid。
+     * @param reader 解析data部分的函数，传入的SubArray只在reader执行期间有效。
+     * @return reader的返回值。如果Entry为null或Entry对事务不可见，则返回null。
+     * @throws Exception 如果该事务的Error字段不为null，会抛出该异常。
+     */
+    <R> R read(long xid, long uid, Function<SubArray, R> reader) throws Exception;
+
     /**
      * @Describe 指定的事务insert数据。
      * @param xid 插入记录的事务的xid。
@@ -27,6 +42,15 @@ public interface VersionManager {
      */
     long insert(long xid, byte[] data) throws Exception;
 
+    /**
+     * @Describe 指定的事务批量insert数据，每条数据都会被封装成Entry的格式，通过DataManager.insertBatch按页批量写入。
+     * @param xid 插入记录的事务的xid。
+     * @param datas 要插入的数据。
+     * @return 和datas一一对应的uid。
+     * @throws Exception
+     */
+    List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception;
+
     /**
      * @Describe 由xid将指定uid的记录删除。
      * @param xid 用来指定事务。
@@ -36,6 +60,81 @@ public interface VersionManager {
      */
     boolean delete(long xid, long uid) throws Exception;
 
+    /**
+     * @Describe 由xid将tableUid表中指定uid的记录删除，和delete(xid, uid)的区别是会先在表上加意向排他锁，
+     * 持有的行锁数量达到阈值后会升级为表锁。
+     * @param xid 用来指定事务。
+     * @param tableUid 记录所在的表。
+     * @param uid 用来指定记录。
+     * @return 是否成功删除。true：成功删除。false：删除失败。
+     * @throws Exception
+     */
+    boolean delete(long xid, long tableUid, long uid) throws Exception;
+
+    /**
+     * @Describe 由xid更新tableUid表中的uid记录，新版本的数据为data。
+     * @param xid 执行更新的事务的xid。
+     * @param tableUid 记录所在的表。
+     * @param uid 记录的版本链的根，即索引中记录的uid。
+     * @return 新版本所在版本链的根。和uid相同时说明新版本接在了原来的版本链上，索引不需要修改；
+     * 原记录是旧格式的Entry时只能删除后插入新的Entry，返回新Entry的uid，调用方需要为它插入索引。记录对事务不可见时返回0。
+     * @throws Exception
+     * @Detail 新版本优先插入到旧版本所在的页，旧版本的XMAX设置为xid，NEXT指向新版本。
+     * 加锁、版本跳跃和自动回滚的规则和delete相同。
+     */
+    long update(long xid, long tableUid, long uid, byte[] data) throws Exception;
+
+    /**
+     * @Describe 由xid在tableUid表的uid记录上加共享锁(select ... for share)，持有期间其他事务不能删除或更新该记录。
+     * 发生死锁或等待超时时事务会被自动回滚。
+     * @throws Exception 只读事务中调用会抛出ReadOnlyTransactionException。
+     */
+    void lockShared(long xid, long tableUid, long uid) throws Exception;
+
+    /**
+     * @Describe 由xid以mode模式(LockTable.IS/IX/S/X)锁住整张表。
+     * @throws Exception 只读事务中调用会抛出ReadOnlyTransactionException。
+     */
+    void lockTable(long xid, long tableUid, int mode) throws Exception;
+
+    /**
+     * @Describe 回收uid对应的版本链上的死版本，即已经对所有活跃事务都不可见的版本。
+     * @param uid 版本链的根。
+     * @return 回收的版本数。
+     * @throws Exception
+     * @Detail 满足以下任一条件的版本是死版本：
+     * 1.创建该版本的事务已经回滚。
+     * 2.删除该版本的事务(XMAX)已经提交，并且XMAX比所有活跃事务以及它们快照中的事务都小，即没有任何快照还能看到删除前的状态。
+     * 死版本对应的DataItem会被标记为逻辑删除，之后由DM回收其空间。
+     * 链上还有活版本时根会被保留(索引指向它)，其余的死版本先从链上摘除再回收；整条链都是死版本时全部回收。
+     */
+    int vacuum(long uid) throws Exception;
+
+    /**
+     * @Describe 回收uid对应的版本链上的死版本，整条链都被回收时，回收之前先把链上每个版本的data依次交给onChainFreed。
+     * @param uid 版本链的根。
+     * @param onChainFreed 整条链被回收时对每个版本调用，上层据此删除指向根的索引项。传入的SubArray只在调用期间有效。
+     * @return 回收的版本数。
+     * @throws Exception
+     */
+    int vacuum(long uid, Consumer<SubArray> onChainFreed) throws Exception;
+
+    /**
+     * @Describe 不检查可见性，把uid对应的版本链上每个版本的data依次交给reader，用于建立索引时找到每个版本的索引列。
+     * @param uid 版本链的根。
+     * @param reader 处理data的函数，传入的SubArray只在调用期间有效。
+     * @throws Exception
+     */
+    void readVersions(long uid, Consumer<SubArray> reader) throws Exception;
+
+    /**
+     * @Describe uid对应的版本链是否只有根，并且对所有活跃事务以及之后开启的事务都可见。
+     * 为true时上层可以直接使用索引中保存的列值，不需要读取记录(index-only scan)。
+     * @param uid 版本链的根。
+     * @return true：一定可见。false：需要读取记录判断可见性。由vacuum建立，可能比实际情况保守。
+     */
+    boolean isAllVisible(long uid);
+
     /**
      * @Describe 开启一个事务。
      * @param level 该事务的隔离级别。
@@ -43,6 +142,21 @@ public interface VersionManager {
      */
     long begin(int level);
 
+    /**
+     * @Describe 开启一个只读事务。只读事务只建立快照，不写xid文件，也不参与locktable的死锁检测，
+     * 在只读事务中insert、delete会抛出ReadOnlyTransactionException。
+     * @param level 该事务的隔离级别。
+     * @return 只读事务的虚拟xid，是一个负数。
+     */
+    long beginReadOnly(int level);
+
+    /**
+     * @Describe 设置事务等待行锁的最长时间，超时后该事务会被自动回滚。
+     * @param xid 事务的xid。
+     * @param timeout 毫秒数，小于等于0表示一直等待。
+     */
+    void setLockTimeout(long xid, long timeout);
+
     /**
      * @Describe 提交一个事务。
      * @param xid 提交事务的xid。
@@ -1,23 +1,30 @@
 package top.wuzonghui.simpledb.backend.vm;
 
-import top.wuzonghui.simpledb.backend.common.AbstractCache;
+import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 import top.wuzonghui.simpledb.common.Error;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author Starry
  * @create 2023-01-02-7:30 PM
  * @Describe VersionManager接口的实现类
  */
-public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+public class VersionManagerImpl implements VersionManager {
     /**
      * VM层实现功能依赖于TM层。
      */
@@ -30,58 +37,62 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     /**
      * 用一个Map，存储所有活跃的事务。{xid -> transaction}
+     * 查询不加锁；新增和移除在lock下进行，保证begin建立快照时看到的活跃事务集合是一致的。
      */
     Map<Long, Transaction> activeTransaction;
 
     /**
-     * 锁
+     * 锁，保护活跃事务集合的修改。
      */
     Lock lock;
 
+    /**
+     * 只读事务的虚拟xid，从-1开始递减，不会和xid文件中分配的事务冲突。
+     */
+    AtomicLong readOnlyXid;
+
     /**
      * 维护一张xid和uid的关系图，以进行死锁检测,当xid占用或释放uid的时候，需要调用相关方法维护关系图。
      */
     LockTable locktable;
 
+    private static final int CHAIN_STRIPES = 64;
+
+    /**
+     * 版本链的锁，按根的uid分段。修改版本链的链接(update接上新版本、vacuum摘除死版本)需要持有根所在分段的锁，
+     * 只读取版本链不需要加锁。
+     */
+    private final Lock[] chainLocks;
+
+    /**
+     * 沿版本链查找时遇到了已经被回收的中间版本，说明vacuum正在修改这条链，需要加锁后从根重新查找。
+     */
+    private static final Entry BROKEN_CHAIN = Entry.newEntry(null, 0);
+
+    /**
+     * 可见性表：对所有活跃事务以及之后开启的事务都可见的版本链的根。
+     * 由vacuum在持有链锁时加入(链上只剩根，创建它的事务已经提交并且早于所有快照，没有被删除)，
+     * update和delete修改根之后在链锁下移除，只保存在内存中，重启后由vacuum重新建立。
+     */
+    private final Set<Long> allVisible;
+
     public VersionManagerImpl(TransactionManager transactionManager, DataManager dataManager) {
-        //缓存数量：不限制。
-        super(0);
         this.transactionManager = transactionManager;
         this.dataManager = dataManager;
         this.locktable = new LockTable();
         this.lock = new ReentrantLock();
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.readOnlyXid = new AtomicLong(0);
+        this.allVisible = ConcurrentHashMap.newKeySet();
+        this.chainLocks = new Lock[CHAIN_STRIPES];
+        for (int i = 0; i < CHAIN_STRIPES; i++) {
+            chainLocks[i] = new ReentrantLock();
+        }
         //当前活跃的事务中，添加一条超级事务。超级事务始终处于活跃状态。
         activeTransaction.put(TransactionManagerImpl.SUPER_XID,
                 Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
     }
 
-    @Override
-    protected Entry getForCache(long uid) throws Exception {
-        /*
-            当Entry不在缓存中时，获取Entry的方法。
-         */
-        Entry entry = Entry.loadEntry(this, uid);
-        if (entry == null) {
-            throw Error.NullEntryException;
-        }
-        return entry;
-    }
-
-    @Override
-    protected void releaseForCache(Entry entry) {
-        entry.remove();
-    }
-
-    /**
-     * 释放Entry。
-     */
-    public void releaseEntry(Entry entry) {
-        //调用super.release(),release方法会去调releaseForCache，实际上又是调的entry.remove()
-        super.release(entry.getUid());
-    }
-
-
     @Override
     public long begin(int level) {
         lock.lock();
@@ -96,6 +107,30 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    @Override
+    public long beginReadOnly(int level) {
+        /*
+            只读事务只需要建立快照：不调用TM层的begin，因此不会写xid文件，也不会进入locktable。
+            加锁是为了让快照和其他事务的begin/commit互斥，xid计数器和活跃事务集合需要是同一时刻的状态。
+         */
+        long xid = readOnlyXid.decrementAndGet();
+        lock.lock();
+        try {
+            long xmax = transactionManager.getXidCounter() + 1;
+            activeTransaction.put(xid, Transaction.newReadOnlyTransaction(xid, level, xmax, activeTransaction));
+            return xid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public void setLockTimeout(long xid, long timeout) {
+        Transaction transaction = activeTransaction.get(xid);
+        transaction.lockTimeout = timeout;
+    }
+
 
     @Override
     public void commit(long xid) throws Exception {
@@ -105,9 +140,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             事务的活跃列表中移除xid。
             locktable、tm层提交事务。
          */
-        lock.lock();
         Transaction transaction = activeTransaction.get(xid);
-        lock.unlock();
 
         //疑问：这里为什么要catch异常。
         //当commit一个error字段不为null的事务的时候，捕获该异常，虚拟机停止。
@@ -125,6 +158,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.remove(xid);
         lock.unlock();
 
+        //只读事务没有占用任何资源，也没有在xid文件中登记。
+        if (transaction.readOnly) {
+            return;
+        }
         locktable.remove(xid);
         transactionManager.commit(xid);
     }
@@ -154,7 +191,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
         lock.unlock();
 
-        if (t.autoAborted) return;
+        if (t.autoAborted || t.readOnly) return;
         locktable.remove(xid);
         transactionManager.abort(xid);
     }
@@ -162,54 +199,135 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        return read(xid, uid, data -> Arrays.copyOfRange(data.raw, data.start, data.end));
+    }
+
+    @Override
+    public <R> R read(long xid, long uid, Function<SubArray, R> reader) throws Exception {
         //提示：获取事务要加锁，要判断事务是否出错，如果Entry为null返回null，如果事务对资源不可见也返回null。
-        lock.lock();
         Transaction transaction = activeTransaction.get(xid);
-        lock.unlock();
 
         if (transaction.error != null) {
             throw transaction.error;
         }
-        Entry entry = null;
+        //uid是版本链的根，沿着版本链找到对该事务可见的版本。
+        Entry entry = findVisible(transaction, uid);
+        if (entry == null) {
+            return null;
+        }
         try {
-            entry = get(uid);
-        } catch (Exception e) {
-            //如果Entry为空，返回null。
-            if (e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+            return entry.read(reader);
+        } finally {
+            entry.release();
         }
+    }
+
+    /**
+     * 获取uid对应的Entry。Entry不单独缓存，直接持有DM缓存中的DataItem。
+     * @return Entry对象，uid对应的DataItem不存在或者已经被回收时返回null。
+     */
+    private Entry getEntry(long uid) throws Exception {
+        return Entry.loadEntry(dataManager, uid);
+    }
+
+    private Lock chainLock(long root) {
+        long h = root * 0x9E3779B97F4A7C15L;
+        return chainLocks[(int) (h >>> 58) & (CHAIN_STRIPES - 1)];
+    }
+
+    /**
+     * 从根开始沿着版本链查找对事务t可见的版本。
+     * @param t 事务。
+     * @param root 版本链的根，即索引中记录的uid。
+     * @return 可见的版本，调用方负责release。没有可见的版本时返回null。
+     */
+    private Entry findVisible(Transaction t, long root) throws Exception {
+        Entry entry = walk(t, root, false);
+        if (entry != BROKEN_CHAIN) {
+            return entry;
+        }
+        Lock chainLock = chainLock(root);
+        chainLock.lock();
         try {
-            if (Visibility.isVisible(transactionManager, transaction, entry)) {
-                return entry.data();
-            } else {
-                return null;
-            }
+            return walk(t, root, true);
         } finally {
-            if (!entry.dataItemIsNull()) {
-                entry.release();
+            chainLock.unlock();
+        }
+    }
+
+    /**
+     * @param locked 是否持有版本链的锁。持有锁时链不会被修改，遇到已回收的版本就说明链已经结束。
+     * @return 可见的版本；没有可见版本时返回null；未持有锁并且遇到已回收的中间版本时返回BROKEN_CHAIN。
+     * @Detail vacuum先把死版本从链中摘除再回收它，因此加锁后从根重新查找一定不会再经过被回收的版本。
+     */
+    private Entry walk(Transaction t, long root, boolean locked) throws Exception {
+        long uid = root;
+        while (true) {
+            Entry entry = getEntry(uid);
+            if (entry == null) {
+                //根被回收说明整条链都已经是死版本
+                return uid == root || locked ? null : BROKEN_CHAIN;
+            }
+            long next;
+            boolean visible = false;
+            try {
+                visible = Visibility.isVisible(transactionManager, t, entry);
+                next = visible ? 0 : entry.getNext();
+            } finally {
+                if (!visible) {
+                    entry.release();
+                }
             }
+            if (visible) {
+                return entry;
+            }
+            if (next == 0) {
+                return null;
+            }
+            uid = next;
         }
     }
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction transaction = activeTransaction.get(xid);
-        lock.unlock();
 
         if (transaction.error != null) {
             throw transaction.error;
         }
+        if (transaction.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] d = Entry.wrapEntryRaw(xid, data);
         return dataManager.insert(xid, d);
     }
 
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        Transaction transaction = activeTransaction.get(xid);
+
+        if (transaction.error != null) {
+            throw transaction.error;
+        }
+        if (transaction.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        List<byte[]> entries = new ArrayList<>(datas.size());
+        for (byte[] data : datas) {
+            entries.add(Entry.wrapEntryRaw(xid, data));
+        }
+        return dataManager.insertBatch(xid, entries);
+    }
+
     @Override
     public boolean delete(long xid, long uid) throws Exception {
+        return delete(xid, 0, uid);
+    }
+
+    @Override
+    public boolean delete(long xid, long tableUid, long uid) throws Exception {
         //加锁获取事务，有错抛错。
         //根据uid获取到Entry。如果获取到空Entry，返回false。
         //不可见则不能删除，返回false。
@@ -220,63 +338,343 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         // 1.设置Error字段2.调用internAbort(xid, true)3.设置autoAborted字段4.抛出异常。
         //如果发生了死锁或是版本跳跃，应该自动回滚事务。设置error字段意味着接下来该事务的所有操作都会报错。
         //调用internAbort方法，是自动回滚事务，将locktable中的边删除，调用tm的abort方法。
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.error != null) {
             throw t.error;
         }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
-        //获取到Entry
-        Entry entry = null;
+        //沿着版本链找到可见的版本，不可见则不可以删除
+        Entry entry = findVisible(t, uid);
+        if (entry == null) {
+            return false;
+        }
+        entry.release();
+        //删除资源的时候也需要占用资源，查看是否会发生死锁。行锁总是加在版本链的根上。
+        acquireLock(t, tableUid, uid, LockTable.X);
+        //等待期间其他事务可能已经提交了新版本或者删除，加锁后重新查找
+        entry = findVisible(t, uid);
+        if (entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch (Exception e) {
-            if (e == Error.NullEntryException) {
+            //如果该记录已经被该xid删除
+            if (entry.getXmax() == xid) {
                 return false;
-            } else {
-                throw e;
             }
+            //如果是版本跳跃
+            if(Visibility.isVersionSkip(transactionManager, t, entry)) {
+                t.error = Error.ConcurrentUpdateException;
+                internAbort(xid, true);
+                t.autoAborted = true;
+                throw t.error;
+            }
+
+            entry.setXmax(xid);
+            clearAllVisible(uid);
+            return true;
+        } finally {
+            entry.release();
         }
+    }
+
+    @Override
+    public boolean isAllVisible(long uid) {
+        return allVisible.contains(uid);
+    }
+
+    /**
+     * 根被update或者delete修改后移出可见性表。在链锁下移除，保证不会和vacuum的判断交错，把修改过的根重新加入。
+     */
+    private void clearAllVisible(long uid) {
+        Lock chainLock = chainLock(uid);
+        chainLock.lock();
         try {
-            //如果要事务对当前记录不可见，不可以删除
-            if (!Visibility.isVisible(transactionManager, t, entry)) {
-                return false;
-            }
-            //删除资源的时候也需要占用资源，查看是否会发生死锁。
-            Lock l = null;
-            try {
-                l = locktable.add(xid, uid);
-            } catch (Exception e) {
-                //如果发生死锁了，设置事务的error字段。这里有一些疑问，为什么不直接让挂掉？
+            allVisible.remove(uid);
+        } finally {
+            chainLock.unlock();
+        }
+    }
+
+    @Override
+    public long update(long xid, long tableUid, long uid, byte[] data) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.error != null) {
+            throw t.error;
+        }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        Entry entry = findVisible(t, uid);
+        if (entry == null) {
+            return 0;
+        }
+        entry.release();
+        acquireLock(t, tableUid, uid, LockTable.X);
+        entry = findVisible(t, uid);
+        if (entry == null) {
+            return 0;
+        }
+        try {
+            if(Visibility.isVersionSkip(transactionManager, t, entry)) {
                 t.error = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.error;
             }
-            //如果不是死锁，那么就等待该线程被解锁。这里是不是写错了，因为lock是可重入锁？是否应该用阻塞队列之类的来实现。
-            if (l != null) {
-                l.lock();
-                l.unlock();
+            //旧格式的版本没有NEXT字段，只能删除后插入一条新的版本链
+            if (!entry.isChained()) {
+                entry.setXmax(xid);
+                clearAllVisible(uid);
+                return dataManager.insert(xid, Entry.wrapEntryRaw(xid, data));
             }
-            //如果该记录已经被该xid删除
-            if (entry.getXmax() == xid) {
-                return false;
+            Lock chainLock = chainLock(uid);
+            chainLock.lock();
+            try {
+                //新版本继承旧版本原来的NEXT，之前回滚的事务留下的版本仍然在链上，等待vacuum回收
+                long newUid = dataManager.insert(xid, Entry.wrapEntryRaw(xid, data, entry.getNext()), entry.getUid());
+                entry.setXmaxAndNext(xid, newUid);
+                allVisible.remove(uid);
+                return uid;
+            } finally {
+                chainLock.unlock();
             }
-            //如果是版本跳跃
-            if(Visibility.isVersionSkip(transactionManager, t, entry)) {
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void lockShared(long xid, long tableUid, long uid) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+        if (t.error != null) {
+            throw t.error;
+        }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        acquireLock(t, tableUid, uid, LockTable.S);
+    }
+
+    @Override
+    public void lockTable(long xid, long tableUid, int mode) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+        if (t.error != null) {
+            throw t.error;
+        }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        acquireLock(t, 0, tableUid, mode);
+    }
+
+    /**
+     * 事务t以mode模式获取资源，需要等待时阻塞直到获取成功。
+     * @param tableUid 资源所在表的uid，为0时直接锁uid，不加意向锁。
+     * @Detail 发生死锁或者等待超过lockTimeout时，设置事务的error字段并自动回滚，之后该事务的所有操作都会报错。
+     * addRow可能先在表锁上等待，被唤醒后还需要再获取行锁，因此循环直到不再需要等待。
+     */
+    private void acquireLock(Transaction t, long tableUid, long uid, int mode) throws Exception {
+        while (true) {
+            Waiter w;
+            try {
+                w = tableUid == 0 ? locktable.add(t.xid, uid, mode) : locktable.addRow(t.xid, tableUid, uid, mode);
+            } catch (Exception e) {
+                //如果发生死锁了，设置事务的error字段。
                 t.error = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
+                internAbort(t.xid, true);
+                t.autoAborted = true;
+                throw t.error;
+            }
+            if (w == null) {
+                return;
+            }
+            //如果不是死锁，那么就等待资源被转交，超过lockTimeout仍未获取到则和死锁一样自动回滚。
+            if (!w.await(t.lockTimeout)) {
+                t.error = Error.LockTimeoutException;
+                internAbort(t.xid, true);
                 t.autoAborted = true;
                 throw t.error;
             }
+        }
+    }
 
-            entry.setXmax(xid);
-            return true;
+    @Override
+    public int vacuum(long uid) throws Exception {
+        return vacuum(uid, null);
+    }
+
+    @Override
+    public int vacuum(long uid, Consumer<SubArray> onChainFreed) throws Exception {
+        List<Long> versions = new ArrayList<>();
+        List<Long> nexts = new ArrayList<>();
+        List<Boolean> aborteds = new ArrayList<>();
+        //版本被已提交的事务删除时记录xmax，否则为0
+        List<Long> committedXmaxs = new ArrayList<>();
+        boolean rootCommitted = false;
+        long rootXmin = 0;
+        Lock chainLock = chainLock(uid);
+        chainLock.lock();
+        try {
+            //持有链锁，链上的版本不会被其他线程摘除或接上新版本
+            long cur = uid;
+            while (cur != 0) {
+                Entry entry = getEntry(cur);
+                if (entry == null) {
+                    break;
+                }
+                long next;
+                try {
+                    long xmin = entry.getXmin();
+                    long xmax = entry.getXmax();
+                    aborteds.add(transactionManager.isAborted(xmin));
+                    committedXmaxs.add(xmax != 0 && transactionManager.isCommitted(xmax) ? xmax : 0);
+                    if (cur == uid) {
+                        rootXmin = xmin;
+                        rootCommitted = xmax == 0 && transactionManager.isCommitted(xmin);
+                    }
+                    next = entry.getNext();
+                } finally {
+                    entry.release();
+                }
+                versions.add(cur);
+                nexts.add(next);
+                cur = next;
+            }
+            if (versions.isEmpty()) {
+                return 0;
+            }
+
+            /*
+                必须先读事务状态再计算horizon。反过来的话，在计算horizon之后才开始并提交的事务，
+                它的删除会被当作对所有快照都生效，而在它提交前建立的快照仍然需要旧版本。
+                先读状态时，读到已提交的xmax在计算horizon之前就已提交，看不到它的快照此时一定还在活跃列表中。
+             */
+            long horizon = oldestVisibleXid();
+            List<Boolean> deads = new ArrayList<>();
+            for (int i = 0; i < versions.size(); i++) {
+                long xmax = committedXmaxs.get(i);
+                deads.add(aborteds.get(i) || (xmax != 0 && xmax < horizon));
+            }
+            //根的xmin在horizon之前提交，活跃事务和之后开始的事务都能看到它
+            boolean rootAllVisible = rootCommitted && rootXmin < horizon;
+
+            //整条链都是死版本时全部回收，包括根
+            if (!deads.contains(false)) {
+                if (onChainFreed != null) {
+                    for (long version : versions) {
+                        readVersion(version, onChainFreed);
+                    }
+                }
+                for (long version : versions) {
+                    dataManager.free(TransactionManagerImpl.SUPER_XID, version);
+                }
+                allVisible.remove(uid);
+                return versions.size();
+            }
+
+            //否则保留根(索引指向它)，把死版本从链中摘除后再回收，并发的读者遇到已回收的版本会加锁重新查找
+            int kept = 0;
+            List<Long> freed = new ArrayList<>();
+            for (int i = 1; i <= versions.size(); i++) {
+                if (i < versions.size() && deads.get(i)) {
+                    freed.add(versions.get(i));
+                    continue;
+                }
+                long next = i < versions.size() ? versions.get(i) : 0;
+                if (nexts.get(kept) != next) {
+                    relink(versions.get(kept), next);
+                }
+                kept = i;
+            }
+            for (long version : freed) {
+                dataManager.free(TransactionManagerImpl.SUPER_XID, version);
+            }
+            //链上只剩下对所有事务可见的根
+            if (rootAllVisible && freed.size() == versions.size() - 1) {
+                allVisible.add(uid);
+            }
+            return freed.size();
+        } finally {
+            chainLock.unlock();
+        }
+    }
+
+    @Override
+    public void readVersions(long uid, Consumer<SubArray> reader) throws Exception {
+        Lock chainLock = chainLock(uid);
+        chainLock.lock();
+        try {
+            //持有链锁，链上的版本不会被vacuum摘除
+            long cur = uid;
+            while (cur != 0) {
+                cur = readVersion(cur, reader);
+            }
+        } finally {
+            chainLock.unlock();
+        }
+    }
+
+    /**
+     * 把一个版本的data交给reader。
+     * @return 下一个版本的uid，版本不存在时返回0。
+     */
+    private long readVersion(long uid, Consumer<SubArray> reader) throws Exception {
+        Entry entry = getEntry(uid);
+        if (entry == null) {
+            return 0;
+        }
+        try {
+            entry.read(data -> {
+                reader.accept(data);
+                return null;
+            });
+            return entry.getNext();
         } finally {
             entry.release();
         }
     }
 
+    private void relink(long uid, long next) throws Exception {
+        Entry entry = getEntry(uid);
+        if (entry == null) {
+            return;
+        }
+        try {
+            entry.setNext(TransactionManagerImpl.SUPER_XID, next);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 计算所有活跃事务还可能看到的最小xid。
+     * 对于每个活跃事务，取它快照的下界snapshotXmin(快照中的事务在它开始时还未结束，没有快照时为事务开始时的xid上界)，再对所有活跃事务取最小值。
+     * 一个在该值之前就已提交的删除，对所有活跃事务都已生效。
+     * @return 最小的xid，没有活跃事务时返回下一个将要分配的xid。
+     */
+    private long oldestVisibleXid() {
+        long oldest;
+        //加锁遍历，避免和begin/commit交错时漏掉刚建立快照的事务。
+        lock.lock();
+        try {
+            //之后开始的事务xid都不小于它，不能用Long.MAX_VALUE把之后才开始的事务当作已经结束
+            oldest = transactionManager.getXidCounter() + 1;
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                //读写事务的snapshotXmin不大于自身的xid；只读事务的xid是虚拟的，只看它的快照下界。
+                oldest = Math.min(oldest, t.snapshotXmin);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return oldest;
+    }
 }
@@ -98,6 +98,8 @@ public class Visibility {
      * 且T2的xid小于T的xid，
      * 且T2在T开始前提交，
      * 且(记录不是被删除的状态 或 (记录被删除但由其他事务T3删除, T3尚未提交 或 T3在T开始后才开始 或 T3在T开始前还在活跃))
+     * 3."在T之前/之后开始"以快照上界snapshotXmax为界。读写事务的snapshotXmax就是自身的xid，
+     * 只读事务的xid是虚拟的负数，snapshotXmax是它开始时下一个将要分配的xid。
      */
     private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e) {
         long xid = t.xid;
@@ -108,11 +110,11 @@ public class Visibility {
         //1.版本E由T创建，且未删除
         if(xmin == xid && xmax == 0) return true;
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (tm.isCommitted(xmin) && xmin < t.snapshotXmax && !t.isInSnapshot(xmin)) {
             if (xmax == 0) {
                 return true;
             }
-            if (xmax != xid && (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax))) {
+            if (xmax != xid && (!tm.isCommitted(xmax) || xmax >= t.snapshotXmax || t.isInSnapshot(xmax))) {
                 return true;
             }
         }
@@ -0,0 +1,73 @@
+package top.wuzonghui.simpledb.backend.vm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Starry
+ * @create 2023-02-08-3:40 PM
+ * @Describe 一个正在等待资源的事务。由等待的线程在LockTable.add中创建，
+ * 释放资源的线程调用grant把资源转交给它，等待的线程在await中park，直到被grant唤醒或者超时。
+ * @Detail
+ * 1.状态只能从WAITING变为GRANTED或CANCELLED，两者通过CAS竞争，因此超时和转交同时发生时结果是确定的：
+ * grant失败说明等待者已经放弃，LockTable会把资源转交给队列中的下一个等待者。
+ * 2.和之前的ReentrantLock不同，grant可以在任意线程调用，等待也不依赖可重入锁的持有者。
+ */
+public class Waiter {
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final Thread thread;
+    private final AtomicInteger state;
+
+    Waiter() {
+        this.thread = Thread.currentThread();
+        this.state = new AtomicInteger(WAITING);
+    }
+
+    /**
+     * 由释放资源的线程调用，把资源转交给该等待者并唤醒它。
+     * @return true:转交成功。false:等待者已经超时放弃。
+     */
+    boolean grant() {
+        if (!state.compareAndSet(WAITING, GRANTED)) {
+            return false;
+        }
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * 等待资源被转交。
+     * @param timeout 最长等待的毫秒数，小于等于0表示一直等待。
+     * @return true:获取到资源。false:超时或被中断，此时等待者已经放弃，之后不会再获取到该资源。
+     */
+    public boolean await(long timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        while (state.get() == WAITING) {
+            if (timeout <= 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.interrupted()) {
+                break;
+            }
+        }
+        //超时和grant竞争，CAS失败说明资源已经被转交过来了。
+        return !state.compareAndSet(WAITING, CANCELLED);
+    }
+
+    /**
+     * @return 资源是否已经被转交给该等待者。
+     */
+    public boolean isGranted() {
+        return state.get() == GRANTED;
+    }
+}
@@ -16,6 +16,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception NullDataItemException = new RuntimeException("Null data item!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -24,6 +25,13 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot write in a read-only transaction!");
+
+    // im
+    public static final Exception InvalidFanoutException = new RuntimeException("Invalid B+ tree fanout!");
+    public static final Exception InvalidFillFactorException = new RuntimeException("Invalid B+ tree fill factor!");
+    public static final Exception KeyTooLongException = new RuntimeException("Index key too long!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -33,6 +41,7 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception DuplicatedIndexException = new RuntimeException("Duplicated index!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
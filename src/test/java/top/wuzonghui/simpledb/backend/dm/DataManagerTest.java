@@ -3,10 +3,13 @@ package top.wuzonghui.simpledb.backend.dm;
 import org.junit.Test;
 import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
+import top.wuzonghui.simpledb.backend.dm.page.Page;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
 import top.wuzonghui.simpledb.backend.tm.MockTransactionManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
+import top.wuzonghui.simpledb.backend.utils.Codec;
 import top.wuzonghui.simpledb.backend.utils.Panic;
+import top.wuzonghui.simpledb.backend.utils.Parser;
 import top.wuzonghui.simpledb.backend.utils.RandomUtil;
 
 
@@ -59,6 +62,7 @@ public class DataManagerTest {
 
         new File("C:\\Users\\windows\\Desktop\\TESTDMSingle.db").delete();
         new File("C:\\Users\\windows\\Desktop\\TESTDMSingle.log").delete();
+        new File("C:\\Users\\windows\\Desktop\\TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -78,6 +82,7 @@ public class DataManagerTest {
 
         new File("C:\\Users\\windows\\Desktop\\TestDMMulti.db").delete();
         new File("C:\\Users\\windows\\Desktop\\TestDMMulti.log").delete();
+        new File("C:\\Users\\windows\\Desktop\\TestDMMulti.fsm").delete();
     }
 
     @Test
@@ -108,9 +113,201 @@ public class DataManagerTest {
         new File("C:\\Users\\windows\\Desktop\\TestRecoverySimple.db").delete();
         new File("C:\\Users\\windows\\Desktop\\TestRecoverySimple.log").delete();
         new File("C:\\Users\\windows\\Desktop\\TestRecoverySimple.xid").delete();
+        new File("C:\\Users\\windows\\Desktop\\TestRecoverySimple.fsm").delete();
 
     }
 
+    @Test
+    public void testFreeSpaceMapReopen() throws Exception {
+        String path = "C:\\Users\\windows\\Desktop\\TestFreeSpaceMap";
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            uids.add(dm.insert(0, RandomUtil.randomBytes(60)));
+        }
+        dm.close();
+        //正常关闭后.fsm文件记录了每一页的空闲空间
+        assert new File(path + ".fsm").length() > 2;
+
+        dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+        //重新打开后，pageIndex由.fsm文件重建，小数据应当继续写入已有的页，而不是新开一页
+        long pgno = dm.insert(0, RandomUtil.randomBytes(60)) >>> 32;
+        assert pgno <= (uids.get(uids.size() - 1) >>> 32);
+        for (long uid : uids) {
+            DataItem di = dm.read(uid);
+            assert di != null;
+            di.release();
+        }
+        dm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        String path = "C:\\Users\\windows\\Desktop\\TestCompact";
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        long lastPgno = uids.get(uids.size() - 1) >>> 32;
+        for (int i = 0; i < uids.size(); i += 2) {
+            dm.free(0, uids.get(i));
+        }
+        //释放一半的数据后整理，回收的空间至少是被free的DataItem的大小
+        assert dm.compact() >= 250 * 63;
+        assert dm.compact() == 0;
+        checkCompacted(dm, uids, datas);
+
+        //整理后的页重新登记到了PageIndex，新数据写入已有的页
+        assert (dm.insert(0, RandomUtil.randomBytes(60)) >>> 32) <= lastPgno;
+
+        //不正常关闭，重新打开时通过日志恢复，页面镜像日志需要被重放
+        DataManager crashed = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+        checkCompacted(crashed, uids, datas);
+        crashed.close();
+
+        dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+        checkCompacted(dm, uids, datas);
+        dm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testLegacyPageMigration() throws Exception {
+        String path = "C:\\Users\\windows\\Desktop\\TestLegacyPage";
+        TransactionManager tm = new MockTransactionManager();
+        DataManager.create(path, PageCache.PAGE_SIZE * 10, tm).close();
+
+        //手动构造一个旧格式的页：前2个字节是FSO，uid的低位是offset；并把第一页的格式版本清零
+        byte[] data = RandomUtil.randomBytes(60);
+        byte[] item = DataItem.wrapDataItemRaw(data);
+        byte[] legacy = new byte[PageCache.PAGE_SIZE];
+        System.arraycopy(item, 0, legacy, 2, item.length);
+        System.arraycopy(Parser.short2Byte((short) (2 + item.length)), 0, legacy, 0, 2);
+        PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE * 10);
+        int legacyPgno = pc.newPage(legacy);
+        Page pageOne = pc.getPage(1);
+        pageOne.getData()[0] = 0;
+        pageOne.getData()[1] = 0;
+        pageOne.setDirty(true);
+        pageOne.release();
+        pc.close();
+
+        DataManager dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+        DataItem di = dm.read(((long) legacyPgno << 32) | 2);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data);
+        di.release();
+        //旧格式的页不再插入数据
+        long uid = dm.insert(0, RandomUtil.randomBytes(60));
+        assert (uid >>> 32) > legacyPgno;
+        dm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testInsertBatch() throws Exception {
+        String path = "C:\\Users\\windows\\Desktop\\TestInsertBatch";
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        List<byte[]> datas = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            datas.add(RandomUtil.randomBytes(60));
+        }
+        List<Long> uids = dm.insertBatch(0, datas);
+        assert uids.size() == datas.size();
+        //每页都被装满：1000个63字节的DataItem加上槽，最多占用8页
+        assert (uids.get(uids.size() - 1) >>> 32) <= 2 + 8;
+        checkInserted(dm, uids, datas);
+
+        //不正常关闭，重新打开时通过每页一条的insertLog恢复
+        DataManager crashed = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+        checkInserted(crashed, uids, datas);
+        crashed.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testOptimisticRead() throws Exception {
+        String path = "C:\\Users\\windows\\Desktop\\TestOptimisticRead";
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        long uid = dm.insert(0, new byte[16]);
+        DataItem di = dm.read(uid);
+
+        //写线程每次同时修改两个long，读线程乐观读到的两个值只要通过validate就一定相等
+        int rounds = 20000;
+        Thread writer = new Thread(() -> {
+            for (long i = 1; i <= rounds; i++) {
+                di.before();
+                SubArray data = di.data();
+                Codec.putLong(data.raw, data.start, i);
+                Codec.putLong(data.raw, data.start + 8, i);
+                di.after(0);
+            }
+        });
+        writer.start();
+        int validated = 0;
+        while (writer.isAlive() || validated == 0) {
+            long stamp = di.tryOptimisticRead();
+            SubArray data = di.data();
+            long a = Codec.getLong(data.raw, data.start);
+            long b = Codec.getLong(data.raw, data.start + 8);
+            if (stamp != 0 && di.validate(stamp)) {
+                assert a == b;
+                validated++;
+            }
+        }
+        writer.join();
+        di.release();
+        dm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private void checkInserted(DataManager dm, List<Long> uids, List<byte[]> datas) throws Exception {
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray data = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), datas.get(i));
+            di.release();
+        }
+    }
+
+    private void checkCompacted(DataManager dm, List<Long> uids, List<byte[]> datas) throws Exception {
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            if (i % 2 == 0) {
+                assert di == null;
+                continue;
+            }
+            assert di != null;
+            SubArray data = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), datas.get(i));
+            di.release();
+        }
+    }
+
     @Test
     public void demo1() {
         TransactionManager tm = TransactionManager.create("C:\\Users\\windows\\Desktop\\TestRecoverySimple");
@@ -6,7 +6,9 @@ import top.wuzonghui.simpledb.backend.common.SubArray;
 import top.wuzonghui.simpledb.backend.dm.dataItem.MockDataItem;
 import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
@@ -53,6 +55,35 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, byte[] data, long nearUid) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (byte[] data : datas) {
+            uids.add(insert(xid, data));
+        }
+        return uids;
+    }
+
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int compact() throws Exception {
+        return 0;
+    }
+
     @Override
     public void close() {}
     
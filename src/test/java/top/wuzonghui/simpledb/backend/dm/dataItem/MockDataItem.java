@@ -73,6 +73,16 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
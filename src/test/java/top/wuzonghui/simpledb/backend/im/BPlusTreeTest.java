@@ -5,10 +5,18 @@ import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
 import top.wuzonghui.simpledb.backend.tm.MockTransactionManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
+import top.wuzonghui.simpledb.backend.utils.Codec;
+import top.wuzonghui.simpledb.backend.utils.Parser;
+import top.wuzonghui.simpledb.common.Error;
 
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class BPlusTreeTest {
     @Test
@@ -34,5 +42,642 @@ public class BPlusTreeTest {
         tm.close();
         assert new File("C:\\Users\\windows\\Desktop\\TestTreeSingle.db").delete();
         assert new File("C:\\Users\\windows\\Desktop\\TestTreeSingle.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeSingle.fsm").delete();
+    }
+
+    @Test
+    public void testSearchRange() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeRange", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        //只插入偶数key，查找奇数key和区间边界落在两个key之间的情况
+        int lim = 2000;
+        for (int i = 0; i < lim; i++) {
+            tree.insert(i * 2L, i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            assert tree.search(i * 2L).get(0) == i + 1;
+            assert tree.search(i * 2L + 1).isEmpty();
+        }
+        assert tree.searchRange(9, 21).size() == 6;
+        assert tree.searchRange(10, 20).size() == 6;
+        assert tree.searchRange(-100, -1).isEmpty();
+        assert tree.searchRange(lim * 2L, Long.MAX_VALUE).isEmpty();
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeRange.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeRange.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeRange.fsm").delete();
+    }
+
+    @Test
+    public void testBalance() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeBalance", PageCache.PAGE_SIZE*10, tm);
+
+        //默认一个节点占满一页，balance记录在bootDataItem中
+        long boot = BPlusTree.create(dm);
+        assert BPlusTree.load(boot, dm).balance == Node.MAX_BALANCE_NUMBER;
+        try {
+            BPlusTree.create(dm, Node.MAX_BALANCE_NUMBER + 1);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidFanoutException;
+        }
+
+        //很小的balance会频繁分裂，树更高
+        BPlusTree small = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        //旧格式的bootDataItem只有根节点的uid
+        long legacyRoot = dm.insert(0, Node.newNilRootRaw(Node.LEGACY_BALANCE_NUMBER));
+        BPlusTree legacy = BPlusTree.load(dm.insert(0, Parser.long2Byte(legacyRoot)), dm);
+        assert legacy.balance == Node.LEGACY_BALANCE_NUMBER;
+        int lim = 3000;
+        for (int i = 0; i < lim; i++) {
+            small.insert(i, i + 1);
+            legacy.insert(i, i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            assert small.search(i).get(0) == i + 1;
+            assert legacy.search(i).get(0) == i + 1;
+        }
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBalance.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBalance.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBalance.fsm").delete();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+
+        int lim = 2000;
+        for (int i = 0; i < lim; i++) {
+            tree.insert(i, i + 1);
+        }
+        int leaves = countLeaves(tree);
+
+        //删除一半的key，不存在的son-key对删除失败
+        for (int i = 0; i < lim; i += 2) {
+            assert tree.delete(i, i + 1);
+        }
+        assert !tree.delete(0, 1);
+        assert !tree.delete(1, 1);
+        for (int i = 0; i < lim; i++) {
+            assert tree.search(i).size() == i % 2;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim / 2;
+
+        //全部删除后，合并让叶子节点的个数随之减少
+        for (int i = 1; i < lim; i += 2) {
+            assert tree.delete(i, i + 1);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        assert countLeaves(tree) < leaves / 10;
+
+        //删除后可以继续插入
+        for (int i = 0; i < lim; i++) {
+            tree.insert(i, i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            assert tree.search(i).get(0) == i + 1;
+        }
+
+        //重复的key跨越多个叶子节点，查找和删除都能找到所有的son
+        BPlusTree dup = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        for (int i = 0; i < 100; i++) {
+            dup.insert(i % 3 == 0 ? 7 : i, i);
+        }
+        //key为7的还有i = 7本身
+        assert dup.search(7).size() == 35;
+        for (int i = 0; i < 100; i += 3) {
+            assert dup.delete(7, i);
+        }
+        assert dup.search(7).size() == 1;
+        assert dup.searchRange(0, Long.MAX_VALUE).size() == 66;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeDelete.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeDelete.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeDelete.fsm").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeBulkLoad", PageCache.PAGE_SIZE*100, tm);
+
+        //内存中只放1000组，20000组会写出多个有序段再归并；key有重复
+        int lim = 20000;
+        Random random = new Random(1);
+        BulkLoader loader = BulkLoader.newBulkLoader(1000);
+        for (int i = 0; i < lim; i++) {
+            loader.add(random.nextInt(lim / 2), i + 1);
+        }
+        BPlusTree tree = BPlusTree.load(loader.build(dm, 8, 0.7), dm);
+        assert tree.balance == 8;
+        random = new Random(1);
+        for (int i = 0; i < lim; i++) {
+            assert tree.search(random.nextInt(lim / 2)).contains((long) i + 1);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim;
+        //每个叶子节点约0.7 * 16 = 11个key
+        assert countLeaves(tree) == (lim + 10) / 11;
+
+        //建好的树可以继续插入和删除
+        for (int i = 0; i < lim; i++) {
+            tree.insert(lim + i, i + 1);
+        }
+        random = new Random(1);
+        for (int i = 0; i < lim; i++) {
+            assert tree.delete(random.nextInt(lim / 2), i + 1);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim;
+        assert tree.searchRange(lim, Long.MAX_VALUE).size() == lim;
+
+        //空的输入得到一颗空树；填充因子超出范围
+        assert BPlusTree.load(BulkLoader.newBulkLoader().build(dm), dm).searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        try {
+            BulkLoader.newBulkLoader().build(dm, 8, 1.5);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidFillFactorException;
+        }
+
+        //小的输入：每个节点放min(2 * 4 - 1, 0.5 * 2 * 4) = 4项，100个key得到25个叶子节点，之上依次是7、2、1个内部节点
+        loader = BulkLoader.newBulkLoader();
+        for (int i = 0; i < 100; i++) {
+            loader.add(i * 37 % 100, i * 37 % 100 + 1);
+        }
+        BPlusTree small = BPlusTree.load(loader.build(dm, 4, 0.5), dm);
+        List<Long> all = small.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert all.size() == 100;
+        for (int i = 0; i < 100; i++) {
+            assert all.get(i) == i + 1;
+        }
+        assert countLeaves(small) == 25;
+        assert height(small) == 4;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBulkLoad.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBulkLoad.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBulkLoad.fsm").delete();
+    }
+
+    @Test
+    public void testVarKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeVarKeys", PageCache.PAGE_SIZE*100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+
+        //长短不一的key，长的key让节点在key的个数达到上限之前就因为空间不够而分裂
+        int lim = 3000;
+        byte[][] keys = new byte[lim][];
+        for (int i = 0; i < lim; i++) {
+            String s = "k" + i;
+            for (int j = 0; j < i % 7; j++) {
+                s += "-padding-" + j;
+            }
+            keys[i] = Codec.sortableString(s);
+            tree.insert(keys[i], i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            List<Long> uids = tree.search(keys[i]);
+            assert uids.size() == 1 && uids.get(0) == i + 1;
+        }
+        //前缀查找：以"k1"开头的字符串
+        byte[] prefix = "k1".getBytes();
+        List<byte[]> found = new ArrayList<>();
+        List<Long> uids = tree.searchRange(prefix, Codec.prefixEnd(prefix), found);
+        int expected = 0;
+        for (int i = 0; i < lim; i++) {
+            expected += String.valueOf(i).startsWith("1") ? 1 : 0;
+        }
+        assert uids.size() == expected && found.size() == expected;
+        for (int i = 0; i < found.size(); i++) {
+            assert Arrays.equals(found.get(i), keys[(int) (long) uids.get(i) - 1]);
+            assert i == 0 || Codec.compareKeys(found.get(i - 1), found.get(i)) <= 0;
+        }
+        assert tree.searchRange(null, null, null).size() == lim;
+
+        for (int i = 0; i < lim; i += 2) {
+            assert tree.delete(keys[i], i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            assert tree.search(keys[i]).size() == i % 2;
+        }
+
+        //超过节点能放下的长度
+        try {
+            tree.insert(new byte[tree.maxKeySize() + 1], 1);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.KeyTooLongException;
+        }
+
+        //long类型的key按数值排序，包括负数
+        BPlusTree longs = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+        for (int i = -500; i < 500; i++) {
+            longs.insert(i, i + 1000);
+        }
+        assert longs.searchRange(-10, 9).size() == 20;
+        assert longs.searchRange(Long.MIN_VALUE, -1).size() == 500;
+        assert longs.searchRange(5, 4).isEmpty();
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeVarKeys.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeVarKeys.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeVarKeys.fsm").delete();
+    }
+
+    @Test
+    public void testLegacyUpgrade() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeUpgrade", PageCache.PAGE_SIZE*10, tm);
+
+        //按旧格式手工构造两层的树：两个叶子节点，key分别是[0, 50)和[50, 100)
+        long right = dm.insert(0, legacyRaw(true, 0, 50, 50));
+        long left = dm.insert(0, legacyRaw(true, right, 0, 50));
+        byte[] root = legacyRaw(false, 0, 0, 0);
+        Codec.putShort(root, 1, (short) 2);
+        Codec.putLong(root, 11, left);
+        Codec.putLong(root, 19, 50);
+        Codec.putLong(root, 27, right);
+        Codec.putLong(root, 35, Long.MAX_VALUE);
+        long boot = dm.insert(0, Parser.long2Byte(dm.insert(0, root)));
+
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        assert tree.balance == Node.LEGACY_BALANCE_NUMBER;
+        for (int i = 0; i < 100; i++) {
+            assert tree.search(i).get(0) == i + 1;
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == 100;
+        //旧的节点已经回收
+        assert dm.read(left) == null && dm.read(right) == null;
+        tree.insert(100, 101);
+        assert tree.searchRange(50, 100).size() == 51;
+        //重新加载时已经是当前格式
+        assert BPlusTree.load(boot, dm).root == tree.root;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUpgrade.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUpgrade.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUpgrade.fsm").delete();
+    }
+
+    /**
+     * 旧格式的节点：[LeafFlag,1byte][KeyNumber,2byte][SiblingUid,8byte]，之后是[Son,8byte][Key,8byte]，key为[from, from + n)，son为key + 1。
+     */
+    private byte[] legacyRaw(boolean leaf, long sibling, int from, int n) {
+        byte[] raw = new byte[11 + 16 * (Node.LEGACY_BALANCE_NUMBER * 2 + 2)];
+        raw[0] = (byte) (leaf ? 1 : 0);
+        Codec.putShort(raw, 1, (short) n);
+        Codec.putLong(raw, 3, sibling);
+        for (int i = 0; i < n; i++) {
+            Codec.putLong(raw, 11 + i * 16, from + i + 1);
+            Codec.putLong(raw, 11 + i * 16 + 8, from + i);
+        }
+        return raw;
+    }
+
+    /**
+     * 沿最左侧的路径下降到第一个叶子节点，再沿SiblingUid数出叶子节点的个数。
+     */
+    private int countLeaves(BPlusTree tree) throws Exception {
+        long uid = tree.root;
+        while (true) {
+            Node node = Node.loadNode(tree, uid);
+            boolean leaf = node.isLeaf();
+            if (!leaf) {
+                uid = Node.getRawKthSon(node.raw, 0);
+            }
+            node.release();
+            if (leaf) {
+                break;
+            }
+        }
+        int count = 0;
+        while (uid != 0) {
+            Node node = Node.loadNode(tree, uid);
+            uid = Node.getRawSibling(node.raw);
+            node.release();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 多线程并发删除、插入和查找，删除触发的合并和插入触发的分裂交错发生。
+     */
+    @Test
+    public void testConcurrentDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeConcurrentDelete", PageCache.PAGE_SIZE*100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+
+        int threads = 8, perThread = 1000;
+        int total = threads * perThread;
+        //偶数key预先插入，之后被删除；奇数key在删除的同时插入
+        for (long key = 0; key < total; key += 2) {
+            tree.insert(key, key + 1);
+        }
+        CountDownLatch cdl = new CountDownLatch(threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int no = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        long key = (long) i * threads + no;
+                        if (key % 2 == 0) {
+                            assert tree.delete(key, key + 1);
+                            assert tree.search(key).isEmpty();
+                        } else {
+                            tree.insert(key, key + 1);
+                            assert tree.search(key).get(0) == key + 1;
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert error.get() == null : error.get();
+
+        for (long key = 0; key < total; key++) {
+            assert tree.search(key).size() == key % 2;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == total / 2;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrentDelete.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrentDelete.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrentDelete.fsm").delete();
+    }
+
+    /**
+     * 游标和searchRange的结果一致，可以提前close；遍历期间其他线程删除key触发合并，没有被删除的key都恰好返回一次。
+     */
+    @Test
+    public void testCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeCursor", PageCache.PAGE_SIZE*100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+
+        //每个key有3个uid，同一个key的son-key对会跨越叶子节点
+        int lim = 3000;
+        for (long key = 0; key < lim; key++) {
+            for (int j = 0; j < 3; j++) {
+                tree.insert(key, key * 3 + j);
+            }
+        }
+        List<Long> expected = tree.searchRange(100, 1999);
+        List<Long> found = new ArrayList<>();
+        try (RangeCursor cursor = tree.cursor(Codec.sortableLong(100), Codec.sortableLong(2000), true)) {
+            while (cursor.next()) {
+                long uid = cursor.uid();
+                assert Arrays.equals(cursor.key(), Codec.sortableLong(uid / 3));
+                found.add(uid);
+            }
+            assert !cursor.next();
+        }
+        assert found.equals(expected) && found.size() == 1900 * 3;
+
+        //提前close后不再返回结果
+        RangeCursor cursor = tree.cursor(null, null, false);
+        for (int i = 0; i < 10; i++) {
+            assert cursor.next() && cursor.uid() / 3 == i / 3;
+        }
+        cursor.close();
+        assert !cursor.next();
+
+        //遍历的同时删除所有偶数key
+        CountDownLatch cdl = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        new Thread(() -> {
+            try {
+                for (long key = lim - 2; key >= 0; key -= 2) {
+                    for (int j = 0; j < 3; j++) {
+                        assert tree.delete(key, key * 3 + j);
+                    }
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            } finally {
+                cdl.countDown();
+            }
+        }).start();
+        boolean[] seen = new boolean[lim * 3];
+        long last = 0;
+        int odd = 0;
+        try (RangeCursor c = tree.cursor(null, null, false)) {
+            while (c.next()) {
+                int uid = (int) c.uid();
+                assert !seen[uid] && uid / 3 >= last;
+                seen[uid] = true;
+                last = uid / 3;
+                if (last % 2 == 1) {
+                    odd++;
+                }
+            }
+        }
+        cdl.await();
+        assert error.get() == null : error.get();
+        assert odd == lim / 2 * 3;
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim / 2 * 3;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeCursor.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeCursor.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeCursor.fsm").delete();
+    }
+
+    /**
+     * 多线程并发插入和查找，小的balance让分裂和换根频繁发生。
+     */
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+
+        int threads = 8, perThread = 1000;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int no = t;
+            new Thread(() -> {
+                try {
+                    //各线程的key交错，插入同一批叶子节点
+                    for (int i = 0; i < perThread; i++) {
+                        long key = (long) i * threads + no;
+                        tree.insert(key, key + 1);
+                        assert tree.search(key).get(0) == key + 1;
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert error.get() == null : error.get();
+
+        int total = threads * perThread;
+        for (long key = 0; key < total; key++) {
+            assert tree.search(key).get(0) == key + 1;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == total;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrent.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrent.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeConcurrent.fsm").delete();
+    }
+
+    /**
+     * 节点边界上的查找：小的balance下重复的key跨越多个叶子节点，范围的下界落在两个相邻的key之间。
+     */
+    @Test
+    public void testSearchBoundaries() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeBoundaries", PageCache.PAGE_SIZE*100, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+
+        //key为0, 10, ..., 490，每个key重复5次，多于一个节点能放下的key
+        int lim = 50, dup = 5;
+        for (int j = 0; j < dup; j++) {
+            for (int k = lim - 1; k >= 0; k--) {
+                tree.insert(k * 10L, k * 10L + j + 1);
+            }
+        }
+        for (int k = 0; k < lim; k++) {
+            List<Long> uids = tree.search(k * 10L);
+            assert uids.size() == dup;
+            for (int j = 0; j < dup; j++) {
+                assert uids.contains(k * 10L + j + 1);
+            }
+            //不存在的key
+            assert tree.search(k * 10L + 5).isEmpty();
+            assert tree.searchRange(k * 10L + 1, k * 10L + 9).isEmpty();
+            //下界不存在时从下一个key开始，重复的key全部返回
+            if (k + 1 < lim) {
+                List<Long> next = tree.searchRange(k * 10L + 1, (k + 1) * 10L);
+                assert next.size() == dup;
+                for (long uid : next) {
+                    assert (uid - 1) / 10 == k + 1;
+                }
+            }
+            assert tree.searchRange(k * 10L, k * 10L).size() == dup;
+        }
+        assert tree.searchRange(Long.MIN_VALUE, -1).isEmpty();
+        assert tree.searchRange((lim - 1) * 10L + 1, Long.MAX_VALUE).isEmpty();
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim * dup;
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBoundaries.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBoundaries.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeBoundaries.fsm").delete();
+    }
+
+    /**
+     * URL这样前缀很长、差异集中在末尾的key：前缀压缩和后缀截断之后的叶子节点个数和树高。
+     */
+    @Test
+    public void testUrlKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:\\Users\\windows\\Desktop\\TestTreeUrl", PageCache.PAGE_SIZE*2000, tm);
+
+        int lim = 30000;
+        byte[][] keys = new byte[lim][];
+        long plain = 0;
+        for (int i = 0; i < lim; i++) {
+            String url = "https://www.example-shop-" + (i % 8) + ".com/catalog/category-" + (i % 40)
+                    + "/products/item-" + i + "?utm_source=newsletter";
+            keys[i] = Codec.sortableString(url);
+            plain += Node.SLOT_SIZE + keys[i].length;
+        }
+        Random random = new Random(1);
+        for (int i = lim - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            byte[] k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+
+        BPlusTree inserted = BPlusTree.load(BPlusTree.create(dm), dm);
+        BulkLoader loader = BulkLoader.newBulkLoader();
+        for (int i = 0; i < lim; i++) {
+            inserted.insert(keys[i], i + 1);
+            loader.add(keys[i], i + 1);
+        }
+        BPlusTree loaded = BPlusTree.load(loader.build(dm), dm);
+
+        byte[] prefix = "https://www.example-shop-3.com/catalog/category-3/".getBytes();
+        for (BPlusTree tree : new BPlusTree[]{inserted, loaded}) {
+            for (int i = 0; i < lim; i++) {
+                List<Long> uids = tree.search(keys[i]);
+                assert uids.size() == 1 && uids.get(0) == i + 1;
+            }
+            assert tree.searchRange(prefix, Codec.prefixEnd(prefix), null).size() == lim / 40;
+            assert tree.searchRange(null, null, null).size() == lim;
+
+            //不压缩时key和槽至少要占满这么多个节点
+            int leaves = countLeaves(tree);
+            long uncompressed = (plain + Node.capacity(Node.nodeSize(tree.balance)) - 1) / Node.capacity(Node.nodeSize(tree.balance));
+            assert leaves < uncompressed;
+            //相邻叶子节点的key只在末尾不同，截断后的分隔key仍接近完整的URL，几百个叶子节点需要一层内部节点
+            assert height(tree) == 3;
+        }
+
+        //删除一半后合并，剩下的key仍然都能找到
+        for (int i = 0; i < lim; i += 2) {
+            assert inserted.delete(keys[i], i + 1);
+        }
+        for (int i = 0; i < lim; i++) {
+            assert inserted.search(keys[i]).size() == i % 2;
+        }
+
+        dm.close();
+        tm.close();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUrl.db").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUrl.log").delete();
+        assert new File("C:\\Users\\windows\\Desktop\\TestTreeUrl.fsm").delete();
+    }
+
+    /**
+     * 从根沿最左侧的路径下降到叶子节点经过的节点个数。
+     */
+    private int height(BPlusTree tree) throws Exception {
+        long uid = tree.root;
+        int height = 0;
+        while (true) {
+            Node node = Node.loadNode(tree, uid);
+            boolean leaf = node.isLeaf();
+            uid = Node.getRawKthSon(node.raw, 0);
+            node.release();
+            height++;
+            if (leaf) {
+                return height;
+            }
+        }
     }
 }
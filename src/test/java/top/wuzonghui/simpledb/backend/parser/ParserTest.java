@@ -8,6 +8,8 @@ import top.wuzonghui.simpledb.backend.parser.parser.statement.*;
 
 import java.util.Arrays;
 
+import static org.junit.Assert.assertThrows;
+
 public class ParserTest {
     @Test
     public void testCreate() throws Exception {
@@ -39,6 +41,52 @@ public class ParserTest {
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
+        assert !begin.isReadOnly;
+
+        stat = "begin read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isReadOnly && !begin.isRepeatableRead;
+
+        stat = "begin read only isolation level repeatable read";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isReadOnly && begin.isRepeatableRead;
+    }
+
+    @Test
+    public void testSelectForShare() throws Exception {
+        Select select = (Select) Parser.Parse("select * from student for share".getBytes());
+        assert select.forShare && select.where == null;
+        select = (Select) Parser.Parse("select * from student where id = 1 for share".getBytes());
+        assert select.forShare && "1".equals(select.where.singleExp1.value);
+        select = (Select) Parser.Parse("select * from student where id > 1 and id < 4 for share".getBytes());
+        assert select.forShare && "and".equals(select.where.logicOp);
+        select = (Select) Parser.Parse("select * from student where id = 1".getBytes());
+        assert !select.forShare;
+        assertThrows(RuntimeException.class, () -> Parser.Parse("select * from student for update".getBytes()));
+        assertThrows(RuntimeException.class, () -> Parser.Parse("delete from student where id = 1 for share".getBytes()));
+    }
+
+    @Test
+    public void testSelectLimit() throws Exception {
+        Select select = (Select) Parser.Parse("select * from student limit 10".getBytes());
+        assert select.limit == 10 && select.where == null;
+        select = (Select) Parser.Parse("select * from student where id > 1 and id < 4 limit 0 for share".getBytes());
+        assert select.limit == 0 && select.forShare && "and".equals(select.where.logicOp);
+        select = (Select) Parser.Parse("select * from student where id = 1".getBytes());
+        assert select.limit == -1;
+        assertThrows(RuntimeException.class, () -> Parser.Parse("select * from student limit abc".getBytes()));
+        assertThrows(RuntimeException.class, () -> Parser.Parse("select * from student for share limit 1".getBytes()));
+        assertThrows(RuntimeException.class, () -> Parser.Parse("delete from student where id = 1 limit 1".getBytes()));
+    }
+
+    @Test
+    public void testSet() throws Exception {
+        Set set = (Set) Parser.Parse("set lock_timeout 500".getBytes());
+        assert "lock_timeout".equals(set.name) && "500".equals(set.value);
+        assertThrows(RuntimeException.class, () -> Parser.Parse("set lock_timeout abc".getBytes()));
+        assertThrows(RuntimeException.class, () -> Parser.Parse("set isolation 1".getBytes()));
     }
 
     @Test
@@ -66,6 +114,15 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testInsertMultiRow() throws Exception {
+        String stat = "insert into student values 5 \"wzh\" 22, 6 \"a, b\" 23";
+        Insert insert = (Insert) Parser.Parse(stat.getBytes());
+        assert insert.values.length == 2;
+        assert "6".equals(insert.values[1][0]);
+        assert "23".equals(insert.values[1][2]);
+    }
+
     @Test
     public void testDelete() throws Exception {
 //        String stat = "delete from student where name = \"wzh\"";
@@ -89,6 +146,37 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testVacuum() throws Exception {
+        Vacuum vacuum = (Vacuum) Parser.Parse("vacuum".getBytes());
+        assert vacuum.tableName == null;
+        vacuum = (Vacuum) Parser.Parse("vacuum student".getBytes());
+        assert "student".equals(vacuum.tableName);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        CreateIndex createIndex = (CreateIndex) Parser.Parse("create index on student (name)".getBytes());
+        assert "student".equals(createIndex.tableName);
+        assert Arrays.equals(createIndex.fieldName, new String[]{"name"});
+        assert createIndex.include.length == 0;
+        DropIndex dropIndex = (DropIndex) Parser.Parse("drop index on student (name)".getBytes());
+        assert "student".equals(dropIndex.tableName);
+        assert Arrays.equals(dropIndex.fieldName, new String[]{"name"});
+        assertThrows(Exception.class, () -> Parser.Parse("create index on student name".getBytes()));
+        assertThrows(Exception.class, () -> Parser.Parse("drop index student (name)".getBytes()));
+
+        //组合索引和include字段
+        createIndex = (CreateIndex) Parser.Parse("create index on student (age, name) include (id)".getBytes());
+        assert Arrays.equals(createIndex.fieldName, new String[]{"age", "name"});
+        assert Arrays.equals(createIndex.include, new String[]{"id"});
+        dropIndex = (DropIndex) Parser.Parse("drop index on student (age, name)".getBytes());
+        assert Arrays.equals(dropIndex.fieldName, new String[]{"age", "name"});
+        assertThrows(Exception.class, () -> Parser.Parse("create index on student (age,) include (id)".getBytes()));
+        assertThrows(Exception.class, () -> Parser.Parse("create index on student (age) include".getBytes()));
+        assertThrows(Exception.class, () -> Parser.Parse("drop index on student (age) include (id)".getBytes()));
+    }
+
     @Test
     public void testUpdate() throws Exception {
         String stat = "update student set name = \"wzh\" where id = 5";
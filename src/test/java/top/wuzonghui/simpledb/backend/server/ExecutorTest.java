@@ -5,6 +5,7 @@ import top.wuzonghui.simpledb.backend.dm.DataManager;
 import top.wuzonghui.simpledb.backend.tbm.TableManager;
 import top.wuzonghui.simpledb.backend.tm.TransactionManager;
 import top.wuzonghui.simpledb.backend.vm.VersionManager;
+import top.wuzonghui.simpledb.common.Error;
 
 
 import java.io.File;
@@ -42,6 +43,7 @@ public class ExecutorTest {
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 
     private void testMultiInsert(int total, int noWorkers) throws Exception {
@@ -74,5 +76,645 @@ public class ExecutorTest {
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute("create table test_table2 id int64, name string (index id name)".getBytes());
+        testInsert(exe, 10, 0);
+        exe.execute("insert into test_table2 values 7 seven".getBytes());
+        dm.close();
+        tm.close();
+
+        //重新打开后，表和字段由loadTables加载，索引在第一次查询时加载
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert new String(exe.execute("select * from test_table where id = 2333".getBytes())).contains("2333");
+        assert new String(exe.execute("select * from test_table2 where name = seven".getBytes())).contains("seven");
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testInsertMultiRow() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table test_table2 id int64, name string (index id)".getBytes());
+        exe.execute("insert into test_table2 values 1 one, 2 two, 3 three".getBytes());
+        String res = new String(exe.execute("select * from test_table2 where id > 0".getBytes()));
+        assert res.contains("one") && res.contains("two") && res.contains("three");
+        assert new String(exe.execute("select * from test_table2 where id = 2".getBytes())).contains("two");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe = testCreate();
+        for (int i = 1; i <= 5; i++) {
+            exe.execute(("insert into test_table values " + i).getBytes());
+        }
+        exe.execute("delete from test_table where id > 2".getBytes());
+        assert "vacuum 3 raw".equals(new String(exe.execute("vacuum test_table".getBytes())));
+        assert "vacuum 0 raw".equals(new String(exe.execute("vacuum".getBytes())));
+
+        //可重复读事务开始时id = 1还存在，在它结束之前不能回收
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        exe.execute("delete from test_table where id = 1".getBytes());
+        assert "vacuum 0 raw".equals(new String(exe.execute("vacuum test_table".getBytes())));
+        assert new String(reader.execute("select * from test_table where id = 1".getBytes())).contains("1");
+        reader.execute("commit".getBytes());
+        assert "vacuum 1 raw".equals(new String(exe.execute("vacuum test_table".getBytes())));
+        assert new String(exe.execute("select * from test_table".getBytes())).contains("2");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testVacuumIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table test_table2 id int64, name string (index id name)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 300; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" n").append(i);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+        assert "delete 290 raw".equals(new String(exe.execute("delete from test_table2 where id > 10".getBytes())));
+
+        //整条版本链被回收时，两个索引中指向它的索引项也被删除，之后的vacuum不会再扫描到它们
+        assert "vacuum 290 raw".equals(new String(exe.execute("vacuum test_table2".getBytes())));
+        assert "vacuum 0 raw".equals(new String(exe.execute("vacuum test_table2".getBytes())));
+        assert "Empty Set".equals(new String(exe.execute("select * from test_table2 where name = n20".getBytes())));
+
+        //重新插入相同的key
+        exe.execute("insert into test_table2 values 20 n20".getBytes());
+        String res = new String(exe.execute("select * from test_table2 where id > 5".getBytes()));
+        assert res.split("\n").length == 2 + 6;
+        assert new String(exe.execute("select * from test_table2 where name = n20".getBytes())).contains("20");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        Executor exe = testCreate();
+        for (int i = 1; i <= 3; i++) {
+            exe.execute(("insert into test_table values " + i).getBytes());
+        }
+
+        //只读事务和自动提交的select都不会写xid文件
+        long xidLength = new File(path + ".xid").length();
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin read only isolation level repeatable read".getBytes());
+        assert new String(exe.execute("select * from test_table where id = 1".getBytes())).contains("1");
+        assert xidLength == new File(path + ".xid").length();
+
+        //只读事务不能写数据，但事务本身仍然可以提交
+        try {
+            reader.execute("insert into test_table values 4".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.ReadOnlyTransactionException;
+        }
+
+        //可重复读的只读事务看不到之后的删除，它结束之前被删除的版本也不能回收
+        exe.execute("delete from test_table where id = 1".getBytes());
+        assert new String(reader.execute("select * from test_table where id = 1".getBytes())).contains("1");
+        assert "vacuum 0 raw".equals(new String(exe.execute("vacuum test_table".getBytes())));
+        reader.execute("commit".getBytes());
+        assert "vacuum 1 raw".equals(new String(exe.execute("vacuum test_table".getBytes())));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testLockTimeout() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("insert into test_table values 1".getBytes());
+        exe.execute("begin".getBytes());
+        exe.execute("delete from test_table where id = 1".getBytes());
+
+        //另一个事务等待同一行，超过lock_timeout后被自动回滚
+        Executor other = new Executor(exe.tbm);
+        other.execute("set lock_timeout 100".getBytes());
+        other.execute("begin".getBytes());
+        long start = System.currentTimeMillis();
+        try {
+            other.execute("delete from test_table where id = 1".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.LockTimeoutException;
+        }
+        assert System.currentTimeMillis() - start >= 100;
+        other.execute("abort".getBytes());
+
+        exe.execute("commit".getBytes());
+        assert !new String(exe.execute("select * from test_table where id = 1".getBytes())).contains("1");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testSelectForShare() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("insert into test_table values 1".getBytes());
+        exe.execute("insert into test_table values 2".getBytes());
+        exe.execute("begin".getBytes());
+        assert new String(exe.execute("select * from test_table where id = 1 for share".getBytes())).contains("1");
+
+        //其他事务也可以加共享锁，但是删除被共享锁住的行需要等待
+        Executor other = new Executor(exe.tbm);
+        other.execute("set lock_timeout 100".getBytes());
+        other.execute("begin".getBytes());
+        assert new String(other.execute("select * from test_table where id = 1 for share".getBytes())).contains("1");
+        assert "delete 1 raw".equals(new String(other.execute("delete from test_table where id = 2".getBytes())));
+        try {
+            other.execute("delete from test_table where id = 1".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.LockTimeoutException;
+        }
+        other.execute("abort".getBytes());
+
+        exe.execute("commit".getBytes());
+        assert "delete 1 raw".equals(new String(exe.execute("delete from test_table where id = 1".getBytes())));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testUpdateChain() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table test_table2 id int64, name string (index id)".getBytes());
+        exe.execute("insert into test_table2 values 1 one".getBytes());
+
+        //可重复读事务看到的始终是更新前的版本
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert "update 1 raw".equals(new String(exe.execute("update test_table2 set name = uno where id = 1".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where id = 1".getBytes())).contains("uno");
+        assert new String(reader.execute("select * from test_table2 where id = 1".getBytes())).contains("one");
+
+        //回滚的更新留在版本链上，对任何事务都不可见
+        exe.execute("begin".getBytes());
+        exe.execute("update test_table2 set name = eins where id = 1".getBytes());
+        exe.execute("abort".getBytes());
+        assert "update 1 raw".equals(new String(exe.execute("update test_table2 set name = yi where id = 1".getBytes())));
+        String res = new String(exe.execute("select * from test_table2 where id > 0".getBytes()));
+        assert res.contains("yi") && !res.contains("uno") && !res.contains("eins");
+
+        //reader结束之前只能回收回滚的版本，之后uno这个中间版本也可以回收，根保留
+        assert "vacuum 1 raw".equals(new String(exe.execute("vacuum test_table2".getBytes())));
+        assert new String(reader.execute("select * from test_table2 where id = 1".getBytes())).contains("one");
+        reader.execute("commit".getBytes());
+        assert "vacuum 1 raw".equals(new String(exe.execute("vacuum test_table2".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where id = 1".getBytes())).contains("yi");
+
+        //修改索引列时删除后重新插入，旧的版本链整条回收
+        exe.execute("update test_table2 set id = 2 where id = 1".getBytes());
+        assert !new String(exe.execute("select * from test_table2 where id = 1".getBytes())).contains("yi");
+        assert new String(exe.execute("select * from test_table2 where id = 2".getBytes())).contains("yi");
+        assert "vacuum 2 raw".equals(new String(exe.execute("vacuum test_table2".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where id = 2".getBytes())).contains("yi");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table2 id int64, name string (index id)".getBytes());
+        exe.execute("insert into test_table2 values 1 one, 2 two, 3 three".getBytes());
+        try {
+            exe.execute("select * from test_table2 where name = two".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+
+        //name没有索引时的update接在原来的版本链上，这条链上有two和zwei两个值
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        reader.execute("select * from test_table2 where id = 2".getBytes());
+        exe.execute("update test_table2 set name = zwei where id = 2".getBytes());
+        assert "create index".equals(new String(exe.execute("create index on test_table2 (name)".getBytes())));
+        try {
+            exe.execute("create index on test_table2 (name)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DuplicatedIndexException;
+        }
+
+        //两个值都能找到这条链，再用可见版本检查一次where条件
+        assert new String(exe.execute("select * from test_table2 where name = zwei".getBytes())).contains("zwei");
+        assert "Empty Set".equals(new String(exe.execute("select * from test_table2 where name = two".getBytes())));
+        assert new String(reader.execute("select * from test_table2 where name = two".getBytes())).contains("two");
+        reader.execute("commit".getBytes());
+        assert "delete 0 raw".equals(new String(exe.execute("delete from test_table2 where name = two".getBytes())));
+        assert "update 0 raw".equals(new String(exe.execute("update test_table2 set id = 5 where name = two".getBytes())));
+
+        //之后的insert和修改name的update都会维护新索引
+        exe.execute("insert into test_table2 values 4 four".getBytes());
+        exe.execute("update test_table2 set name = drei where id = 3".getBytes());
+        assert new String(exe.execute("select * from test_table2 where name = four".getBytes())).contains("four");
+        assert new String(exe.execute("select * from test_table2 where name = drei".getBytes())).contains("drei");
+        assert "Empty Set".equals(new String(exe.execute("select * from test_table2 where name = three".getBytes())));
+        dm.close();
+        tm.close();
+
+        //字段的IndexUid已经持久化
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert new String(exe.execute("select * from test_table2 where name = zwei".getBytes())).contains("zwei");
+
+        assert "drop index".equals(new String(exe.execute("drop index on test_table2 (name)".getBytes())));
+        try {
+            exe.execute("select * from test_table2 where name = zwei".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        try {
+            exe.execute("drop index on test_table2 (id)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TableNoIndexException;
+        }
+        assert new String(exe.execute("select * from test_table2 where id = 2".getBytes())).contains("zwei");
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCreateIndexConcurrently() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table test_table2 id int64, age int32 (index id)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 500; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" ").append(i);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+
+        //建索引的同时另一个事务继续插入和删除
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                Executor writer = new Executor(exe.tbm);
+                for (int i = 501; i <= 1000; i++) {
+                    writer.execute(("insert into test_table2 values " + i + " " + i).getBytes());
+                    if (i % 10 == 0) {
+                        writer.execute(("delete from test_table2 where id = " + (i - 500)).getBytes());
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }).start();
+        exe.execute("create index on test_table2 (age)".getBytes());
+        done.await();
+        exe.execute("vacuum test_table2".getBytes());
+
+        String res = new String(exe.execute("select * from test_table2 where age > 0".getBytes()));
+        assert res.split("\n").length == 2 + 950;
+        assert "Empty Set".equals(new String(exe.execute("select * from test_table2 where age = 10".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where age = 999".getBytes())).contains("999");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table2 id int64, age int32, name string (index id)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 200; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" ").append(i % 10).append(" n").append(i);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+        assert "create index".equals(new String(exe.execute("create index on test_table2 (age, id) include (name)".getBytes())));
+        try {
+            exe.execute("create index on test_table2 (age, id)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DuplicatedIndexException;
+        }
+
+        //等值条件加范围条件是组合索引上的一段连续范围，vacuum之后直接从索引中读出，结果不变
+        String before = new String(exe.execute("select name from test_table2 where age = 3 and id > 100".getBytes()));
+        assert before.split("\n").length == 2 + 10;
+        assert before.contains("n103") && before.contains("n193") && !before.contains("n93");
+        exe.execute("vacuum test_table2".getBytes());
+        assert before.equals(new String(exe.execute("select name from test_table2 where age = 3 and id > 100".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where age < 1".getBytes())).split("\\n").length == 2 + 20;
+        String or = new String(exe.execute("select id from test_table2 where age = 3 or id = 3".getBytes()));
+        assert or.split("\n").length == 2 + 20;
+
+        //修改include字段和删除都能从索引中看到
+        exe.execute("update test_table2 set name = changed where id = 113".getBytes());
+        exe.execute("delete from test_table2 where id = 123".getBytes());
+        String res = new String(exe.execute("select name from test_table2 where age = 3 and id > 100".getBytes()));
+        assert res.split("\n").length == 2 + 9 && res.contains("changed") && !res.contains("n113");
+        exe.execute("vacuum test_table2".getBytes());
+        assert res.equals(new String(exe.execute("select name from test_table2 where age = 3 and id > 100".getBytes())));
+        dm.close();
+        tm.close();
+
+        //组合索引保存在表的Entry中
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert res.equals(new String(exe.execute("select name from test_table2 where age = 3 and id > 100".getBytes())));
+        assert "drop index".equals(new String(exe.execute("drop index on test_table2 (age, id)".getBytes())));
+        try {
+            exe.execute("select * from test_table2 where age = 3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        assert new String(exe.execute("select * from test_table2 where id = 113".getBytes())).contains("changed");
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testIndexAbort() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table2 id int64, age int32, name string (index id)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 50; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" ").append(i % 10).append(" n").append(i);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+
+        exe.execute("begin".getBytes());
+        exe.execute("create index on test_table2 (name)".getBytes());
+        exe.execute("drop index on test_table2 (id)".getBytes());
+        assert new String(exe.execute("select * from test_table2 where name = n3".getBytes())).contains("n3");
+        //未提交的索引修改结束前，其他事务不能修改该表的索引
+        Executor other = new Executor(tbm);
+        try {
+            other.execute("create index on test_table2 (age)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.ConcurrentUpdateException;
+        }
+        //删除提交前其他事务照常维护id上的索引
+        other.execute("insert into test_table2 values 51 1 n51".getBytes());
+        exe.execute("abort".getBytes());
+
+        //新建的索引随事务回滚撤销
+        try {
+            exe.execute("select * from test_table2 where name = n3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        exe.execute("begin".getBytes());
+        exe.execute("create index on test_table2 (age, id)".getBytes());
+        assert new String(exe.execute("select * from test_table2 where age = 3".getBytes())).contains("n43");
+        exe.execute("abort".getBytes());
+        try {
+            exe.execute("select * from test_table2 where age = 3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        assert new String(exe.execute("select * from test_table2 where id = 51".getBytes())).contains("n51");
+        dm.close();
+        tm.close();
+
+        //回滚后IndexUid仍然指向完整的旧树
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert new String(exe.execute("select * from test_table2 where id = 51".getBytes())).contains("n51");
+        assert new String(exe.execute("select * from test_table2 where id > 0".getBytes())).split("\n").length == 2 + 51;
+        try {
+            exe.execute("select * from test_table2 where name = n3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+
+        //提交之后才摘除删除的索引
+        exe.execute("create index on test_table2 (name)".getBytes());
+        exe.execute("begin".getBytes());
+        exe.execute("drop index on test_table2 (id)".getBytes());
+        assert new String(exe.execute("select * from test_table2 where id = 3".getBytes())).contains("n3");
+        exe.execute("commit".getBytes());
+        try {
+            exe.execute("select * from test_table2 where id = 3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert new String(exe.execute("select * from test_table2 where name = n51".getBytes())).contains("n51");
+        try {
+            exe.execute("select * from test_table2 where id = 3".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCompositeIndexWaitsForWriters() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table test_table2 id int64, v int32 (index id)".getBytes());
+        exe.execute("insert into test_table2 values 1 1".getBytes());
+        exe.execute("begin".getBytes());
+        exe.execute("insert into test_table2 values 2 2".getBytes());
+
+        //组合索引要等到持有表上意向锁的事务结束，等待期间不能挡住这个事务之后的语句
+        Executor other = new Executor(exe.tbm);
+        String[] res = new String[1];
+        Thread ddl = new Thread(() -> {
+            try {
+                res[0] = new String(other.execute("create index on test_table2 (id, v)".getBytes()));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        ddl.start();
+        Thread.sleep(200);
+        exe.execute("insert into test_table2 values 3 3".getBytes());
+        exe.execute("update test_table2 set v = 4 where id = 1".getBytes());
+        assert ddl.isAlive();
+        exe.execute("commit".getBytes());
+        ddl.join();
+        assert "create index".equals(res[0]);
+        assert new String(exe.execute("select * from test_table2 where id > 0 and v = 4".getBytes())).split("\n").length == 2 + 1;
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testStringIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table2 id int64, name string (index id name)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 100; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" n").append(i);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+
+        //等值查找只找到值相同的数据，不包括以它为前缀的字符串
+        String res = new String(exe.execute("select * from test_table2 where name = n1".getBytes()));
+        assert res.split("\n").length == 2 + 1;
+        //范围查找按字典序
+        res = new String(exe.execute("select id from test_table2 where name > n5 and name < n6".getBytes()));
+        assert res.split("\n").length == 2 + 10 && res.contains("59") && !res.contains("\n5\n");
+        assert new String(exe.execute("select id from test_table2 where name < n10".getBytes())).split("\n").length == 2 + 1;
+        exe.execute("delete from test_table2 where name < n10".getBytes());
+        exe.execute("vacuum test_table2".getBytes());
+        assert new String(exe.execute("select id from test_table2 where name > n0".getBytes())).split("\n").length == 2 + 99;
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        res = new String(exe.execute("select id from test_table2 where name > n5 and name < n6".getBytes()));
+        assert res.split("\n").length == 2 + 10;
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testSelectLimit() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table2 id int64, age int32 (index id)".getBytes());
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 200; i++) {
+            values.append(i == 1 ? " " : ", ").append(i).append(" ").append(i % 10);
+        }
+        exe.execute(("insert into test_table2 values" + values).getBytes());
+
+        assert new String(exe.execute("select * from test_table2".getBytes())).split("\n").length == 2 + 200;
+        String res = new String(exe.execute("select id from test_table2 limit 5".getBytes()));
+        assert res.split("\n").length == 2 + 5 && res.endsWith("\n5\n");
+        assert "Empty Set".equals(new String(exe.execute("select * from test_table2 limit 0".getBytes())));
+        assert new String(exe.execute("select * from test_table2 where id > 100 and age = 3 limit 4".getBytes())).split("\n").length == 2 + 4;
+        assert new String(exe.execute("select * from test_table2 where id > 190 limit 100".getBytes())).split("\n").length == 2 + 10;
+        //or的两个范围重叠，重叠部分只返回一次
+        assert new String(exe.execute("select id from test_table2 where id < 10 or id < 20".getBytes())).split("\n").length == 2 + 19;
+        res = new String(exe.execute("select id from test_table2 where id < 10 or id < 20 limit 12".getBytes()));
+        assert res.split("\n").length == 2 + 12 && res.endsWith("\n12\n");
+        exe.execute("begin".getBytes());
+        assert new String(exe.execute("select * from test_table2 where id > 100 limit 3 for share".getBytes())).split("\n").length == 2 + 3;
+        exe.execute("commit".getBytes());
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 }
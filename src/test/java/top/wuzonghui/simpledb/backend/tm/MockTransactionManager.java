@@ -13,6 +13,11 @@ public class MockTransactionManager implements TransactionManager {
     @Override
     public void abort(long xid) {}
 
+    @Override
+    public long getXidCounter() {
+        return 0;
+    }
+
     @Override
     public boolean isActive(long xid) {
         return false;
@@ -0,0 +1,54 @@
+package top.wuzonghui.simpledb.backend.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class CodecTest {
+    @Test
+    public void testCodec() {
+        byte[] raw = new byte[32];
+        Codec.putLong(raw, 3, 0x0102030405060708L);
+        Codec.putInt(raw, 11, -7);
+        Codec.putShort(raw, 15, (short) 0x8001);
+        assert Codec.getLong(raw, 3) == 0x0102030405060708L;
+        assert Codec.getInt(raw, 11) == -7;
+        assert Codec.getShort(raw, 15) == (short) 0x8001;
+
+        //和ByteBuffer的大端序结果一致，已有的文件格式不受影响
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        assert buffer.getLong(3) == 0x0102030405060708L;
+        assert buffer.getInt(11) == -7;
+        assert buffer.getShort(15) == (short) 0x8001;
+        assert Parser.parseLong(Parser.long2Byte(Long.MIN_VALUE)) == Long.MIN_VALUE;
+    }
+
+    @Test
+    public void testSortable() {
+        long[] longs = {Long.MIN_VALUE, -2, -1, 0, 1, 255, 256, Long.MAX_VALUE};
+        for (int i = 0; i < longs.length; i++) {
+            assert Codec.getSortableLong(Codec.sortableLong(longs[i]), 0) == longs[i];
+            if (i > 0) {
+                assert Codec.compareKeys(Codec.sortableLong(longs[i - 1]), Codec.sortableLong(longs[i])) < 0;
+            }
+        }
+        assert Codec.compareKeys(Codec.sortableInt(-1), Codec.sortableInt(0)) < 0;
+        assert Codec.getSortableInt(Codec.sortableInt(Integer.MIN_VALUE), 0) == Integer.MIN_VALUE;
+
+        //字符串编码后可以和其他列拼接，前缀更短的在前
+        String[] strings = {"", "a", "a\u0000", "ab", "b"};
+        for (int i = 0; i < strings.length; i++) {
+            byte[] raw = Codec.sortableString(strings[i]);
+            assert strings[i].equals(Codec.getSortableString(raw, 0).str);
+            assert Codec.getSortableString(raw, 0).next == raw.length;
+            if (i > 0) {
+                assert Codec.compareKeys(Codec.sortableString(strings[i - 1]), raw) < 0;
+            }
+        }
+
+        assert Arrays.equals(Codec.prefixEnd(new byte[]{1, 2}), new byte[]{1, 3});
+        assert Arrays.equals(Codec.prefixEnd(new byte[]{1, (byte) 0xFF}), new byte[]{2});
+        assert Codec.prefixEnd(new byte[]{(byte) 0xFF}) == null;
+    }
+}
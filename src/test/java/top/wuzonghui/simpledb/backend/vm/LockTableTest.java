@@ -4,9 +4,14 @@ import org.junit.Test;
 import top.wuzonghui.simpledb.backend.utils.Panic;
 
 
-import java.util.concurrent.locks.Lock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.*;
 
 public class LockTableTest {
 
@@ -37,16 +42,10 @@ public class LockTableTest {
     @Test
     public void testLockTable2() {
         LockTable lt = new LockTable();
+        Waiter[] waiters = new Waiter[100];
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assertNull(lt.add(i, i));
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -54,14 +53,10 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                Waiter o = lt.add(i, i+1);
+                assertNotNull(o);
+                assertFalse(o.isGranted());
+                waiters[(int) i] = o;
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -69,6 +64,9 @@ public class LockTableTest {
 
         assertThrows(RuntimeException.class, ()->lt.add(100, 1));
         lt.remove(23);
+        //23释放的资源按顺序转交给等待它的22
+        assertTrue(waiters[22].isGranted());
+        assertFalse(waiters[21].isGranted());
 
         try {
             lt.add(100, 1);
@@ -76,4 +74,197 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testLongWaitChain() throws Exception {
+        //每个事务持有大量资源，并排成一条很长的等待链，每次加边只需要检查新边所在的链
+        LockTable lt = new LockTable();
+        int xids = 500, held = 200;
+        for (long x = 1; x <= xids; x++) {
+            for (long k = 0; k < held; k++) {
+                assertNull(lt.add(x, x * held + k));
+            }
+        }
+        Waiter[] waiters = new Waiter[xids];
+        for (long x = 1; x < xids; x++) {
+            waiters[(int) x] = lt.add(x, (x + 1) * held);
+            assertNotNull(waiters[(int) x]);
+            assertFalse(waiters[(int) x].isGranted());
+        }
+
+        assertThrows(RuntimeException.class, () -> lt.add(xids, held));
+        lt.remove(250);
+        //249在等待250持有的资源，资源被转交给249，之后的等待链在249处断开
+        assertTrue(waiters[249].isGranted());
+        assertNull(lt.add(249, 250L * held));
+        assertFalse(waiters[248].isGranted());
+        assertNotNull(lt.add(xids, held));
+    }
+
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        LockTable lt = new LockTable();
+        int threads = 200, uids = 100;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        AtomicLong granted = new AtomicLong();
+        for (int i = 0; i < threads; i++) {
+            final long xid = i + 1;
+            new Thread(() -> {
+                try {
+                    //各线程的资源互不相交，都不需要等待
+                    for (long k = 0; k < uids; k++) {
+                        if (lt.add(xid, xid * uids + k) == null) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                    lt.remove(xid);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        assertTrue(cdl.await(60, TimeUnit.SECONDS));
+        assertEquals((long) threads * uids, granted.get());
+
+        //所有资源都已经释放
+        for (long uid = uids; uid < (threads + 1) * uids; uid++) {
+            assertNull(lt.add(threads + 1, uid));
+        }
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        LockTable lt = new LockTable();
+        assertNull(lt.add(1, 1));
+        Waiter w = lt.add(2, 1);
+        long start = System.currentTimeMillis();
+        assertFalse(w.await(100));
+        assert System.currentTimeMillis() - start >= 100;
+
+        //超时的等待者被跳过，资源按FIFO转交给下一个等待者
+        Waiter[] w3 = new Waiter[1];
+        Thread t = new Thread(() -> {
+            try {
+                w3[0] = lt.add(3, 1);
+                assertTrue(w3[0].await(0));
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        t.start();
+        while (w3[0] == null) {
+            Thread.sleep(1);
+        }
+        lt.remove(1);
+        t.join(5000);
+        assertTrue(w3[0].isGranted());
+        assertFalse(w.isGranted());
+        lt.remove(2);
+        assertNotNull(lt.add(2, 1));
+    }
+
+    @Test
+    public void testHotRowContention() throws Exception {
+        //多个事务等待同一个热点资源，等待的线程被park，释放时按到达顺序逐个转交并unpark
+        LockTable lt = new LockTable();
+        int threads = 50;
+        assertNull(lt.add(1, 1));
+        List<Long> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long xid = i + 2;
+            //等待者由等待的线程创建，上一个线程进入队列后再启动下一个，保证到达顺序
+            CountDownLatch queued = new CountDownLatch(1);
+            new Thread(() -> {
+                try {
+                    Waiter w = lt.add(xid, 1);
+                    queued.countDown();
+                    if (w != null && w.await(0)) {
+                        order.add(xid);
+                    }
+                    lt.remove(xid);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+            queued.await();
+        }
+        lt.remove(1);
+        assertTrue(cdl.await(60, TimeUnit.SECONDS));
+        assertEquals(threads, order.size());
+        for (int i = 0; i < threads; i++) {
+            assertEquals(i + 2, (long) order.get(i));
+        }
+        assertNull(lt.add(threads + 2, 1));
+    }
+
+    @Test
+    public void testLockModes() throws Exception {
+        LockTable lt = new LockTable();
+        long table = 1000;
+        //共享行锁之间兼容，表上的IS/IX也兼容
+        assertNull(lt.addRow(1, table, 1, LockTable.S));
+        assertNull(lt.addRow(2, table, 1, LockTable.S));
+        assertNull(lt.addRow(3, table, 2, LockTable.X));
+        //排他锁和共享锁不兼容
+        Waiter w = lt.addRow(3, table, 1, LockTable.X);
+        assertNotNull(w);
+        //表级S和其他事务的IX不兼容
+        assertNotNull(lt.add(4, table, LockTable.S));
+
+        lt.remove(1);
+        assertFalse(w.isGranted());
+        lt.remove(2);
+        assertTrue(w.isGranted());
+        assertNull(lt.addRow(3, table, 1, LockTable.X));
+
+        //1和2都持有S，都申请升级为X，形成死锁
+        LockTable lt2 = new LockTable();
+        assertNull(lt2.add(1, 1, LockTable.S));
+        assertNull(lt2.add(2, 1, LockTable.S));
+        assertNotNull(lt2.add(1, 1, LockTable.X));
+        assertThrows(RuntimeException.class, () -> lt2.add(2, 1, LockTable.X));
+    }
+
+    @Test
+    public void testEscalation() throws Exception {
+        LockTable lt = new LockTable(10);
+        long table = 1000;
+        for (long uid = 1; uid <= 10; uid++) {
+            assertNull(lt.addRow(1, table, uid, LockTable.X));
+        }
+        //达到阈值后表锁升级为X，之后的行不再单独加锁，其他事务的意向锁需要等待
+        assertNull(lt.addRow(1, table, 11, LockTable.X));
+        assertNull(lt.add(2, 11, LockTable.X));
+        assertNotNull(lt.addRow(3, table, 12, LockTable.S));
+
+        //有其他事务持有不兼容的意向锁时，升级放弃，继续使用行锁
+        LockTable lt2 = new LockTable(10);
+        assertNull(lt2.addRow(2, table, 100, LockTable.X));
+        for (long uid = 1; uid <= 11; uid++) {
+            assertNull(lt2.addRow(1, table, uid, LockTable.X));
+        }
+        assertNotNull(lt2.add(3, 11, LockTable.X));
+
+        //只计数新持有的行：重复加锁和S升级为X不计数，等待后被转交的行计数一次
+        LockTable lt3 = new LockTable(10);
+        for (long uid = 1; uid <= 9; uid++) {
+            assertNull(lt3.addRow(1, table, uid, LockTable.S));
+            assertNull(lt3.addRow(1, table, uid, LockTable.X));
+            assertNull(lt3.addRow(1, table, uid, LockTable.S));
+        }
+        assertNull(lt3.add(5, table, LockTable.IS));
+        lt3.remove(5);
+        assertNull(lt3.addRow(3, table, 10, LockTable.X));
+        Waiter w = lt3.addRow(1, table, 10, LockTable.X);
+        assertNotNull(w);
+        lt3.remove(3);
+        assertTrue(w.isGranted());
+        assertNull(lt3.addRow(1, table, 10, LockTable.X));
+        assertNotNull(lt3.add(4, table, LockTable.IS));
+    }
 }
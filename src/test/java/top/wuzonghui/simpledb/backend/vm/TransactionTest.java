@@ -0,0 +1,47 @@
+package top.wuzonghui.simpledb.backend.vm;
+
+import org.junit.Test;
+import top.wuzonghui.simpledb.backend.tm.TransactionManagerImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+
+    @Test
+    public void testSnapshot() {
+        Map<Long, Transaction> active = new HashMap<>();
+        active.put(TransactionManagerImpl.SUPER_XID, null);
+        active.put(7L, null);
+        active.put(3L, null);
+        active.put(5L, null);
+        Transaction t = Transaction.newTransaction(9, Transaction.REPEATABLEREAD, active);
+
+        assertArrayEquals(new long[]{3, 5, 7}, t.snapshot);
+        assertEquals(3, t.snapshotXmin);
+        assertEquals(9, t.snapshotXmax);
+        assertTrue(t.isInSnapshot(3));
+        assertTrue(t.isInSnapshot(5));
+        assertTrue(t.isInSnapshot(7));
+        assertFalse(t.isInSnapshot(TransactionManagerImpl.SUPER_XID));
+        assertFalse(t.isInSnapshot(1));
+        assertFalse(t.isInSnapshot(4));
+        assertFalse(t.isInSnapshot(9));
+        assertFalse(t.isInSnapshot(10));
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        Map<Long, Transaction> active = new HashMap<>();
+        active.put(TransactionManagerImpl.SUPER_XID, null);
+        Transaction t = Transaction.newTransaction(4, Transaction.REPEATABLEREAD, active);
+        assertEquals(0, t.snapshot.length);
+        assertEquals(4, t.snapshotXmin);
+        assertFalse(t.isInSnapshot(3));
+
+        Transaction rc = Transaction.newTransaction(5, Transaction.READCOMMITTED, active);
+        assertNull(rc.snapshot);
+    }
+}
@@ -0,0 +1,92 @@
+package top.wuzonghui.simpledb.backend.vm;
+
+import org.junit.Test;
+import top.wuzonghui.simpledb.backend.common.SubArray;
+import top.wuzonghui.simpledb.backend.dm.DataManager;
+import top.wuzonghui.simpledb.backend.dm.dataitem.DataItem;
+import top.wuzonghui.simpledb.backend.dm.pagecache.PageCache;
+import top.wuzonghui.simpledb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VersionManagerTest {
+    String path = "C:\\Users\\windows\\Desktop\\TESTVM";
+
+    /**
+     * VersionManager.read直接经过DM的缓存读取记录，每次读取结束释放DataItem，释放之后再次读取得到相同的数据。
+     */
+    @Test
+    public void testReadThroughCache() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        int rows = 100;
+        long xid = vm.begin(Transaction.READCOMMITTED);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            uids.add(vm.insert(xid, new byte[]{(byte) i, 1, 2, 3}));
+        }
+        for (int r = 0; r < 3; r++) {
+            for (int i = 0; i < rows; i++) {
+                assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, vm.read(xid, uids.get(i)));
+                assertEquals((byte) i, (byte) vm.read(xid, uids.get(i), data -> data.raw[data.start]));
+            }
+        }
+        vm.commit(xid);
+
+        //DataItem中Entry头之后就是记录的数据，DM的读取和释放不影响之后vm的读取
+        long reader = vm.begin(Transaction.READCOMMITTED);
+        DataItem dataItem = dm.read(uids.get(0));
+        SubArray data = dataItem.data();
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, Arrays.copyOfRange(data.raw, data.end - 4, data.end));
+        dataItem.release();
+        for (int i = 0; i < rows; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, vm.read(reader, uids.get(i)));
+        }
+        vm.commit(reader);
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    /**
+     * 插入记录的事务提交之前开始的事务仍然看不到记录，此时vacuum不能把记录标记为对所有事务可见。
+     */
+    @Test
+    public void testAllVisibleWaitsForOlderSnapshots() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long reader = vm.begin(Transaction.REPEATABLEREAD);
+        long writer = vm.begin(Transaction.READCOMMITTED);
+        long uid = vm.insert(writer, new byte[]{1, 2, 3});
+        vm.commit(writer);
+
+        vm.vacuum(uid);
+        assertFalse(vm.isAllVisible(uid));
+        assertNull(vm.read(reader, uid));
+        vm.commit(reader);
+
+        //没有活跃事务，之后开始的事务都能看到这条记录
+        vm.vacuum(uid);
+        assertTrue(vm.isAllVisible(uid));
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+}